@@ -2,20 +2,28 @@ package net.imglib2.interpolation.neighborsearch;
 
 import java.util.function.DoubleUnaryOperator;
 
+import org.janelia.render.index.KDTreeIndex;
+import org.janelia.render.index.NeighborVisitor;
+import org.janelia.render.index.OccupancyGrid;
+import org.janelia.render.index.PointIndex;
+import org.janelia.render.index.RadiusSearch;
+import org.janelia.render.kernel.RadialKernel;
+
 import net.imglib2.KDTree;
 import net.imglib2.RealInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.Sampler;
 import net.imglib2.interpolation.InterpolatorFactory;
-import net.imglib2.neighborsearch.RadiusNeighborSearch;
-import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 /**
  * A radial basis function interpolator
+ * <p>
+ * Neighbors are found by a {@link PointIndex}, e.g. a
+ * {@link org.janelia.render.index.FlatKDTree} or an imglib2 KDTree wrapped
+ * in a {@link KDTreeIndex}.
+ *
  * @author John Bogovic
  *
  * @param <T>
@@ -24,17 +32,20 @@ public class RBFInterpolator<T extends RealType<T>> extends RealPoint implements
 {
 	final static protected double minThreshold = Double.MIN_VALUE * 1000;
 
-	final protected RadiusNeighborSearch< T > search;
+	final protected RadiusSearch search;
 	
-	final protected KDTree< T > tree;
+	final protected PointIndex index;
 
 	final T value;
 	
-	protected double searchRadius;
-	
-	protected double threshold = 0;
+	final protected Parameters parameters;
+
+	final private Accumulator accumulator = new Accumulator();
 
 	final DoubleUnaryOperator rbf;  // from squaredDistance to weight
+
+	// rbf if it is a kernel, called directly so it can be inlined
+	final RadialKernel kernel;
 	
 	final boolean normalize;
 	
@@ -42,25 +53,63 @@ public class RBFInterpolator<T extends RealType<T>> extends RealPoint implements
 
 
 	public RBFInterpolator(
-			final KDTree< T > tree, 
+			final PointIndex index, 
 			final DoubleUnaryOperator rbf, 
 			final double searchRadius,
 			final double threshold,
 			final boolean normalize,
 			T t )
 	{
-		super( tree.numDimensions() );
+		super( index.numDimensions() );
 
 		this.rbf = rbf;
-		this.tree = tree;
-		this.search = new RadiusNeighborSearchOnKDTree< T >( tree );
+		this.kernel = rbf instanceof RadialKernel ? (RadialKernel)rbf : null;
+		this.index = index;
+		this.search = index.radiusSearch();
 		this.normalize = normalize;
-		this.searchRadius = searchRadius;
-		this.threshold = threshold;
+		this.parameters = new Parameters( searchRadius, threshold );
 
 		this.value = t.copy();
 	}
 
+	/**
+	 * An accessor that shares the index and the parameters of another.
+	 */
+	protected RBFInterpolator( final RBFInterpolator< T > other )
+	{
+		super( other );
+
+		this.rbf = other.rbf;
+		this.kernel = other.kernel;
+		this.index = other.index;
+		this.search = index.radiusSearch();
+		this.normalize = other.normalize;
+		this.parameters = other.parameters;
+
+		this.value = other.value.copy();
+	}
+
+	public RBFInterpolator(
+			final PointIndex index, 
+			final DoubleUnaryOperator rbf, 
+			final double searchRadius,
+			final boolean normalize,
+			T t )
+	{
+		this( index, rbf, searchRadius, 0, normalize, t.copy() );
+	}
+
+	public RBFInterpolator(
+			final KDTree< T > tree, 
+			final DoubleUnaryOperator rbf, 
+			final double searchRadius,
+			final double threshold,
+			final boolean normalize,
+			T t )
+	{
+		this( new KDTreeIndex<>( tree ), rbf, searchRadius, threshold, normalize, t );
+	}
+
 	public RBFInterpolator(
 			final KDTree< T > tree, 
 			final DoubleUnaryOperator rbf, 
@@ -73,83 +122,165 @@ public class RBFInterpolator<T extends RealType<T>> extends RealPoint implements
 	
 	public double getThreshold()
 	{
-		return this.threshold;
+		return parameters.threshold;
 	}
 
 	public void setThreshold( final double threshold )
 	{
-		this.threshold = threshold;
+		parameters.threshold = threshold;
 	}
 
 	public double getRadius( )
 	{
-		return searchRadius;
+		return parameters.searchRadius;
 	}
 
 	public void setRadius( final double radius )
 	{
-		this.searchRadius = radius;
+		parameters.searchRadius = radius;
 	}
 
 	public void increaseRadius( final double amount )
 	{
-		this.searchRadius += amount;
+		parameters.searchRadius += amount;
 	}
 
 	public void decreaseRadius( final double amount )
 	{
-		this.searchRadius -= amount;
+		parameters.searchRadius -= amount;
+	}
+
+	public OccupancyGrid getOccupancy()
+	{
+		return parameters.occupancy;
+	}
+
+	/**
+	 * Skips the search at 3d positions in empty cells of the grid, while the
+	 * search radius is at most the radius of the grid.
+	 *
+	 * @param occupancy the grid of the points of the index, or null
+	 */
+	public void setOccupancy( final OccupancyGrid occupancy )
+	{
+		parameters.occupancy = occupancy;
 	}
 
 	@Override
 	public T get()
 	{
-		search.search( this, searchRadius, false );
-
-		
 		// look if *this* position is within min/max interval of some hemi-brain block
-		
-		if ( search.numNeighbors() == 0 )
+
+		final OccupancyGrid occupancy = parameters.occupancy;
+		if( occupancy != null && parameters.searchRadius <= occupancy.getRadius() &&
+				occupancy.isEmpty( position[ 0 ], position[ 1 ], position[ 2 ] ) )
+		{
+			value.setZero();
+			return value;
+		}
+
+		accumulator.reset( parameters.threshold );
+		search.visit( this, parameters.searchRadius, accumulator );
+
+		return accumulated();
+	}
+
+	/**
+	 * Applies the kernel and threshold to neighbors that were searched
+	 * before at a radius of at least the search radius, instead of searching
+	 * the index. Neighbors beyond the search radius are skipped.
+	 *
+	 * @param values the values of the neighbors
+	 * @param squareDistances their squared distances
+	 * @param from the first neighbor
+	 * @param to one after the last neighbor
+	 * @return the value
+	 */
+	public T evaluate( final float[] values, final float[] squareDistances, final int from, final int to )
+	{
+		final double r = parameters.searchRadius;
+		final double r2 = r * r;
+
+		accumulator.reset( parameters.threshold );
+		for( int i = from; i < to; i++ )
+			if( squareDistances[ i ] <= r2 )
+				accumulator.accept( values[ i ], squareDistances[ i ] );
+
+		return accumulated();
+	}
+
+	private T accumulated()
+	{
+		if ( accumulator.numNeighbors == 0 )
 			value.setZero();
+		else if( normalize )
+			value.setReal( accumulator.sumIntensity / accumulator.sumWeights );
 		else
-		{
-			double sumIntensity = 0;
-			double sumWeights = 0;
+			value.setReal( accumulator.sumIntensity );
 
-			for ( int i = 0; i < search.numNeighbors(); ++i )
-			{
-				final Sampler< T > sampler = search.getSampler( i );
+		return value;
+	}
 
-				if ( sampler == null )
-					break;
+	/**
+	 * Sums value * rbf( squared distance ) of the neighbors while the index
+	 * is walked, so a query stores no neighbors.
+	 */
+	private class Accumulator implements NeighborVisitor
+	{
+		private double threshold;
 
-				final T t = sampler.get();
-				
-				if( t.getRealDouble() < threshold )
-					continue;
+		private int numNeighbors;
 
-				final double weight = rbf.applyAsDouble( search.getSquareDistance( i ) );
+		private double sumIntensity;
 
-				if( normalize )
-					sumWeights += weight;
+		private double sumWeights;
 
-				sumIntensity += t.getRealDouble() * weight;
-			}
+		public void reset( final double threshold )
+		{
+			this.threshold = threshold;
+			numNeighbors = 0;
+			sumIntensity = 0;
+			sumWeights = 0;
+		}
+
+		@Override
+		public void accept( final double t, final double squareDistance )
+		{
+			numNeighbors++;
+			if( t < threshold )
+				return;
+
+			final double weight = kernel != null ?
+					kernel.applyAsDouble( squareDistance ) :
+					rbf.applyAsDouble( squareDistance );
 
 			if( normalize )
-				value.setReal( sumIntensity / sumWeights );
-			else
-				value.setReal( sumIntensity );
-		}
+				sumWeights += weight;
 
-		return value;
+			sumIntensity += t * weight;
+		}
 	}
 
 	@Override
 	public RBFInterpolator< T > copy()
 	{
-		return new RBFInterpolator< T >( tree,
-				rbf, searchRadius, threshold, normalize, value );
+		final RBFInterpolator< T > copy = new RBFInterpolator< T >( index,
+				rbf, getRadius(), getThreshold(), normalize, value );
+		copy.setOccupancy( getOccupancy() );
+		return copy;
+	}
+
+	/**
+	 * Creates an accessor for another thread. It shares the index and the
+	 * search radius and threshold with this interpolator, so changing them
+	 * on one changes them on all shared copies, but it has its own position,
+	 * search and value.
+	 *
+	 * @return the accessor
+	 */
+	public RBFInterpolator< T > sharedCopy()
+	{
+		return new RBFInterpolator< T >( this );
 	}
 
 	@Override
@@ -159,12 +290,33 @@ public class RBFInterpolator<T extends RealType<T>> extends RealPoint implements
 	}
 	
 
+	/**
+	 * The search radius, threshold and occupancy grid of interpolators that
+	 * share them. They are volatile, so a change from the UI thread is seen
+	 * by the next get() of every rendering thread.
+	 */
+	public static class Parameters
+	{
+		volatile double searchRadius;
+
+		volatile double threshold;
+
+		volatile OccupancyGrid occupancy;
+
+		public Parameters( final double searchRadius, final double threshold )
+		{
+			this.searchRadius = searchRadius;
+			this.threshold = threshold;
+		}
+	}
+
 	public static class RBFInterpolatorFactory<T extends RealType<T>> implements InterpolatorFactory< T, KDTree< T > >
 	{
 		final double searchRad;
 		final DoubleUnaryOperator rbf;
 		final boolean normalize;
 		T val;
+		OccupancyGrid occupancy;
 
 		public RBFInterpolatorFactory( 
 				final DoubleUnaryOperator rbf,
@@ -178,10 +330,22 @@ public class RBFInterpolator<T extends RealType<T>> extends RealPoint implements
 			this.val = t;
 		}
 
+		/**
+		 * Sets the occupancy grid of all interpolators created afterwards,
+		 * see {@link RBFInterpolator#setOccupancy}.
+		 */
+		public RBFInterpolatorFactory<T> occupancy( final OccupancyGrid occupancy )
+		{
+			this.occupancy = occupancy;
+			return this;
+		}
+
 		@Override
 		public RBFInterpolator<T> create( final KDTree< T > tree )
 		{
-			return new RBFInterpolator<T>( tree, rbf, searchRad, false, val );
+			final RBFInterpolator<T> interp = new RBFInterpolator<T>( tree, rbf, searchRad, false, val );
+			interp.setOccupancy( occupancy );
+			return interp;
 		}
 
 		@Override
@@ -191,5 +355,50 @@ public class RBFInterpolator<T extends RealType<T>> extends RealPoint implements
 		{
 			return create( tree );
 		}
+
+		public RBFInterpolator<T> create( final PointIndex index )
+		{
+			final RBFInterpolator<T> interp = new RBFInterpolator<T>( index, rbf, searchRad, false, val );
+			interp.setOccupancy( occupancy );
+			return interp;
+		}
+	}
+
+	/**
+	 * Creates interpolators on any {@link PointIndex}, for use with
+	 * Views.interpolate.
+	 */
+	public static class RBFIndexInterpolatorFactory<T extends RealType<T>> implements InterpolatorFactory< T, PointIndex >
+	{
+		final RBFInterpolatorFactory< T > factory;
+
+		public RBFIndexInterpolatorFactory( 
+				final DoubleUnaryOperator rbf,
+				final double sr, 
+				final boolean normalize, 
+				T t )
+		{
+			factory = new RBFInterpolatorFactory<>( rbf, sr, normalize, t );
+		}
+
+		public RBFIndexInterpolatorFactory<T> occupancy( final OccupancyGrid occupancy )
+		{
+			factory.occupancy( occupancy );
+			return this;
+		}
+
+		@Override
+		public RBFInterpolator<T> create( final PointIndex index )
+		{
+			return factory.create( index );
+		}
+
+		@Override
+		public RealRandomAccess< T > create( 
+				final PointIndex index,
+				final RealInterval interval )
+		{
+			return create( index );
+		}
 	}
 }
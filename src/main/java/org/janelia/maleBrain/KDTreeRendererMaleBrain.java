@@ -1,16 +1,12 @@
 package org.janelia.maleBrain;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.function.DoubleUnaryOperator;
-import java.util.stream.Stream;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
@@ -20,6 +16,15 @@ import org.scijava.ui.behaviour.KeyStrokeAdder.Factory;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.util.Actions;
 import org.janelia.render.KDTreeRendererRaw.RKActions;
+import org.janelia.render.FftDensityRenderer;
+import org.janelia.render.NeighborCache;
+import org.janelia.render.RBFRowRenderer;
+import org.janelia.render.data.CsvPointReader;
+import org.janelia.render.data.MappedPointStore;
+import org.janelia.render.data.SynColumns;
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.index.MappedKDTree;
+import org.janelia.render.kernel.RadialKernel;
 import org.janelia.saalfeldlab.n5.imglib2.RandomAccessibleLoader;
 
 import org.scijava.ui.behaviour.util.InputActionBindings;
@@ -35,7 +40,6 @@ import ij.ImagePlus;
 import net.imglib2.FinalInterval;
 import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
-import net.imglib2.KDTree;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
@@ -56,10 +60,7 @@ import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.neighborsearch.RBFInterpolator;
-import net.imglib2.loops.LoopBuilder;
-import net.imglib2.parallel.DefaultTaskExecutor;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.Scale3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.PrimitiveType;
@@ -72,7 +73,6 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 import picocli.CommandLine;
@@ -103,27 +103,48 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 
 	@Option( names = { "-o",  "--output"}, required = false, description = "The output file." )
 	private String outputFile;
+
+	@Option( names = { "-c", "--cache" }, required = false, description = "Cache points in a memory-mapped store next to the csv file" )
+	private boolean cache = false;
+
+	@Option( names = { "-m", "--maxRadius" }, required = false, description = "Cache the neighbors within this radius per block, so radius and threshold changes up to it do not search again" )
+	private double maxRadius = 0;
+
+	@Option( names = { "-f", "--fft" }, required = false, description = "Render the output by FFT convolution of a point histogram, faster if the radius spans many voxels" )
+	private boolean fft = false;
+
+	@Option( names = { "-v", "--voxelSize" }, required = false, description = "Voxel size of the neighbor cache in point units, a quarter of the radius by default" )
+	private double voxelSize = 0;
 		
 
 	static final double searchDist = 150;
 	static final double searchDistSqr = searchDist * searchDist;
 	static final double invSquareSearchDistance = 1.0 / searchDist / searchDist; 
+	public static final RadialKernel rbfKernel = RadialKernel.linear( 50, searchDist );
 	
-	KDTree< T > tree;
+	FlatKDTree tree;
+	T type;
 	Interval itvl;
 
 	public KDTreeRendererMaleBrain()
 	{
 	}
 
-	public KDTreeRendererMaleBrain( List<T> vals, List<P> pts )
+	public KDTreeRendererMaleBrain( List<T> vals, List<P> pts, T type )
 	{
-		buildTree( vals, pts );
+		buildTree( vals, pts, type );
 	}
 	
-	public void buildTree( List<T> vals, List<P> pts )
+	public KDTreeRendererMaleBrain( FlatKDTree tree, T type )
 	{
-		tree = new KDTree< T >( vals, pts );
+		this.tree = tree;
+		this.type = type.copy();
+	}
+	
+	public void buildTree( List<T> vals, List<P> pts, T type )
+	{
+		tree = FlatKDTree.build( vals, pts );
+		this.type = type.copy();
 	}
 
 	public void setInterval( Interval itvl )
@@ -142,10 +163,10 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 	{
 		return new RBFInterpolator.RBFInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() ).create( tree );
+						type.copy() ).create( tree );
 	}
 	
-	public KDTree<T> getTree()
+	public FlatKDTree getTree()
 	{
 		return tree;
 	}
@@ -162,10 +183,10 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 			final double searchDist,
 			final DoubleUnaryOperator rbf )
 	{	
-		RBFInterpolator.RBFInterpolatorFactory< T > interp = 
-				new RBFInterpolator.RBFInterpolatorFactory< T >( 
+		RBFInterpolator.RBFIndexInterpolatorFactory< T > interp = 
+				new RBFInterpolator.RBFIndexInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() );
+						type.copy() );
 
 		return Views.interpolate( tree, interp );
 	}
@@ -186,17 +207,25 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 
 		// load synapses
 		System.out.println( "loading");
-		KDTreeRendererMaleBrain<DoubleType,RealPoint> treeRenderer = load( tbarPath );
+		KDTreeRendererMaleBrain<DoubleType,?> treeRenderer = cache ? loadCached( tbarPath ) : load( tbarPath );
 		Interval itvl = treeRenderer.getInterval();
 
 //		RealRandomAccessible<DoubleType> source = treeRenderer.getRealRandomAccessible( radius, KDTreeRendererMaleBrain::rbf );
-		RBFRealRandomAccessible<DoubleType> source = treeRenderer.getRbfRealRandomAccessible( radius, KDTreeRendererMaleBrain::rbf );
+		RBFRealRandomAccessible<DoubleType> source = treeRenderer.getRbfRealRandomAccessible( radius, rbfKernel );
 		source.setThreshold( threshold );
 
 		if( outputFile == null )
 		{
 			// This works
-			BdvStackSource<DoubleType> bdv = BdvFunctions.show( source, itvl, "tbar render", bdvOpts );
+			BdvStackSource<DoubleType> bdv;
+			if( maxRadius > 0 )
+			{
+				final double v = voxelSize > 0 ? voxelSize : radius / 4;
+				final NeighborCache<DoubleType> neighbors = new NeighborCache<>( source.interp, treeRenderer.tree, maxRadius, v );
+				bdv = BdvFunctions.show( neighbors.interval( itvl ), "tbar render", bdvOpts.sourceTransform( v, v, v ) );
+			}
+			else
+				bdv = BdvFunctions.show( source, itvl, "tbar render", bdvOpts );
 			
 			InputTriggerConfig trigConfig = bdv.getBdvHandle().getViewerPanel().getOptionValues().getInputTriggerConfig();
 			if( trigConfig == null )
@@ -232,9 +261,22 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 			final ArrayImg<FloatType, FloatArray> out = ArrayImgs.floats( Intervals.dimensionsAsLongArray(renderItvl));
 
 
+			// voxel v is at v / totalTransform in points
 			System.out.println( "copying");
-			IntervalView<DoubleType> img = Views.interval( Views.raster( RealViews.affine(source, totalTransform) ), renderItvl );
-			LoopBuilder.setImages(img, out).multiThreaded( new DefaultTaskExecutor( Executors.newFixedThreadPool( nThreads ))).forEachPixel( (x,y) -> { y.setReal( x.getRealDouble() );});
+			final double[] voxelSize = new double[ 3 ];
+			for( int d = 0; d < 3; d++ )
+				voxelSize[ d ] = 1 / totalTransform.get( d, d );
+
+			if( fft )
+				new FftDensityRenderer( treeRenderer.tree.getPositions(), treeRenderer.tree.getValues(), rbfKernel, radius )
+						.threshold( threshold )
+						.pool( new ForkJoinPool( nThreads ) )
+						.render( out, voxelSize );
+			else
+				new RBFRowRenderer( treeRenderer.tree, rbfKernel, radius )
+						.threshold( threshold )
+						.pool( new ForkJoinPool( nThreads ) )
+						.render( out, voxelSize );
 
 			System.out.println( "writing");
 			ImagePlus imp = ImageJFunctions.wrap(out, "result");
@@ -355,8 +397,8 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 			this.kdtr = kdtr;
 			this.interpFactory = 
 					new RBFInterpolator.RBFInterpolatorFactory< T >( 
-							KDTreeRendererMaleBrain::rbf, startingRad, false,
-							kdtr.tree.firstElement().copy() );
+							rbfKernel, startingRad, false,
+							kdtr.type.copy() );
 			interp = interpFactory.create( kdtr.tree );
 		}
 		
@@ -397,12 +439,12 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess() {
-			return interp.copy();
+			return interp.sharedCopy();
 		}
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess(RealInterval arg0) {
-			return interp.copy();
+			return interp.sharedCopy();
 		}
 		
 	}
@@ -466,55 +508,59 @@ public class KDTreeRendererMaleBrain<T extends RealType<T>,P extends RealLocaliz
 	}
 	
 
-	public static KDTreeRendererMaleBrain<DoubleType,RealPoint> load( String synapseFilePath )
+	public static KDTreeRendererMaleBrain<DoubleType,RealLocalizable> load( String synapseFilePath )
 	{
 		System.out.println( synapseFilePath );
+		System.out.println( "loading");
+		try
+		{
+			final SynColumns pts = new CsvPointReader().load( synapseFilePath );
+
+			final KDTreeRendererMaleBrain<DoubleType,RealLocalizable> treeRenderer =
+					new KDTreeRendererMaleBrain<>( pts.values( new DoubleType() ), pts.positions(), new DoubleType() );
+			treeRenderer.setInterval( pts.getInterval() );
+			System.out.println( "itvl: " + Intervals.toString( treeRenderer.getInterval() ));
+			System.out.println( "done");
+			return treeRenderer;
+		}
+		catch( IOException e )
+		{
+			e.printStackTrace();
+		}
 
-		boolean success = false;
-		Interval itvl;
+		System.err.println( "Could not read synapses/tbars - returning null" );
+		return null;
+	}
 
-		ArrayList<RealPoint> pts = new ArrayList<>();
-		ArrayList<DoubleType> vals = new ArrayList<>();
+	/**
+	 * Loads the points through a memory-mapped point store cached next to
+	 * the csv file, so that only the first load parses the csv.
+	 *
+	 * @param synapseFilePath csv file of x,y,z,confidence
+	 * @return the renderer or null if the points could not be read
+	 */
+	public static KDTreeRendererMaleBrain<DoubleType,RealLocalizable> loadCached( String synapseFilePath )
+	{
+		System.out.println( synapseFilePath );
+		try
+		{
+			final MappedPointStore store = MappedPointStore.openOrCreate( synapseFilePath,
+					writer -> new CsvPointReader().read( synapseFilePath, writer ) );
 
-		System.out.println( "loading");
-		long[] min = new long[3];
-		long[] max = new long[3];
-		Arrays.fill( min, Long.MAX_VALUE);
-		Arrays.fill( max, Long.MIN_VALUE);
-
-		try {
-			Stream<String> lines = Files.lines(Paths.get(synapseFilePath));
-			lines.forEach( l -> {
-				String[] s = l.split(",");
-
-				RealPoint p = new RealPoint( Double.parseDouble(s[0]), Double.parseDouble(s[1]), Double.parseDouble(s[2]));
-				pts.add( p );
-
-				vals.add(new DoubleType(Double.parseDouble(s[3])));
-//				vals.add( new DoubleType( 1 ));
-
-				for( int d = 0; d < 3; d++ )
-				{
-					min[d] = p.getDoublePosition(d) < min[d] ? (long)p.getDoublePosition(d) : min[d];
-					max[d] = p.getDoublePosition(d) > max[d] ? (long)p.getDoublePosition(d) : max[d];
-				}
-			});
-		} catch (IOException e) {
+			final KDTreeRendererMaleBrain<DoubleType,RealLocalizable> treeRenderer =
+					new KDTreeRendererMaleBrain<>( new MappedKDTree( store ).toFlatKDTree(), new DoubleType() );
+			treeRenderer.setInterval( store.getInterval() );
+			System.out.println( "itvl: " + Intervals.toString( treeRenderer.getInterval() ));
+			System.out.println( "done");
+			return treeRenderer;
+		}
+		catch( Exception e )
+		{
 			e.printStackTrace();
 		}
 
-		itvl = new FinalInterval( min, max );
-		System.out.println( "itvl: " + Intervals.toString(itvl));
-
-		final KDTreeRendererMaleBrain<DoubleType,RealPoint> treeRenderer = new KDTreeRendererMaleBrain<>(vals, pts);
-		treeRenderer.setInterval(itvl);
-		success = true;
-		
-		if( !success )
-			System.err.println( "Could not read synapses/tbars - returning null" );
-		
-		System.out.println( "done");
-		return treeRenderer;
+		System.err.println( "Could not read synapses/tbars - returning null" );
+		return null;
 	}
 
 	@SuppressWarnings( { "unchecked", "rawtypes" } )
@@ -0,0 +1,107 @@
+package org.janelia.render;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A 3d float image for splatting from many threads at once.
+ * <p>
+ * Every voxel is the bits of a float in an AtomicIntegerArray per z slice,
+ * {@link #add} retries a compare-and-set until no other thread changed the
+ * voxel in between, so overlapping footprints of points splatted in
+ * parallel lose no counts and need no locks. Slices keep the arrays small
+ * for large volumes. When all threads are done, {@link #addTo} adds the
+ * sums to an output image.
+ */
+public class AtomicAccumulator
+{
+	private final long[] min;
+
+	private final int[] dims = new int[ 3 ];
+
+	private final AtomicIntegerArray[] slices;
+
+	/**
+	 * @param interval the voxels, adds outside of it are skipped
+	 */
+	public AtomicAccumulator( final Interval interval )
+	{
+		if( (long)interval.dimension( 0 ) * interval.dimension( 1 ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "slices of more than 2^31 voxels" );
+
+		min = Intervals.minAsLongArray( interval );
+		for( int d = 0; d < 3; d++ )
+			dims[ d ] = (int)interval.dimension( d );
+
+		slices = new AtomicIntegerArray[ dims[ 2 ] ];
+		for( int z = 0; z < dims[ 2 ]; z++ )
+			slices[ z ] = new AtomicIntegerArray( dims[ 0 ] * dims[ 1 ] );
+	}
+
+	public Interval getInterval()
+	{
+		final long[] max = new long[ 3 ];
+		for( int d = 0; d < 3; d++ )
+			max[ d ] = min[ d ] + dims[ d ] - 1;
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Adds a value to a voxel, from any thread.
+	 *
+	 * @return false if the voxel is outside of the interval
+	 */
+	public boolean add( final long x, final long y, final long z, final float value )
+	{
+		final long rx = x - min[ 0 ];
+		final long ry = y - min[ 1 ];
+		final long rz = z - min[ 2 ];
+		if( rx < 0 || ry < 0 || rz < 0 || rx >= dims[ 0 ] || ry >= dims[ 1 ] || rz >= dims[ 2 ] )
+			return false;
+
+		final AtomicIntegerArray slice = slices[ (int)rz ];
+		final int i = (int)ry * dims[ 0 ] + (int)rx;
+		int current;
+		int next;
+		do
+		{
+			current = slice.get( i );
+			next = Float.floatToRawIntBits( Float.intBitsToFloat( current ) + value );
+		}
+		while( !slice.compareAndSet( i, current, next ) );
+
+		return true;
+	}
+
+	public float get( final long x, final long y, final long z )
+	{
+		final int i = (int)( y - min[ 1 ] ) * dims[ 0 ] + (int)( x - min[ 0 ] );
+		return Float.intBitsToFloat( slices[ (int)( z - min[ 2 ] ) ].get( i ) );
+	}
+
+	/**
+	 * Adds the sums to the voxels of an image with the same interval, after
+	 * all adds are done.
+	 */
+	public < T extends RealType< T > > void addTo( final RandomAccessibleInterval< T > rai )
+	{
+		final Cursor< T > c = Views.flatIterable( Views.interval( rai, getInterval() ) ).cursor();
+		for( int z = 0; z < dims[ 2 ]; z++ )
+		{
+			final AtomicIntegerArray slice = slices[ z ];
+			for( int i = 0; i < slice.length(); i++ )
+			{
+				final T v = c.next();
+				v.setReal( v.getRealDouble() + Float.intBitsToFloat( slice.get( i ) ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package org.janelia.render;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.index.OccupancyGrid;
+import org.janelia.render.index.PointIndex;
+import org.janelia.render.kernel.RadialKernel;
+
+import bdv.util.RandomAccessibleIntervalMipmapSource;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.neighborsearch.RBFInterpolator;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * The RBF density of a point cloud at a series of resolutions, for
+ * browsing it zoomed out in BDV.
+ * <p>
+ * Level 0 is the density of all points at voxelSize, with the kernel and
+ * search radius of the interpolator it stands in for. Every coarser level
+ * doubles the voxel size and aggregates the points of the level below per
+ * voxel into one point at their weighted centroid with the sum of their
+ * values. Its kernel is widened to sqrt( radius^2 + voxel^2 ) with the
+ * same integral, see {@link RadialKernel#widen}, so a coarse voxel sees
+ * all points it covers and the density keeps its scale without aliasing.
+ * <p>
+ * Every level has an {@link OccupancyGrid}. Cached cells whose whole box
+ * is empty in it stay zero without evaluating a voxel, and voxels of other
+ * cells in empty grid cells skip the search.
+ * <p>
+ * The levels are fixed when the pyramid is built, so changes of the search
+ * radius or threshold of an interpolator do not reach it.
+ */
+public class DensityPyramid
+{
+	private final double voxelSize;
+
+	private final PointIndex[] indexes;
+
+	private final RadialKernel[] kernels;
+
+	private final OccupancyGrid[] occupancies;
+
+	/**
+	 * @param index the index of all points, used for level 0
+	 * @param xyz the interleaved positions of all points
+	 * @param values the values of all points
+	 * @param kernel the kernel of level 0
+	 * @param searchRadius the search radius of level 0, the kernel is cut
+	 * off at it if it is smaller than the radius of the kernel
+	 * @param voxelSize the voxel size of level 0 in point coordinates
+	 * @param numLevels the number of levels
+	 */
+	public DensityPyramid(
+			final PointIndex index,
+			final double[] xyz,
+			final double[] values,
+			final RadialKernel kernel,
+			final double searchRadius,
+			final double voxelSize,
+			final int numLevels )
+	{
+		if( numLevels < 1 )
+			throw new IllegalArgumentException( "need at least one level" );
+
+		this.voxelSize = voxelSize;
+		indexes = new PointIndex[ numLevels ];
+		kernels = new RadialKernel[ numLevels ];
+		occupancies = new OccupancyGrid[ numLevels ];
+		indexes[ 0 ] = index;
+		kernels[ 0 ] = searchRadius < kernel.getRadius() ? new RadialKernel( kernel, searchRadius ) : kernel;
+		occupancies[ 0 ] = new OccupancyGrid( xyz, kernels[ 0 ].getRadius() );
+
+		double[][] points = { xyz, values };
+		for( int s = 1; s < numLevels; s++ )
+		{
+			final double v = voxelSize( s );
+			points = aggregate( points[ 0 ], points[ 1 ], v );
+			indexes[ s ] = new FlatKDTree( points[ 0 ], points[ 1 ] );
+
+			final double r = kernels[ 0 ].getRadius();
+			kernels[ s ] = kernels[ 0 ].widen( Math.sqrt( r * r + v * v ) );
+			occupancies[ s ] = new OccupancyGrid( points[ 0 ], kernels[ s ].getRadius() );
+		}
+	}
+
+	/**
+	 * @return the number of levels until the largest side of the interval
+	 * is at most 256 voxels
+	 */
+	public static int numLevels( final RealInterval interval, final double voxelSize )
+	{
+		double size = 0;
+		for( int d = 0; d < interval.numDimensions(); d++ )
+			size = Math.max( size, ( interval.realMax( d ) - interval.realMin( d ) ) / voxelSize );
+
+		int numLevels = 1;
+		while( size > 256 )
+		{
+			size /= 2;
+			numLevels++;
+		}
+		return numLevels;
+	}
+
+	public int numLevels()
+	{
+		return indexes.length;
+	}
+
+	public double voxelSize( final int level )
+	{
+		return voxelSize * ( 1 << level );
+	}
+
+	/**
+	 * @return the density of a level in point coordinates
+	 */
+	public RealRandomAccessible< DoubleType > density( final int level )
+	{
+		final RadialKernel kernel = kernels[ level ];
+		return Views.interpolate( indexes[ level ],
+				new RBFInterpolator.RBFIndexInterpolatorFactory< DoubleType >(
+						kernel, kernel.getRadius(), false, new DoubleType() ).occupancy( occupancies[ level ] ) );
+	}
+
+	/**
+	 * All levels as a mipmap source of cached cell images, see
+	 * {@link KDTreeRendererRaw#cachedDensity}. Show it through
+	 * asVolatile to compute cells on the fetcher threads of BDV.
+	 *
+	 * @param interval the bounds of the density in point coordinates
+	 * @param name the name of the source
+	 * @return the source
+	 */
+	public RandomAccessibleIntervalMipmapSource< FloatType > source( final RealInterval interval, final String name ) throws IOException
+	{
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType >[] mipmaps = new RandomAccessibleInterval[ numLevels() ];
+		final double[][] scales = new double[ numLevels() ][];
+		for( int s = 0; s < numLevels(); s++ )
+		{
+			final double v = voxelSize( s );
+			mipmaps[ s ] = KDTreeRendererRaw.cachedDensity( density( s ), interval, v, new int[]{ 64, 64, 64 }, occupancies[ s ] );
+			scales[ s ] = new double[]{ v, v, v };
+		}
+
+		return new RandomAccessibleIntervalMipmapSource<>(
+				mipmaps,
+				new FloatType(),
+				scales,
+				new FinalVoxelDimensions( "px", 1, 1, 1 ),
+				name );
+	}
+
+	/**
+	 * Merges the points of every voxel into one at their centroid weighted
+	 * by value, with the sum of their values. Voxels whose values sum to
+	 * zero are dropped, as are points without a position.
+	 *
+	 * @return the interleaved positions and the values of the merged points
+	 */
+	public static double[][] aggregate( final double[] xyz, final double[] values, final double voxelSize )
+	{
+		final int n = values.length;
+		final long[] keys = new long[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			final double x = xyz[ 3 * i ];
+			final double y = xyz[ 3 * i + 1 ];
+			final double z = xyz[ 3 * i + 2 ];
+			if( Double.isNaN( x ) || Double.isNaN( y ) || Double.isNaN( z ) )
+				keys[ i ] = -1;
+			else
+				keys[ i ] = key( voxel( x, voxelSize ), voxel( y, voxelSize ), voxel( z, voxelSize ) );
+		}
+
+		// the distinct voxels, sorted
+		final long[] voxels = keys.clone();
+		Arrays.sort( voxels );
+		int m = 0;
+		for( int i = 0; i < n; i++ )
+			if( voxels[ i ] >= 0 && ( m == 0 || voxels[ i ] != voxels[ m - 1 ] ) )
+				voxels[ m++ ] = voxels[ i ];
+
+		final double[] sums = new double[ m ];
+		final double[] weighted = new double[ 3 * m ];
+		for( int i = 0; i < n; i++ )
+		{
+			if( keys[ i ] < 0 )
+				continue;
+
+			final int j = Arrays.binarySearch( voxels, 0, m, keys[ i ] );
+			final double v = values[ i ];
+			sums[ j ] += v;
+			for( int d = 0; d < 3; d++ )
+				weighted[ 3 * j + d ] += v * xyz[ 3 * i + d ];
+		}
+
+		int k = 0;
+		for( int j = 0; j < m; j++ )
+			if( sums[ j ] != 0 )
+				k++;
+
+		final double[] outXyz = new double[ 3 * k ];
+		final double[] outValues = new double[ k ];
+		k = 0;
+		for( int j = 0; j < m; j++ )
+		{
+			if( sums[ j ] == 0 )
+				continue;
+
+			for( int d = 0; d < 3; d++ )
+				outXyz[ 3 * k + d ] = weighted[ 3 * j + d ] / sums[ j ];
+
+			outValues[ k++ ] = sums[ j ];
+		}
+		return new double[][]{ outXyz, outValues };
+	}
+
+	private static long voxel( final double x, final double voxelSize )
+	{
+		return (long)Math.floor( x / voxelSize );
+	}
+
+	private static long key( final long vx, final long vy, final long vz )
+	{
+		// 21 bits per axis, never negative
+		final long mask = ( 1L << 21 ) - 1;
+		return ( ( vx & mask ) << 42 ) | ( ( vy & mask ) << 21 ) | ( vz & mask );
+	}
+}
@@ -0,0 +1,435 @@
+package org.janelia.render;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.janelia.render.kernel.RadialKernel;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Renders the RBF density of points by convolving a histogram of the
+ * points with the kernel, for kernels that are wide compared to the voxels.
+ * <p>
+ * Every point is splatted into the histogram at output resolution with
+ * trilinear weights, and the histogram is convolved with the kernel
+ * sampled at the voxel offsets by FFT. The output is split into tiles of
+ * an FFT size minus the kernel diameter, each tile reads the histogram of
+ * its neighborhood, so the tiles overlap by the kernel radius and the
+ * cyclic convolution does not wrap. Tiles are rendered in parallel.
+ * <p>
+ * The cost is linear in the number of points and about n log n in the
+ * number of voxels, independent of the number of neighbors. The result is
+ * the RBF sum of an unnormalized
+ * {@link net.imglib2.interpolation.neighborsearch.RBFInterpolator} with
+ * the kernel linearly interpolated between voxel offsets, so it matches the
+ * RBF sum up to a discretization error that shrinks with the voxel size.
+ */
+public class FftDensityRenderer
+{
+	public static final int DEFAULT_FFT_SIZE = 128;
+
+	private final double[] xyz;
+
+	private final double[] values;
+
+	private final RadialKernel kernel;
+
+	private final double radius;
+
+	private double threshold = 0;
+
+	private int fftSize = DEFAULT_FFT_SIZE;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * @param xyz interleaved coordinates of the points
+	 * @param values one value per point
+	 * @param kernel from squared distance to weight
+	 * @param radius the search radius, the kernel is zero beyond it
+	 */
+	public FftDensityRenderer( final double[] xyz, final double[] values, final RadialKernel kernel, final double radius )
+	{
+		this.xyz = xyz;
+		this.values = values;
+		this.kernel = kernel;
+		this.radius = radius;
+	}
+
+	/**
+	 * Points with smaller values are skipped.
+	 */
+	public FftDensityRenderer threshold( final double threshold )
+	{
+		this.threshold = threshold;
+		return this;
+	}
+
+	/**
+	 * The FFT size per axis, a power of two. It is increased to at least
+	 * twice the kernel diameter and decreased to fit thin outputs.
+	 */
+	public FftDensityRenderer fftSize( final int fftSize )
+	{
+		if( Integer.bitCount( fftSize ) != 1 )
+			throw new IllegalArgumentException( "fft size must be a power of two, but is " + fftSize );
+
+		this.fftSize = fftSize;
+		return this;
+	}
+
+	public FftDensityRenderer pool( final ForkJoinPool pool )
+	{
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Sets every voxel of a 3d image to the density at its position.
+	 *
+	 * @param rai the output
+	 * @param voxelSize voxel v is at v * voxelSize in point coordinates
+	 */
+	public < T extends RealType< T > > void render( final RandomAccessibleInterval< T > rai, final double[] voxelSize )
+	{
+		final long[] outMin = Intervals.minAsLongArray( rai );
+
+		// kernel radius in voxels, fft size and tile size per axis
+		final int[] k = new int[ 3 ];
+		final int[] n = new int[ 3 ];
+		final int[] tile = new int[ 3 ];
+		final int[] numTiles = new int[ 3 ];
+		for( int d = 0; d < 3; d++ )
+		{
+			k[ d ] = (int)Math.ceil( radius / voxelSize[ d ] );
+			n[ d ] = Math.max( fftSize, nextPowerOfTwo( 4 * k[ d ] + 2 ) );
+			n[ d ] = Math.min( n[ d ], nextPowerOfTwo( (int)rai.dimension( d ) + 2 * k[ d ] ) );
+			tile[ d ] = n[ d ] - 2 * k[ d ];
+			numTiles[ d ] = (int)( ( rai.dimension( d ) + tile[ d ] - 1 ) / tile[ d ] );
+		}
+
+		final int totalTiles = numTiles[ 0 ] * numTiles[ 1 ] * numTiles[ 2 ];
+		final Fft[] ffts = { new Fft( n[ 0 ] ), new Fft( n[ 1 ] ), new Fft( n[ 2 ] ) };
+
+		final double[][] kernelFft = kernelFft( voxelSize, k, n, ffts );
+
+		// counting sort of the points by the tiles whose neighborhood they touch
+		final int numPoints = values.length;
+		final int[] tileRanges = new int[ 6 * numPoints ];
+		final int[] offsets = new int[ totalTiles + 1 ];
+		for( int i = 0; i < numPoints; i++ )
+		{
+			if( !tileRange( i, voxelSize, outMin, k, tile, numTiles, tileRanges ) )
+			{
+				tileRanges[ 6 * i ] = -1;
+				continue;
+			}
+			forEachTile( tileRanges, i, numTiles, t -> offsets[ t + 1 ]++ );
+		}
+
+		for( int t = 0; t < totalTiles; t++ )
+			offsets[ t + 1 ] += offsets[ t ];
+
+		final int[] buckets = new int[ offsets[ totalTiles ] ];
+		final int[] next = Arrays.copyOf( offsets, totalTiles );
+		for( int i = 0; i < numPoints; i++ )
+		{
+			final int pt = i;
+			if( tileRanges[ 6 * i ] >= 0 )
+				forEachTile( tileRanges, i, numTiles, t -> buckets[ next[ t ]++ ] = pt );
+		}
+
+		pool.submit( () -> IntStream.range( 0, totalTiles ).parallel()
+				.forEach( t -> renderTile( t, rai, outMin, voxelSize, k, n, tile, numTiles, ffts, kernelFft, buckets, offsets ) ) )
+				.join();
+	}
+
+	/**
+	 * The spectrum of the kernel sampled at the voxel offsets, centered at
+	 * index 0 of the cyclic fft grid.
+	 */
+	private double[][] kernelFft( final double[] voxelSize, final int[] k, final int[] n, final Fft[] ffts )
+	{
+		final double[] re = new double[ n[ 0 ] * n[ 1 ] * n[ 2 ] ];
+		final double[] im = new double[ re.length ];
+		final double r2 = radius * radius;
+		for( int z = -k[ 2 ]; z <= k[ 2 ]; z++ )
+			for( int y = -k[ 1 ]; y <= k[ 1 ]; y++ )
+				for( int x = -k[ 0 ]; x <= k[ 0 ]; x++ )
+				{
+					final double dx = x * voxelSize[ 0 ];
+					final double dy = y * voxelSize[ 1 ];
+					final double dz = z * voxelSize[ 2 ];
+					final double d2 = dx * dx + dy * dy + dz * dz;
+					if( d2 <= r2 )
+					{
+						final int i = ( Math.floorMod( z, n[ 2 ] ) * n[ 1 ] + Math.floorMod( y, n[ 1 ] ) ) * n[ 0 ] + Math.floorMod( x, n[ 0 ] );
+						re[ i ] = kernel.applyAsDouble( d2 );
+					}
+				}
+
+		fft3( re, im, n, ffts, false );
+		return new double[][]{ re, im };
+	}
+
+	/**
+	 * Finds the tiles whose neighborhood has a voxel of the splat of a
+	 * point.
+	 *
+	 * @return false if the point has no tile
+	 */
+	private boolean tileRange( final int i, final double[] voxelSize, final long[] outMin, final int[] k, final int[] tile, final int[] numTiles, final int[] tileRanges )
+	{
+		if( values[ i ] < threshold )
+			return false;
+
+		for( int d = 0; d < 3; d++ )
+		{
+			final double q = xyz[ 3 * i + d ] / voxelSize[ d ] - outMin[ d ];
+			if( Double.isNaN( q ) )
+				return false;
+
+			// the splat covers voxels f and f + 1, tile j has a neighborhood of [ j * tile - k, ( j + 1 ) * tile + k )
+			final long f = (long)Math.floor( q );
+			final long lo = Math.max( 0, Math.floorDiv( f - k[ d ], tile[ d ] ) );
+			final long hi = Math.min( numTiles[ d ] - 1, Math.floorDiv( f + 1 + k[ d ], tile[ d ] ) );
+			if( lo > hi )
+				return false;
+
+			tileRanges[ 6 * i + 2 * d ] = (int)lo;
+			tileRanges[ 6 * i + 2 * d + 1 ] = (int)hi;
+		}
+		return true;
+	}
+
+	private interface TileConsumer
+	{
+		public void accept( int tile );
+	}
+
+	private static void forEachTile( final int[] tileRanges, final int i, final int[] numTiles, final TileConsumer consumer )
+	{
+		final int o = 6 * i;
+		for( int tz = tileRanges[ o + 4 ]; tz <= tileRanges[ o + 5 ]; tz++ )
+			for( int ty = tileRanges[ o + 2 ]; ty <= tileRanges[ o + 3 ]; ty++ )
+				for( int tx = tileRanges[ o ]; tx <= tileRanges[ o + 1 ]; tx++ )
+					consumer.accept( ( tz * numTiles[ 1 ] + ty ) * numTiles[ 0 ] + tx );
+	}
+
+	private < T extends RealType< T > > void renderTile(
+			final int t,
+			final RandomAccessibleInterval< T > rai,
+			final long[] outMin,
+			final double[] voxelSize,
+			final int[] k,
+			final int[] n,
+			final int[] tile,
+			final int[] numTiles,
+			final Fft[] ffts,
+			final double[][] kernelFft,
+			final int[] buckets,
+			final int[] offsets )
+	{
+		// the first voxel of the tile and of its neighborhood, relative to the output
+		final long[] tileMin = new long[ 3 ];
+		final long[] regionMin = new long[ 3 ];
+		final int[] tileSize = new int[ 3 ];
+		int r = t;
+		for( int d = 0; d < 3; d++ )
+		{
+			tileMin[ d ] = (long)( r % numTiles[ d ] ) * tile[ d ];
+			r /= numTiles[ d ];
+			regionMin[ d ] = tileMin[ d ] - k[ d ];
+			tileSize[ d ] = (int)Math.min( tile[ d ], rai.dimension( d ) - tileMin[ d ] );
+		}
+
+		final double[] re = new double[ n[ 0 ] * n[ 1 ] * n[ 2 ] ];
+		final double[] im = new double[ re.length ];
+		if( offsets[ t + 1 ] > offsets[ t ] )
+		{
+			for( int b = offsets[ t ]; b < offsets[ t + 1 ]; b++ )
+				splat( buckets[ b ], re, voxelSize, outMin, regionMin, n );
+
+			fft3( re, im, n, ffts, false );
+			final double[] kre = kernelFft[ 0 ];
+			final double[] kim = kernelFft[ 1 ];
+			for( int i = 0; i < re.length; i++ )
+			{
+				final double a = re[ i ];
+				final double b = im[ i ];
+				re[ i ] = a * kre[ i ] - b * kim[ i ];
+				im[ i ] = a * kim[ i ] + b * kre[ i ];
+			}
+			fft3( re, im, n, ffts, true );
+		}
+
+		final double scale = 1.0 / re.length;
+		final RandomAccess< T > ra = rai.randomAccess();
+		for( int z = 0; z < tileSize[ 2 ]; z++ )
+			for( int y = 0; y < tileSize[ 1 ]; y++ )
+			{
+				ra.setPosition( outMin[ 0 ] + tileMin[ 0 ], 0 );
+				ra.setPosition( outMin[ 1 ] + tileMin[ 1 ] + y, 1 );
+				ra.setPosition( outMin[ 2 ] + tileMin[ 2 ] + z, 2 );
+				final int row = ( ( z + k[ 2 ] ) * n[ 1 ] + y + k[ 1 ] ) * n[ 0 ] + k[ 0 ];
+				for( int x = 0; x < tileSize[ 0 ]; x++ )
+				{
+					ra.get().setReal( re[ row + x ] * scale );
+					ra.fwd( 0 );
+				}
+			}
+	}
+
+	/**
+	 * Adds the value of a point to the eight voxels around it, weighted
+	 * trilinearly, those outside the neighborhood are skipped.
+	 */
+	private void splat( final int i, final double[] hist, final double[] voxelSize, final long[] outMin, final long[] regionMin, final int[] n )
+	{
+		final int[] f = new int[ 3 ];
+		final double[] w = new double[ 3 ];
+		for( int d = 0; d < 3; d++ )
+		{
+			final double q = xyz[ 3 * i + d ] / voxelSize[ d ] - outMin[ d ] - regionMin[ d ];
+			final double fl = Math.floor( q );
+			f[ d ] = (int)fl;
+			w[ d ] = q - fl;
+		}
+
+		final double v = values[ i ];
+		for( int cz = 0; cz < 2; cz++ )
+		{
+			final int z = f[ 2 ] + cz;
+			if( z < 0 || z >= n[ 2 ] )
+				continue;
+
+			final double wz = cz == 0 ? 1 - w[ 2 ] : w[ 2 ];
+			for( int cy = 0; cy < 2; cy++ )
+			{
+				final int y = f[ 1 ] + cy;
+				if( y < 0 || y >= n[ 1 ] )
+					continue;
+
+				final double wy = wz * ( cy == 0 ? 1 - w[ 1 ] : w[ 1 ] );
+				for( int cx = 0; cx < 2; cx++ )
+				{
+					final int x = f[ 0 ] + cx;
+					if( x < 0 || x >= n[ 0 ] )
+						continue;
+
+					hist[ ( z * n[ 1 ] + y ) * n[ 0 ] + x ] += v * wy * ( cx == 0 ? 1 - w[ 0 ] : w[ 0 ] );
+				}
+			}
+		}
+	}
+
+	private static int nextPowerOfTwo( final int x )
+	{
+		return x <= 1 ? 1 : Integer.highestOneBit( x - 1 ) << 1;
+	}
+
+	/**
+	 * Transforms a 3d grid, x fastest, along every axis. The inverse is not
+	 * scaled.
+	 */
+	private static void fft3( final double[] re, final double[] im, final int[] n, final Fft[] ffts, final boolean inverse )
+	{
+		final int nx = n[ 0 ];
+		final int ny = n[ 1 ];
+		final int nz = n[ 2 ];
+		final double[] lineRe = new double[ Math.max( nx, Math.max( ny, nz ) ) ];
+		final double[] lineIm = new double[ lineRe.length ];
+
+		for( int z = 0; z < nz; z++ )
+			for( int y = 0; y < ny; y++ )
+				ffts[ 0 ].transform( re, im, ( z * ny + y ) * nx, 1, lineRe, lineIm, inverse );
+
+		for( int z = 0; z < nz; z++ )
+			for( int x = 0; x < nx; x++ )
+				ffts[ 1 ].transform( re, im, z * ny * nx + x, nx, lineRe, lineIm, inverse );
+
+		for( int y = 0; y < ny; y++ )
+			for( int x = 0; x < nx; x++ )
+				ffts[ 2 ].transform( re, im, y * nx + x, nx * ny, lineRe, lineIm, inverse );
+	}
+
+	/**
+	 * An iterative radix-2 complex FFT of one size, with precomputed
+	 * twiddle factors and bit reversal.
+	 */
+	private static class Fft
+	{
+		private final int n;
+
+		private final double[] cos;
+
+		private final double[] sin;
+
+		private final int[] reversed;
+
+		Fft( final int n )
+		{
+			this.n = n;
+			cos = new double[ n / 2 ];
+			sin = new double[ n / 2 ];
+			for( int i = 0; i < n / 2; i++ )
+			{
+				cos[ i ] = Math.cos( 2 * Math.PI * i / n );
+				sin[ i ] = Math.sin( 2 * Math.PI * i / n );
+			}
+
+			reversed = new int[ n ];
+			final int bits = Integer.numberOfTrailingZeros( n );
+			for( int i = 0; i < n; i++ )
+				reversed[ i ] = bits == 0 ? 0 : Integer.reverse( i ) >>> ( 32 - bits );
+		}
+
+		/**
+		 * Transforms the line of n values from offset with a stride, in
+		 * place, through the line buffers.
+		 */
+		void transform( final double[] re, final double[] im, final int offset, final int stride,
+				final double[] lineRe, final double[] lineIm, final boolean inverse )
+		{
+			for( int i = 0; i < n; i++ )
+			{
+				final int j = offset + reversed[ i ] * stride;
+				lineRe[ i ] = re[ j ];
+				lineIm[ i ] = im[ j ];
+			}
+
+			final double sign = inverse ? 1 : -1;
+			for( int size = 2; size <= n; size <<= 1 )
+			{
+				final int half = size >>> 1;
+				final int step = n / size;
+				for( int start = 0; start < n; start += size )
+					for( int j = 0; j < half; j++ )
+					{
+						final double wr = cos[ j * step ];
+						final double wi = sign * sin[ j * step ];
+						final int a = start + j;
+						final int b = a + half;
+						final double tr = lineRe[ b ] * wr - lineIm[ b ] * wi;
+						final double ti = lineRe[ b ] * wi + lineIm[ b ] * wr;
+						lineRe[ b ] = lineRe[ a ] - tr;
+						lineIm[ b ] = lineIm[ a ] - ti;
+						lineRe[ a ] += tr;
+						lineIm[ a ] += ti;
+					}
+			}
+
+			for( int i = 0; i < n; i++ )
+			{
+				final int j = offset + i * stride;
+				re[ j ] = lineRe[ i ];
+				im[ j ] = lineIm[ i ];
+			}
+		}
+	}
+}
@@ -10,6 +10,8 @@ import java.util.function.DoubleUnaryOperator;
 
 import org.janelia.render.SynPrediction.SynCollection;
 import org.janelia.render.TbarPrediction.TbarCollection;
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.kernel.RadialKernel;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.n5.N5FSReader;
@@ -23,7 +25,6 @@ import bdv.util.BdvFunctions;
 import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
 import net.imglib2.FinalInterval;
-import net.imglib2.KDTree;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccessible;
@@ -149,22 +150,25 @@ public class KDTreeRenderer<T extends RealType<T>,P extends RealLocalizable>
 	static final double searchDist = 150;
 	static final double searchDistSqr = searchDist * searchDist;
 	static final double invSquareSearchDistance = 1.0 / searchDist / searchDist; 
+	public static final RadialKernel rbfKernel = RadialKernel.linear( 50, searchDist );
 	
-	final KDTree< T > tree;
+	final FlatKDTree tree;
+	final T type;
 	
-	public KDTreeRenderer( List<T> vals, List<P> pts )
+	public KDTreeRenderer( List<T> vals, List<P> pts, T type )
 	{
-		tree = new KDTree< T >( vals, pts );
+		tree = FlatKDTree.build( vals, pts );
+		this.type = type.copy();
 	}
 
 	public RealRandomAccessible<T> getRealRandomAccessible(
 			final double searchDist,
 			final DoubleUnaryOperator rbf )
 	{
-		RBFInterpolator.RBFInterpolatorFactory< T > interp = 
-				new RBFInterpolator.RBFInterpolatorFactory< T >( 
+		RBFInterpolator.RBFIndexInterpolatorFactory< T > interp = 
+				new RBFInterpolator.RBFIndexInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() );
+						type.copy() );
 
 		return Views.interpolate( tree, interp );
 	}
@@ -226,7 +230,7 @@ public class KDTreeRenderer<T extends RealType<T>,P extends RealLocalizable>
 				SynCollection<DoubleType> synapses = SynPrediction.loadAll( synapseFile.getAbsolutePath(), new DoubleType() );
 				itvl = new FinalInterval( synapses.min, synapses.max );
 				System.out.println( synapses );
-				treeRenderer = new KDTreeRenderer<DoubleType,RealPoint>( synapses.getValues( 0 ), synapses.getPoints() );
+				treeRenderer = new KDTreeRenderer<DoubleType,RealPoint>( synapses.getValues( 0 ), synapses.getPoints(), new DoubleType() );
 			}
 			else
 			{
@@ -234,14 +238,14 @@ public class KDTreeRenderer<T extends RealType<T>,P extends RealLocalizable>
 				TbarCollection<DoubleType> tbars = TbarPrediction.loadAll( options.getSynapsePaths().get( i ), new DoubleType() );
 				itvl = new FinalInterval( tbars.min, tbars.max );
 				System.out.println( tbars );
-				treeRenderer = new KDTreeRenderer<DoubleType,RealPoint>( tbars.getValues( 0 ), tbars.getPoints() );
+				treeRenderer = new KDTreeRenderer<DoubleType,RealPoint>( tbars.getValues( 0 ), tbars.getPoints(), new DoubleType() );
 			}
 			
 			
 
 			RealRandomAccessible< DoubleType > source = treeRenderer.getRealRandomAccessible( 
 					options.getRadius(),
-					KDTreeRenderer::rbf );
+					rbfKernel );
 			
 
 			
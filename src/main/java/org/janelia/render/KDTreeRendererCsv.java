@@ -2,15 +2,17 @@ package org.janelia.render;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiConsumer;
 import java.util.function.DoubleUnaryOperator;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import org.janelia.render.data.CsvPointReader;
+import org.janelia.render.data.SynColumns;
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.kernel.RadialKernel;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -18,10 +20,8 @@ import org.kohsuke.args4j.Option;
 import ij.IJ;
 import ij.ImagePlus;
 import net.imglib2.FinalInterval;
-import net.imglib2.KDTree;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
-import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.imageplus.FloatImagePlus;
@@ -29,16 +29,12 @@ import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.interpolation.neighborsearch.RBFInterpolator;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.parallel.TaskExecutors;
-import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.RealTransformRandomAccessible;
-import net.imglib2.realtransform.RealViews;
-import net.imglib2.realtransform.Scale;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 public class KDTreeRendererCsv<T extends RealType<T>,P extends RealLocalizable>
@@ -71,6 +67,9 @@ public class KDTreeRendererCsv<T extends RealType<T>,P extends RealLocalizable>
 		@Option(name = "-q", aliases = {"--nThreads"}, required = false, usage = "Number of threads")
 		private int nThreads = 1;
 
+		@Option(name = "-f", aliases = {"--fft"}, required = false, usage = "Convolve a histogram of the points with the kernel by FFT, faster if the radius spans many voxels")
+		private boolean fft = false;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -89,11 +88,13 @@ public class KDTreeRendererCsv<T extends RealType<T>,P extends RealLocalizable>
 
 	private double invSquareSearchDistance; 
 
-	final KDTree< T > tree;
+	final FlatKDTree tree;
+	final T type;
 
-	public KDTreeRendererCsv( List<T> vals, List<P> pts, double searchDist )
+	public KDTreeRendererCsv( List<T> vals, List<P> pts, T type, double searchDist )
 	{
-		tree = new KDTree< T >( vals, pts );
+		tree = FlatKDTree.build( vals, pts );
+		this.type = type.copy();
 		setSearchDist( searchDist );
 	}
 
@@ -101,10 +102,10 @@ public class KDTreeRendererCsv<T extends RealType<T>,P extends RealLocalizable>
 			final double searchDist,
 			final DoubleUnaryOperator rbf )
 	{
-		RBFInterpolator.RBFInterpolatorFactory< T > interp = 
-				new RBFInterpolator.RBFInterpolatorFactory< T >( 
+		RBFInterpolator.RBFIndexInterpolatorFactory< T > interp = 
+				new RBFInterpolator.RBFIndexInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() );
+						type.copy() );
 
 		return Views.interpolate( tree, interp );
 	}
@@ -131,54 +132,37 @@ public class KDTreeRendererCsv<T extends RealType<T>,P extends RealLocalizable>
 
 		final double[] res = Arrays.stream( options.resolution.split( "," ) ).mapToDouble( Double::parseDouble ).toArray();
 
-		final Scale inputScale;
-		if( options.inputResolution == null )
-		{
-			inputScale = new Scale( new double[] { 1, 1, 1 });
-		}
-		else
-		{
-			final double[] ptres = Arrays.stream( options.inputResolution.split( "," ) )
-					.mapToDouble( Double::parseDouble ).toArray();
-			inputScale = new Scale( ptres );
-		}
-
-		final AffineTransform3D scale = new AffineTransform3D();
-		scale.set( res[ 0 ], 0.0, 0.0, 0.0, 0.0, res[ 1 ], 0.0, 0.0, 0.0, 0.0, res[ 2 ], 0.0 );
+		final double[] inputResolution = options.inputResolution == null ? null :
+				Arrays.stream( options.inputResolution.split( "," ) ).mapToDouble( Double::parseDouble ).toArray();
 
-		final List< String > lines = Files.readAllLines( Paths.get( options.inputPath ) );
+		final SynColumns pts = new CsvPointReader()
+				.delimiter( options.delimiter )
+				.scale( inputResolution )
+				.load( options.inputPath );
 
-		final List< RealPoint > pts = lines.stream().map( x -> x.split( options.delimiter ) )
-				.map( x -> strToDouble( x ) )
-				.map( RealPoint::wrap )
-				.map( x -> {
-					inputScale.apply( x, x );	
-					return x;
-				})
-				.collect( Collectors.toList() );
-
-		final List< DoubleType > vals = Stream.iterate( new DoubleType( 1 ), x -> x ).limit( pts.size() )
-				.collect( Collectors.toList() );
+		final List< DoubleType > vals = Collections.nCopies( pts.size(), new DoubleType( 1 ) );
 
 		// build renderer
-		KDTreeRendererCsv< DoubleType, RealPoint > treeRenderer = new KDTreeRendererCsv< DoubleType, RealPoint >( 
-				vals, pts, options.radius );
+		KDTreeRendererCsv< DoubleType, RealLocalizable > treeRenderer = new KDTreeRendererCsv< DoubleType, RealLocalizable >( 
+				vals, pts.positions(), new DoubleType(), options.radius );
 
 		FinalInterval itvl = new FinalInterval( 
 				Arrays.stream( options.sizeString.split( "," ) )
 					.mapToLong( Long::parseLong ).toArray() );
 
-		final double dSqr = treeRenderer.searchDistSqr;
-		final double idSqr = treeRenderer.invSquareSearchDistance;
-		RealRandomAccessible< DoubleType > source = treeRenderer.getRealRandomAccessible( 
-				options.radius, x -> rbf(x, dSqr, idSqr ));
-
-		final RealRandomAccessible< DoubleType > transformedSource = 
-				RealViews.affine( source, scale.inverse() );
-
-		IntervalView< DoubleType > img = Views.interval( Views.raster( transformedSource ), itvl );
+		// voxel v is at v * res
+		final FloatImagePlus< FloatType > outImg = ImagePlusImgs.floats( Intervals.dimensionsAsLongArray( itvl ) );
+		final RadialKernel kernel = RadialKernel.linear( 50, options.radius );
+		if( options.fft )
+			new FftDensityRenderer( treeRenderer.tree.getPositions(), treeRenderer.tree.getValues(), kernel, options.radius )
+					.pool( new ForkJoinPool( options.nThreads ) )
+					.render( outImg, res );
+		else
+			new RBFRowRenderer( treeRenderer.tree, kernel, options.radius )
+					.pool( new ForkJoinPool( options.nThreads ) )
+					.render( outImg, res );
 
-		IJ.save( copyToImagePlus( img, options.nThreads ), options.output );
+		IJ.save( outImg.getImagePlus(), options.output );
 	}
 
 	public static double[] strToDouble( final String[] s )
@@ -4,9 +4,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.function.DoubleUnaryOperator;
+import java.util.function.Predicate;
 import java.util.concurrent.Callable;
 
 import javax.imageio.ImageIO;
@@ -22,8 +24,16 @@ import org.scijava.ui.behaviour.KeyStrokeAdder.Factory;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.util.Actions;
 
-import org.janelia.render.SynPrediction.SynCollection;
-import org.janelia.render.TbarPrediction.TbarCollection;
+import org.janelia.render.data.MappedPointStore;
+import org.janelia.render.data.PointFilter;
+import org.janelia.render.data.PointFormats;
+import org.janelia.render.data.SynColumns;
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.index.GridIndex;
+import org.janelia.render.index.MappedKDTree;
+import org.janelia.render.index.OccupancyGrid;
+import org.janelia.render.index.PointIndex;
+import org.janelia.render.kernel.RadialKernel;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
@@ -50,19 +60,18 @@ import bdv.viewer.render.awt.BufferedImageRenderResult;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.KDTree;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
-import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.cache.Cache;
 import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.converter.Converters;
 import net.imglib2.display.screenimage.awt.ARGBScreenImage;
 import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.Img;
@@ -74,6 +83,7 @@ import net.imglib2.img.cell.CellGrid;
 import net.imglib2.interpolation.neighborsearch.RBFInterpolator;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransformSequence;
+import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.Scale3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.PrimitiveType;
@@ -115,27 +125,126 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 
 	@Option( names = { "-o",  "--output"}, required = false, description = "The output file." )
 	private String outputFile;
+
+	@Option( names = { "-c", "--cache" }, required = false, description = "Cache points in a memory-mapped store next to each synapse file, the store holds all kinds so this can not be combined with --kind. The points are searched in the mapped file, --grid and --voxelSize copy them to memory" )
+	private boolean cache = false;
+
+	@Option( names = { "-t", "--threshold" }, required = false, description = "Confidence threshold, points at or below it are not loaded" )
+	private double threshold = 0.0;
+
+	@Option( names = { "-k", "--kind" }, required = false, description = "Only load points of these kinds, e.g. PreSyn" )
+	private List<String> kinds = new ArrayList<>();
+
+	@Option( names = { "-g", "--grid" }, required = false, description = "Search neighbors in a uniform grid with the radius as cell size instead of a KD-tree" )
+	private boolean grid = false;
+
+	@Option( names = { "-v", "--voxelSize" }, required = false, description = "Show the density as a cached pyramid with this voxel size at full resolution, in point units, instead of evaluating it on every repaint. The pyramid is static, the radius and threshold keys do not change it" )
+	private double voxelSize = 0;
 		
 
 	static final double searchDist = 150;
 	static final double searchDistSqr = searchDist * searchDist;
 	static final double invSquareSearchDistance = 1.0 / searchDist / searchDist; 
+	public static final RadialKernel rbfKernel = RadialKernel.linear( 50, searchDist );
 	
-	KDTree< T > tree;
+	FlatKDTree tree;
+	MappedKDTree mappedTree;
+	PointIndex index;
+	OccupancyGrid occupancy;
+	T type;
 	Interval itvl;
 
 	public KDTreeRendererRaw()
 	{
 	}
 
-	public KDTreeRendererRaw( List<T> vals, List<P> pts )
+	public KDTreeRendererRaw( List<T> vals, List<P> pts, T type )
 	{
-		buildTree( vals, pts );
+		buildTree( vals, pts, type );
 	}
 	
-	public void buildTree( List<T> vals, List<P> pts )
+	public void buildTree( List<T> vals, List<P> pts, T type )
 	{
-		tree = new KDTree< T >( vals, pts );
+		tree = FlatKDTree.build( vals, pts );
+		mappedTree = null;
+		index = tree;
+		occupancy = null;
+		this.type = type.copy();
+	}
+
+	/**
+	 * Searches the points of a mapped tree in its file, without copying
+	 * them to the heap.
+	 */
+	public void buildTree( MappedKDTree mappedTree, T type )
+	{
+		tree = null;
+		this.mappedTree = mappedTree;
+		index = mappedTree;
+		occupancy = null;
+		this.type = type.copy();
+	}
+
+	/**
+	 * The occupancy grid of the points for a search radius, built on first
+	 * use and kept while the radius stays the same.
+	 *
+	 * @param radius the search radius
+	 * @return the grid
+	 */
+	public synchronized OccupancyGrid getOccupancy( final double radius )
+	{
+		if( occupancy == null || occupancy.getRadius() != radius )
+			occupancy = tree != null ?
+					new OccupancyGrid( tree.getPositions(), radius ) :
+					new OccupancyGrid( mappedTree, radius );
+
+		return occupancy;
+	}
+
+	/**
+	 * Searches neighbors in a uniform grid instead of the tree, which is
+	 * faster for fixed radius queries on dense points. Queries with a
+	 * radius larger than the cell size stay exact but visit more cells.
+	 *
+	 * @param cellSize the cell size, usually the search radius
+	 */
+	public void useGrid( final double cellSize )
+	{
+		final FlatKDTree tree = getTree();
+		index = new GridIndex( tree.getPositions(), tree.getValues(), cellSize );
+	}
+
+	/**
+	 * Builds a renderer that searches the points of a memory-mapped point
+	 * store in place, the store is already in tree order.
+	 *
+	 * @param store the point store
+	 * @param thresh values above this threshold are one, all others zero
+	 * @return the renderer
+	 */
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> build( final MappedPointStore store, final double thresh )
+	{
+		final KDTreeRendererRaw<DoubleType,RealLocalizable> treeRenderer = new KDTreeRendererRaw<DoubleType,RealLocalizable>();
+		treeRenderer.buildTree( new MappedKDTree( store, thresh ), new DoubleType() );
+		treeRenderer.setInterval( store.getInterval() );
+		return treeRenderer;
+	}
+
+	/**
+	 * Builds a renderer whose tree is built directly from the views of
+	 * synapse columns.
+	 *
+	 * @param synapses the synapses
+	 * @param thresh confidences above this threshold are one, all others zero
+	 * @return the renderer
+	 */
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> build( final SynColumns synapses, final double thresh )
+	{
+		final KDTreeRendererRaw<DoubleType,RealLocalizable> treeRenderer = new KDTreeRendererRaw<DoubleType,RealLocalizable>(
+				synapses.values( new DoubleType(), thresh ), synapses.positions(), new DoubleType() );
+		treeRenderer.setInterval( synapses.getInterval() );
+		return treeRenderer;
 	}
 
 	public void setInterval( Interval itvl )
@@ -154,11 +263,35 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 	{
 		return new RBFInterpolator.RBFInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() ).create( tree );
+						type.copy() ).create( index );
 	}
 	
-	public KDTree<T> getTree()
+	/**
+	 * The density of the points at several resolutions, level 0 equals
+	 * {@link #getRealRandomAccessible} with the same search radius and
+	 * kernel. The pyramid is static, later changes of the search radius or
+	 * threshold are not applied to it.
+	 */
+	public DensityPyramid getDensityPyramid(
+			final double searchDist,
+			final RadialKernel rbf,
+			final double voxelSize,
+			final int numLevels )
+	{
+		final FlatKDTree tree = getTree();
+		return new DensityPyramid( index, tree.getPositions(), tree.getValues(),
+				rbf, searchDist, voxelSize, numLevels );
+	}
+
+	/**
+	 * @return the tree, the points of a mapped tree are copied to the heap
+	 * on the first call
+	 */
+	public synchronized FlatKDTree getTree()
 	{
+		if( tree == null && mappedTree != null )
+			tree = mappedTree.toFlatKDTree();
+
 		return tree;
 	}
 
@@ -166,12 +299,12 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 			final double searchDist,
 			final DoubleUnaryOperator rbf )
 	{
-		RBFInterpolator.RBFInterpolatorFactory< T > interp = 
-				new RBFInterpolator.RBFInterpolatorFactory< T >( 
+		RBFInterpolator.RBFIndexInterpolatorFactory< T > interp = 
+				new RBFInterpolator.RBFIndexInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() );
+						type.copy() ).occupancy( getOccupancy( searchDist ) );
 
-		return Views.interpolate( tree, interp );
+		return Views.interpolate( index, interp );
 	}
 
 	public static double rbf( final double rsqr )
@@ -184,6 +317,8 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 	
 	public Void call() throws IOException
 	{
+		if( cache && !kinds.isEmpty() )
+			throw new IllegalArgumentException( "--cache can not be combined with --kind, the point store holds points of all kinds" );
 		
 		final AffineTransform3D toFlyEm = new AffineTransform3D();
 		toFlyEm.set(
@@ -229,6 +364,7 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 		RadiusChange<DoubleType> rc = new RadiusChange<DoubleType>();
 
 		ARGBType magenta = new ARGBType( ARGBType.rgba(255, 0, 255, 255));
+		final SharedQueue queue = new SharedQueue( 12 );
 
 		for (int i = 0; i < synapsePaths.size(); ++i)
 		{
@@ -236,12 +372,19 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 			File synapseFile = new File( synapsePaths.get( i )); 
 
 			// load synapses
-			KDTreeRendererRaw<DoubleType,RealPoint> treeRenderer = load( synapseFile.getAbsolutePath() );
+			KDTreeRendererRaw<DoubleType,?> treeRenderer = cache ?
+					loadCached( synapseFile.getAbsolutePath(), threshold ) :
+					load( synapseFile.getAbsolutePath(), threshold, kinds.toArray( new String[ 0 ] ) );
+			if( treeRenderer == null )
+				throw new IOException( "No points to render from " + synapseFile );
+
 			Interval itvl = treeRenderer.getInterval();
+			if( grid )
+				treeRenderer.useGrid( radius );
 
 			
 			// This works
-			RealRandomAccessible<DoubleType> source = treeRenderer.getRealRandomAccessible( radius, KDTreeRendererRaw::rbf );
+			RealRandomAccessible<DoubleType> source = treeRenderer.getRealRandomAccessible( radius, rbfKernel );
 
 //			This doesn't work
 			//RBFInterpolator<DoubleType> interp = treeRenderer.getInterp( options.getRadius(), KDTreeRendererRaw::rbf );
@@ -254,7 +397,13 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 
 			bdvOpts = bdvOpts.addTo( bdv );
 
-			bdv = BdvFunctions.show( source, itvl, "tbar render", bdvOpts );
+			if( voxelSize > 0 )
+			{
+				final DensityPyramid pyramid = treeRenderer.getDensityPyramid( radius, rbfKernel, voxelSize, DensityPyramid.numLevels( itvl, voxelSize ) );
+				bdv = mipmapSource( pyramid.source( itvl, "tbar render" ).asVolatile( queue ), bdv, bdvOpts );
+			}
+			else
+				bdv = BdvFunctions.show( source, itvl, "tbar render", bdvOpts );
 //			bdv.getSources().get(0).getSpimSource().getInterpolatedSource( 0, 0, null ).realRandomAccess();
 			bdv.setDisplayRange( 0, 800 );
 			//bdv.setColor(magenta);
@@ -477,9 +626,9 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 			this.kdtr = kdtr;
 			this.interpFactory = 
 					new RBFInterpolator.RBFInterpolatorFactory< T >( 
-							KDTreeRendererRaw::rbf, startingRad, false,
-							kdtr.tree.firstElement().copy() );
-			interp = interpFactory.create( kdtr.tree );
+							rbfKernel, startingRad, false,
+							kdtr.type.copy() );
+			interp = interpFactory.create( kdtr.index );
 		}
 		
 		public void increase()
@@ -494,17 +643,17 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 
 		@Override
 		public int numDimensions() {
-			return kdtr.tree.numDimensions();
+			return kdtr.index.numDimensions();
 		}
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess() {
-			return interp;
+			return interp.sharedCopy();
 		}
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess(RealInterval arg0) {
-			return interp;
+			return interp.sharedCopy();
 		}
 		
 	}
@@ -688,61 +837,177 @@ public class KDTreeRendererRaw<T extends RealType<T>,P extends RealLocalizable>
 		return bdv;
 	}
 
-	public static KDTreeRendererRaw<DoubleType,RealPoint> load( String synapseFilePath )
+	/**
+	 * Rasterizes a density at a voxel size into a cached cell image. Cells
+	 * are computed when they are first accessed, on the fetcher threads of
+	 * BDV when shown through a volatile source, and kept until the cache
+	 * releases them.
+	 *
+	 * @param density the density, e.g. from {@link #getRealRandomAccessible}
+	 * @param interval the bounds of the density in point coordinates
+	 * @param voxelSize the edge length of a voxel in point coordinates
+	 * @param blockSize the cell size
+	 * @return the cached density, in voxel coordinates
+	 */
+	public static RandomAccessibleInterval<FloatType> cachedDensity(
+			final RealRandomAccessible<DoubleType> density,
+			final RealInterval interval,
+			final double voxelSize,
+			final int[] blockSize ) throws IOException
+	{
+		return cachedDensity( density, interval, voxelSize, blockSize, null );
+	}
+
+	/**
+	 * Rasterizes a density like {@link #cachedDensity(RealRandomAccessible, RealInterval, double, int[])},
+	 * but cells whose box is empty in an occupancy grid of the points are
+	 * left zero without evaluating any of their voxels.
+	 *
+	 * @param occupancy the occupancy grid for the radius of the density, or
+	 * null to evaluate all cells
+	 */
+	public static RandomAccessibleInterval<FloatType> cachedDensity(
+			final RealRandomAccessible<DoubleType> density,
+			final RealInterval interval,
+			final double voxelSize,
+			final int[] blockSize,
+			final OccupancyGrid occupancy ) throws IOException
 	{
-		System.out.println( synapseFilePath );
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = (long)Math.floor( interval.realMin( d ) / voxelSize );
+			max[ d ] = (long)Math.ceil( interval.realMax( d ) / voxelSize );
+		}
+
+		final Scale3D toVoxels = new Scale3D( 1 / voxelSize, 1 / voxelSize, 1 / voxelSize );
+		final RandomAccessibleInterval<FloatType> raster = Converters.convert(
+				(RandomAccessibleInterval<DoubleType>)Views.interval( Views.raster( RealViews.affine( density, toVoxels ) ), min, max ),
+				( a, b ) -> b.setReal( a.getRealDouble() ),
+				new FloatType() );
+
+		if( occupancy == null )
+			return Views.translate( wrapAsVolatileCachedCellImg( raster, blockSize ), min );
+
+		// cells are zero-min, voxel v is at v * voxelSize
+		final Predicate<Interval> isEmpty = cell -> occupancy.isEmpty(
+				( min[ 0 ] + cell.min( 0 ) ) * voxelSize,
+				( min[ 1 ] + cell.min( 1 ) ) * voxelSize,
+				( min[ 2 ] + cell.min( 2 ) ) * voxelSize,
+				( min[ 0 ] + cell.max( 0 ) ) * voxelSize,
+				( min[ 1 ] + cell.max( 1 ) ) * voxelSize,
+				( min[ 2 ] + cell.max( 2 ) ) * voxelSize );
+
+		return Views.translate( wrapAsVolatileCachedCellImg( raster, blockSize, isEmpty ), min );
+	}
+
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> load( String synapseFilePath )
+	{
+		return load( synapseFilePath, 0 );
+	}
 
-		boolean success = false;
-		KDTreeRendererRaw<DoubleType,RealPoint> treeRenderer = null;
-		Interval itvl;
+	/**
+	 * Loads only the points with a confidence above the threshold and of
+	 * the given kinds (any kind if none are given). All other points are
+	 * dropped while parsing, so they are neither stored nor visited by the
+	 * RBF queries.
+	 *
+	 * @param synapseFilePath the point file
+	 * @param thresh the confidence threshold
+	 * @param kinds the kinds to keep
+	 * @return the renderer or null if the points could not be read or none
+	 * passed the filter
+	 */
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> load( String synapseFilePath, double thresh, String... kinds )
+	{
+		System.out.println( synapseFilePath );
 		try
 		{
-			SynCollection<DoubleType> synapses = SynPrediction.loadAll( synapseFilePath, new DoubleType() );
-			itvl = new FinalInterval( synapses.min, synapses.max );
+			final PointFilter filter = new PointFilter().confidenceAbove( thresh );
+			if( kinds.length > 0 )
+				filter.kinds( kinds );
+
+			SynColumns synapses = SynColumns.load( synapseFilePath, filter );
 			System.out.println( synapses );
-			treeRenderer = new KDTreeRendererRaw<DoubleType,RealPoint>( synapses.getValues( 0 ), synapses.getPoints() );
-			treeRenderer.setInterval( itvl );
-			success = true;
+			if( synapses.size() == 0 )
+			{
+				System.err.println( "No points of " + synapseFilePath + " above " + thresh +
+						( kinds.length > 0 ? " of kinds " + Arrays.toString( kinds ) : "" ) + " - returning null" );
+				return null;
+			}
+			return build( synapses, thresh );
 		}
 		catch( Exception e )
 		{
-			System.out.println( "Not a new synapse json" );
 			e.printStackTrace();
+			System.err.println( "Could not read synapses/tbars - returning null" );
+			return null;
 		}
-		
-		if( success )
-			return treeRenderer;
-		
+	}
+
+	/**
+	 * Loads synapses or T-bars through a memory-mapped point store cached
+	 * next to the json file, so that only the first load parses the json.
+	 *
+	 * @param synapseFilePath the json file
+	 * @return the renderer or null if the points could not be read
+	 */
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> loadCached( String synapseFilePath )
+	{
+		return loadCached( synapseFilePath, 0 );
+	}
+
+	/**
+	 * Loads points through the cached point store like
+	 * {@link #loadCached(String)}. The store holds all points of all kinds,
+	 * points at or below the threshold get a value of zero.
+	 */
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> loadCached( String synapseFilePath, double thresh )
+	{
+		System.out.println( synapseFilePath );
 		try
 		{
-			TbarCollection<DoubleType> tbars = TbarPrediction.loadAll( synapseFilePath, new DoubleType() );
-			itvl = new FinalInterval( tbars.min, tbars.max );
-			System.out.println( tbars );
-			treeRenderer = new KDTreeRendererRaw<DoubleType,RealPoint>( tbars.getValues( 0 ), tbars.getPoints() );
-			treeRenderer.setInterval( itvl );
-			success = true;
+			final MappedPointStore store = MappedPointStore.openOrCreate( synapseFilePath,
+					writer -> PointFormats.read( synapseFilePath, writer ) );
+			System.out.println( "points: " + store.size() );
+			return build( store, thresh );
 		}
 		catch( Exception e )
 		{
-			System.out.println( "Not an old synapse json" );
 			e.printStackTrace();
-		}
-		
-		if( !success )
 			System.err.println( "Could not read synapses/tbars - returning null" );
-		
-		return treeRenderer;
+		}
+		return null;
 	}
 
-	@SuppressWarnings( { "unchecked", "rawtypes" } )
 	public static final <T extends NativeType<T>> RandomAccessibleInterval<T> wrapAsVolatileCachedCellImg(
 			final RandomAccessibleInterval<T> source,
 			final int[] blockSize) throws IOException {
 
+		return wrapAsVolatileCachedCellImg(source, blockSize, cell -> false);
+	}
+
+	/**
+	 * Caches a source like {@link #wrapAsVolatileCachedCellImg(RandomAccessibleInterval, int[])},
+	 * but cells for which isEmpty is true, in zero-min coordinates, stay
+	 * zero without reading the source.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static final <T extends NativeType<T>> RandomAccessibleInterval<T> wrapAsVolatileCachedCellImg(
+			final RandomAccessibleInterval<T> source,
+			final int[] blockSize,
+			final Predicate<Interval> isEmpty) throws IOException {
+
 		final long[] dimensions = Intervals.dimensionsAsLongArray(source);
 		final CellGrid grid = new CellGrid(dimensions, blockSize);
 
-		final RandomAccessibleLoader<T> loader = new RandomAccessibleLoader<T>(Views.zeroMin(source));
+		final RandomAccessibleLoader<T> sourceLoader = new RandomAccessibleLoader<T>(Views.zeroMin(source));
+		final CellLoader<T> loader = cell -> {
+			// new cells are zero
+			if (!isEmpty.test(cell))
+				sourceLoader.load(cell);
+		};
 
 		final T type = Util.getTypeFromInterval(source);
 		final Set<AccessFlags> accessFlags = AccessFlags.setOf(AccessFlags.VOLATILE );
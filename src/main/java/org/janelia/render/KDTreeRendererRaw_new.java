@@ -20,6 +20,7 @@ import org.scijava.ui.behaviour.KeyStrokeAdder.Factory;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.util.Actions;
 
+import org.janelia.render.index.FlatKDTree;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
@@ -50,7 +51,6 @@ import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.KDTree;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
@@ -161,12 +161,14 @@ public class KDTreeRendererRaw_new<T extends RealType<T>,P extends RealLocalizab
 	static final double searchDistSqr = searchDist * searchDist;
 	static final double invSquareSearchDistance = 1.0 / searchDist / searchDist; 
 	
-	final KDTree< T > tree;
+	final FlatKDTree tree;
+	final T type;
 	Interval itvl;
 
-	public KDTreeRendererRaw_new( List<T> vals, List<P> pts )
+	public KDTreeRendererRaw_new( List<T> vals, List<P> pts, T type )
 	{
-		tree = new KDTree< T >( vals, pts );
+		tree = FlatKDTree.build( vals, pts );
+		this.type = type.copy();
 	}
 
 	public void setInterval( Interval itvl )
@@ -185,10 +187,10 @@ public class KDTreeRendererRaw_new<T extends RealType<T>,P extends RealLocalizab
 	{
 		return new RBFInterpolator.RBFInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() ).create( tree );
+						type.copy() ).create( tree );
 	}
 	
-	public KDTree<T> getTree()
+	public FlatKDTree getTree()
 	{
 		return tree;
 	}
@@ -197,10 +199,10 @@ public class KDTreeRendererRaw_new<T extends RealType<T>,P extends RealLocalizab
 			final double searchDist,
 			final DoubleUnaryOperator rbf )
 	{
-		RBFInterpolator.RBFInterpolatorFactory< T > interp = 
-				new RBFInterpolator.RBFInterpolatorFactory< T >( 
+		RBFInterpolator.RBFIndexInterpolatorFactory< T > interp = 
+				new RBFInterpolator.RBFIndexInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() );
+						type.copy() );
 
 		return Views.interpolate( tree, interp );
 	}
@@ -266,12 +268,12 @@ public class KDTreeRendererRaw_new<T extends RealType<T>,P extends RealLocalizab
 			File synapseFile = new File( options.getSynapsePaths().get( i ));
 
 			// load synapses
-			KDTreeRendererRaw<DoubleType,RealPoint> treeRenderer = KDTreeRendererRaw.load( synapseFile.getAbsolutePath() );
+			KDTreeRendererRaw<DoubleType,RealLocalizable> treeRenderer = KDTreeRendererRaw.load( synapseFile.getAbsolutePath() );
 			Interval itvl = treeRenderer.getInterval();
 
 			
 			// This works
-			RealRandomAccessible<DoubleType> source = treeRenderer.getRealRandomAccessible(options.getRadius(), KDTreeRendererRaw::rbf );
+			RealRandomAccessible<DoubleType> source = treeRenderer.getRealRandomAccessible(options.getRadius(), KDTreeRendererRaw.rbfKernel );
 
 //			This doesn't work
 			//RBFInterpolator<DoubleType> interp = treeRenderer.getInterp( options.getRadius(), KDTreeRendererRaw::rbf );
@@ -390,8 +392,8 @@ public class KDTreeRendererRaw_new<T extends RealType<T>,P extends RealLocalizab
 			this.kdtr = kdtr;
 			this.interpFactory = 
 					new RBFInterpolator.RBFInterpolatorFactory< T >( 
-							KDTreeRendererRaw::rbf, startingRad, false,
-							kdtr.tree.firstElement().copy() );
+							KDTreeRendererRaw.rbfKernel, startingRad, false,
+							kdtr.type.copy() );
 			interp = interpFactory.create( kdtr.tree );
 		}
 		
@@ -412,12 +414,12 @@ public class KDTreeRendererRaw_new<T extends RealType<T>,P extends RealLocalizab
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess() {
-			return interp;
+			return interp.sharedCopy();
 		}
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess(RealInterval arg0) {
-			return interp;
+			return interp.sharedCopy();
 		}
 		
 	}
@@ -1,18 +1,17 @@
 package org.janelia.render;
 
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.DoubleUnaryOperator;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 
@@ -24,10 +23,12 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.scijava.ui.behaviour.util.InputActionBindings;
 
-import com.opencsv.CSVReader;
+import org.janelia.render.data.CsvPointReader;
+import org.janelia.render.data.MappedPointStore;
+import org.janelia.render.data.SynColumns;
+import org.janelia.render.index.FlatKDTree;
 
 import bdv.export.ProgressWriter;
-import bdv.export.ProgressWriterConsole;
 import bdv.util.BdvFunctions;
 import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
@@ -39,33 +40,30 @@ import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
-import net.imglib2.KDTree;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
-import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.neighborsearch.RBFInterpolator;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
-import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.Scale3D;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.MixedTransformView;
 import net.imglib2.view.Views;
 
@@ -99,6 +97,12 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 
 		@Option(name = "-t", aliases = {"--threads"}, required = false, usage = "Number of threads")
 		private int nThreads = 1;
+
+		@Option(name = "-c", aliases = {"--cache"}, required = false, usage = "Cache points in a memory-mapped store next to the csv file")
+		private boolean cache = false;
+
+		@Option(name = "-x", aliases = {"--fft"}, required = false, usage = "Render the output by FFT convolution of a point histogram, faster if the radius spans many voxels")
+		private boolean fft = false;
 		
 		private boolean parsedSuccessfully;
 
@@ -159,12 +163,14 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 	static final double searchDistSqr = searchDist * searchDist;
 	static final double invSquareSearchDistance = 1.0 / searchDist / searchDist; 
 	
-	final KDTree< T > tree;
+	final FlatKDTree tree;
+	final T type;
 	Interval itvl;
 
-	public KDTreeRendererVNC( List<T> vals, List<P> pts )
+	public KDTreeRendererVNC( List<T> vals, List<P> pts, T type )
 	{
-		tree = new KDTree< T >( vals, pts );
+		tree = FlatKDTree.build( vals, pts );
+		this.type = type.copy();
 	}
 
 	public void setInterval( Interval itvl )
@@ -183,10 +189,10 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 	{
 		return new RBFInterpolator.RBFInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() ).create( tree );
+						type.copy() ).create( tree );
 	}
 	
-	public KDTree<T> getTree()
+	public FlatKDTree getTree()
 	{
 		return tree;
 	}
@@ -195,27 +201,33 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 			final double searchDist,
 			final DoubleUnaryOperator rbf )
 	{
-		RBFInterpolator.RBFInterpolatorFactory< T > interp = 
-				new RBFInterpolator.RBFInterpolatorFactory< T >( 
+		RBFInterpolator.RBFIndexInterpolatorFactory< T > interp = 
+				new RBFInterpolator.RBFIndexInterpolatorFactory< T >( 
 						rbf, searchDist, false,
-						tree.firstElement().copy() );
+						type.copy() );
 
 		return Views.interpolate( tree, interp );
 	}
 	
 	
-	@SuppressWarnings( "unchecked" )
-	public static Pair< RealRandomAccessible< DoubleType >, Interval > load( final Options options )
+	public static KDTreeRendererRaw< DoubleType, ? > loadRenderer( final Options options )
 	{
-		final String datasetNames = options.getDatasets();
 		final int subFactor = options.subFactor;
 
 		// load synapses
-		KDTreeRendererRaw< DoubleType, RealPoint > treeRenderer = KDTreeRendererVNC.load( options.getSynapsePaths(), null, subFactor );
+		return options.cache ?
+				KDTreeRendererVNC.loadCached( options.getSynapsePaths(), subFactor ) :
+				KDTreeRendererVNC.load( options.getSynapsePaths(), null, subFactor );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public static Pair< RealRandomAccessible< DoubleType >, Interval > load( final Options options )
+	{
+		KDTreeRendererRaw< DoubleType, ? > treeRenderer = loadRenderer( options );
 		Interval itvl = treeRenderer.getInterval();
 
 		// This works
-		RealRandomAccessible< DoubleType > source = treeRenderer.getRealRandomAccessible( options.getRadius(), KDTreeRendererRaw::rbf );
+		RealRandomAccessible< DoubleType > source = treeRenderer.getRealRandomAccessible( options.getRadius(), KDTreeRendererRaw.rbfKernel );
 		return new ValuePair( source, itvl );
 	}
 
@@ -238,10 +250,9 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 		//RadiusChange<DoubleType> rc = new RadiusChange<DoubleType>( amount );
 		RadiusChange<DoubleType> rc = new RadiusChange<DoubleType>();
 
-		Pair< RealRandomAccessible< DoubleType >, Interval > sourceItvl = load( options );
-
 		if( options.output == null )
 		{
+			Pair< RealRandomAccessible< DoubleType >, Interval > sourceItvl = load( options );
 			view( sourceItvl.getA(), sourceItvl.getB(), bdvOpts );
 		}
 		else
@@ -260,17 +271,23 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 			final FinalInterval renderInterval = transformRealInterval( renderXfm, emInterval );
 			System.out.println( "render Interval: " + renderInterval );
 
-			IntervalView< DoubleType > img = Views.interval( 
-					Views.raster( RealViews.affine( sourceItvl.getA(), renderXfm ) ),
-					renderInterval );
-			
-			
-			RandomAccessibleInterval< DoubleType > resultImg = copyToImageStackIterOrder( 
-					img,
-					renderInterval,
-					new ArrayImgFactory<>( new DoubleType() ),
-					options.nThreads,
-					new ProgressWriterConsole() );
+			// voxel v is at v / renderXfm in em pixels
+			final double[] voxelSize = new double[ 3 ];
+			for( int d = 0; d < 3; d++ )
+				voxelSize[ d ] = 1 / renderXfm.get( d, d );
+
+			final KDTreeRendererRaw< DoubleType, ? > treeRenderer = loadRenderer( options );
+			final FlatKDTree tree = treeRenderer.getTree();
+			RandomAccessibleInterval< DoubleType > resultImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( renderInterval ) );
+			if( options.fft )
+				new FftDensityRenderer( tree.getPositions(), tree.getValues(), KDTreeRendererRaw.rbfKernel, options.getRadius() )
+						.pool( new ForkJoinPool( options.nThreads ) )
+						.render( resultImg, voxelSize );
+			else
+				new RBFRowRenderer( tree, KDTreeRendererRaw.rbfKernel, options.getRadius() )
+						.occupancy( treeRenderer.getOccupancy( options.getRadius() ) )
+						.pool( new ForkJoinPool( options.nThreads ) )
+						.render( resultImg, voxelSize );
 
 			ImagePlus imp = ImageJFunctions.wrap( resultImg, "rendered" );
 			imp.getCalibration().pixelWidth = resolution[ 0 ];
@@ -413,8 +430,8 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 			this.kdtr = kdtr;
 			this.interpFactory = 
 					new RBFInterpolator.RBFInterpolatorFactory< T >( 
-							KDTreeRendererRaw::rbf, startingRad, false,
-							kdtr.tree.firstElement().copy() );
+							KDTreeRendererRaw.rbfKernel, startingRad, false,
+							kdtr.type.copy() );
 			interp = interpFactory.create( kdtr.tree );
 		}
 		
@@ -435,12 +452,12 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess() {
-			return interp;
+			return interp.sharedCopy();
 		}
 
 		@Override
 		public RealRandomAccess<T> realRandomAccess(RealInterval arg0) {
-			return interp;
+			return interp.sharedCopy();
 		}
 		
 	}
@@ -515,74 +532,63 @@ public class KDTreeRendererVNC<T extends RealType<T>,P extends RealLocalizable>
 		
 	}
 
-	public static KDTreeRendererRaw<DoubleType,RealPoint> load( final String locationCsvF, final String confCsvF, int subFactor )
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> load( final String locationCsvF, final String confCsvF, int subFactor )
 	{
-
-		boolean success = false;
-		KDTreeRendererRaw<DoubleType,RealPoint> treeRenderer = null;
-		Interval itvl;
 		try
 		{
 			System.out.println( "locationCsvF: " + locationCsvF);
-			CSVReader reader = new CSVReader( new FileReader( locationCsvF ));
-			List< String[] > lines = reader.readAll();
-			reader.close();
-
-			long[] min = new long[ 3 ];
-			long[] max = new long[ 3 ];
-			Arrays.fill( min, Long.MAX_VALUE );
-			Arrays.fill( max, Long.MIN_VALUE );
-
-			final ArrayList< RealPoint > pts = new ArrayList<>();
-			for( int i = 0; i < lines.size(); i += subFactor )
-			{
-				final double x = Double.parseDouble( lines.get( i )[ 0 ] );
-				final double y = Double.parseDouble( lines.get( i )[ 1 ] );
-				final double z = Double.parseDouble( lines.get( i )[ 2 ] );
-
-				double[] p = new double[] { x, y, z };
-				pts.add( new RealPoint( p ));
-
-				for( int d = 0; d < 3; d++ )
-				{
-					long minlong = (long)Math.floor( p[ d ] );
-					long maxlong = (long)Math.ceil( p[ d ] );
-					if( min[ d ] > minlong )
-						min[ d ] = minlong;
-
-					if( max[ d ] < maxlong )
-						max[ d ] = maxlong;
-				}
-			}
-			
-			lines = null;
-			System.gc();
+			final SynColumns pts = new CsvPointReader().subsample( subFactor ).load( locationCsvF );
 
-			List< DoubleType > vals = null;
-			if( confCsvF == null )
-				vals = Stream.iterate( new DoubleType( 1 ), x -> x ).limit( pts.size() ).collect( Collectors.toList() );
-
-
-			itvl = new FinalInterval( min, max );
+			final Interval itvl = pts.getInterval();
 			System.out.println( "" + itvl );
-			
-			treeRenderer = new KDTreeRendererRaw<DoubleType,RealPoint>( vals, pts );
-			treeRenderer.setInterval( itvl );
 
-			success = true;
+			final KDTreeRendererRaw<DoubleType,RealLocalizable> treeRenderer = new KDTreeRendererRaw<DoubleType,RealLocalizable>(
+					Collections.nCopies( pts.size(), new DoubleType( 1 ) ), pts.positions(), new DoubleType() );
+			treeRenderer.setInterval( itvl );
+			return treeRenderer;
 		}
 		catch(Exception e)
 		{
 			System.out.println( "ERROR" );
 			e.printStackTrace();
 		}
-		
-		if( !success )
-			System.err.println( "Could not read synapses/tbars - returning null" );
-		
-		return treeRenderer;
+
+		System.err.println( "Could not read synapses/tbars - returning null" );
+		return null;
 	}
 	
+	/**
+	 * Loads the point locations through a memory-mapped point store cached
+	 * next to the csv file, so that only the first load parses the csv.
+	 *
+	 * @param locationCsvF csv file of x,y,z locations
+	 * @param subFactor keep every subFactor-th point
+	 * @return the renderer or null if the points could not be read
+	 */
+	public static KDTreeRendererRaw<DoubleType,RealLocalizable> loadCached( final String locationCsvF, final int subFactor )
+	{
+		final String storePath = subFactor == 1 ?
+				locationCsvF + MappedPointStore.EXTENSION :
+				locationCsvF + ".sub" + subFactor + MappedPointStore.EXTENSION;
+
+		try
+		{
+			System.out.println( "locationCsvF: " + locationCsvF);
+			final MappedPointStore store = MappedPointStore.openOrCreate( locationCsvF, storePath,
+					writer -> new CsvPointReader().subsample( subFactor ).read( locationCsvF, writer ) );
+			System.out.println( "" + store.getInterval() );
+			return KDTreeRendererRaw.build( store, 0 );
+		}
+		catch( Exception e )
+		{
+			System.out.println( "ERROR" );
+			e.printStackTrace();
+		}
+
+		System.err.println( "Could not read synapses/tbars - returning null" );
+		return null;
+	}
+
 	public static < T extends NumericType<T> > RandomAccessibleInterval<T> copyToImageStackIterOrder( 
 			final RandomAccessible< T > raible,
 			final Interval itvl,
@@ -16,6 +16,10 @@ import java.util.function.DoubleUnaryOperator;
 
 import org.janelia.render.SynPrediction.SynCollection;
 import org.janelia.render.TbarPrediction.TbarCollection;
+import org.janelia.render.data.N5PointGrid;
+import org.janelia.render.data.SynColumns;
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.kernel.RadialKernel;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.n5.N5;
@@ -28,7 +32,7 @@ import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
 import ij.IJ;
 import net.imglib2.FinalInterval;
-import net.imglib2.KDTree;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
@@ -81,6 +85,9 @@ public class KDTreeRendererWriter<T extends RealType<T>, P extends RealLocalizab
 		@Option(name = "-r", aliases = {"--radius"}, required = true, usage = "Radius for synapse point spread function")
 		private double radius;
 
+		@Option(name = "--pointGridN5", required = false, usage = "N5 path of point grids written by N5PointGrid, the synapse paths are then point grid datasets, e.g. /nrs/flyem/data/tmp/synapses.n5")
+		private String pointGridN5Path = null;
+
 		private boolean parsedSuccessfully;
 
 		public Options(final String[] args) {
@@ -166,18 +173,27 @@ public class KDTreeRendererWriter<T extends RealType<T>, P extends RealLocalizab
 
 			return radius;
 		}
+
+		/**
+		 * @return the point grid N5 path
+		 */
+		public String getPointGridN5Path() {
+
+			return pointGridN5Path;
+		}
 	}
 
 	
 	static final double searchDist = 150;
 	static final double searchDistSqr = searchDist * searchDist;
 	static final double invSquareSearchDistance = 1.0 / searchDist / searchDist; 
+	public static final RadialKernel rbfKernel = RadialKernel.linear( 50, searchDist );
 	
-	final KDTree< T > tree;
+	final FlatKDTree tree;
 	
 	public KDTreeRendererWriter( List<T> vals, List<P> pts )
 	{
-		tree = new KDTree< T >( vals, pts );
+		tree = FlatKDTree.build( vals, pts );
 	}
 
 	public RealRandomAccessible<T> getRealRandomAccessible(
@@ -185,8 +201,8 @@ public class KDTreeRendererWriter<T extends RealType<T>, P extends RealLocalizab
 			final DoubleUnaryOperator rbf,
 			final T t )
 	{
-		RBFInterpolator.RBFInterpolatorFactory< T > interp = 
-				new RBFInterpolator.RBFInterpolatorFactory< T >( 
+		RBFInterpolator.RBFIndexInterpolatorFactory< T > interp = 
+				new RBFInterpolator.RBFIndexInterpolatorFactory< T >( 
 						rbf, searchDist, false, t );
 
 		return Views.interpolate( tree, interp );
@@ -209,6 +225,7 @@ public class KDTreeRendererWriter<T extends RealType<T>, P extends RealLocalizab
 		List< String > datasetNames = options.getDatasets();
 		
 		final N5Reader n5 = N5.openFSReader( options.getN5Path() );
+		final N5Reader pointGridN5 = options.getPointGridN5Path() == null ? null : N5.openFSReader( options.getPointGridN5Path() );
 
 		final String outputPath = options.getOutputPath();
 
@@ -244,9 +261,32 @@ public class KDTreeRendererWriter<T extends RealType<T>, P extends RealLocalizab
 
 			File synapseFile = new File( options.getSynapsePaths().get( i ));
 
+			String topDatasetName = options.getTransformTopDatasetNames().get( i );
+			String botDatasetName = options.getTransformBotDatasetNames().get( i );
+			
+			final double[] boundsMin = n5.getAttribute( topDatasetName, "boundsMin", double[].class);
+			final double[] boundsMax = n5.getAttribute( botDatasetName, "boundsMax", double[].class);
+
+			final long[] fMin = Grid.floorScaled(boundsMin, 1);
+			final long[] fMax = Grid.ceilScaled(boundsMax, 1);
+
 			// load synapses
-			KDTreeRenderer<DoubleType,RealPoint> treeRenderer = null;
-			if(  synapseFile.getName().startsWith( "cx" ))
+			KDTreeRenderer<DoubleType,? extends RealLocalizable> treeRenderer = null;
+			if( pointGridN5 != null )
+			{
+				// the slab's box, padded by the search radius so that points
+				// just outside still contribute to the voxels at its border
+				final double r = options.getRadius();
+				final FinalRealInterval slabInterval = new FinalRealInterval(
+						new double[] { fMin[0] - r, fMin[1] - r, options.getTopOffsets().get(i) - r },
+						new double[] { fMax[0] + r, fMax[1] + r, options.getBotOffsets().get(i) + r });
+
+				System.out.println("loading synapses from point grid");
+				final SynColumns synapses = new N5PointGrid( pointGridN5, options.getSynapsePaths().get( i ) ).load( slabInterval );
+				System.out.println( synapses );
+				treeRenderer = new KDTreeRenderer<DoubleType,RealLocalizable>( synapses.values( new DoubleType(), 0 ), synapses.positions(), new DoubleType() );
+			}
+			else if(  synapseFile.getName().startsWith( "cx" ))
 			{
 				System.out.println("loading synapses new");
 				SynCollection<DoubleType> synapses = SynPrediction.loadAll( synapseFile.getAbsolutePath(), new DoubleType() );
@@ -262,16 +302,7 @@ public class KDTreeRendererWriter<T extends RealType<T>, P extends RealLocalizab
 			}
 			RealRandomAccessible< DoubleType > source = treeRenderer.getRealRandomAccessible( 
 					options.getRadius(),
-					KDTreeRendererWriter::rbf );
-			
-			String topDatasetName = options.getTransformTopDatasetNames().get( i );
-			String botDatasetName = options.getTransformBotDatasetNames().get( i );
-			
-			final double[] boundsMin = n5.getAttribute( topDatasetName, "boundsMin", double[].class);
-			final double[] boundsMax = n5.getAttribute( botDatasetName, "boundsMax", double[].class);
-
-			final long[] fMin = Grid.floorScaled(boundsMin, 1);
-			final long[] fMax = Grid.ceilScaled(boundsMax, 1);
+					rbfKernel );
 
 			// transform 
 			final RealTransform top = Transform.loadScaledTransform( n5, topDatasetName );
@@ -0,0 +1,270 @@
+package org.janelia.render;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import org.janelia.render.index.NeighborVisitor;
+import org.janelia.render.index.PointIndex;
+import org.janelia.render.index.RadiusSearch;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.interpolation.neighborsearch.RBFInterpolator;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * The density of an {@link RBFInterpolator} on a voxel grid, from neighbor
+ * lists that are searched once per block at a maximum radius and cached.
+ * <p>
+ * Voxel x is at x * voxelSize in point coordinates. Every voxel of a block
+ * keeps the values and squared distances of its neighbors within maxRadius,
+ * so when the search radius or threshold of the interpolator change, e.g.
+ * by the RKActions, voxels only re-apply the kernel and threshold to their
+ * lists without traversing the index. Search radii beyond maxRadius are
+ * evaluated by the interpolator.
+ * <p>
+ * The lists take 8 bytes per neighbor, the cache releases blocks under
+ * memory pressure.
+ *
+ * @param <T> the type of the density
+ */
+public class NeighborCache< T extends RealType< T > > implements RandomAccessible< T >
+{
+	public static final int DEFAULT_BLOCK_SIZE = 32;
+
+	private final RBFInterpolator< T > interp;
+
+	private final PointIndex index;
+
+	private final double maxRadius;
+
+	private final double voxelSize;
+
+	private final int blockSize;
+
+	private final Cache< Long, Block > blocks;
+
+	/**
+	 * @param interp the interpolator, its search radius and threshold are
+	 * read on every access
+	 * @param index the index of the interpolator
+	 * @param maxRadius the radius of the cached searches
+	 * @param voxelSize the voxel size in point coordinates
+	 * @param blockSize the edge length of a block in voxels
+	 */
+	public NeighborCache(
+			final RBFInterpolator< T > interp,
+			final PointIndex index,
+			final double maxRadius,
+			final double voxelSize,
+			final int blockSize )
+	{
+		this.interp = interp;
+		this.index = index;
+		this.maxRadius = maxRadius;
+		this.voxelSize = voxelSize;
+		this.blockSize = blockSize;
+		blocks = new SoftRefLoaderCache< Long, Block >().withLoader( this::load );
+	}
+
+	public NeighborCache(
+			final RBFInterpolator< T > interp,
+			final PointIndex index,
+			final double maxRadius,
+			final double voxelSize )
+	{
+		this( interp, index, maxRadius, voxelSize, DEFAULT_BLOCK_SIZE );
+	}
+
+	/**
+	 * @return the voxels that cover the interval in point coordinates
+	 */
+	public RandomAccessibleInterval< T > interval( final RealInterval interval )
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = (long)Math.floor( interval.realMin( d ) / voxelSize );
+			max[ d ] = (long)Math.ceil( interval.realMax( d ) / voxelSize );
+		}
+		return Views.interval( this, new FinalInterval( min, max ) );
+	}
+
+	public double getMaxRadius()
+	{
+		return maxRadius;
+	}
+
+	public double getVoxelSize()
+	{
+		return voxelSize;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public NeighborAccess randomAccess()
+	{
+		return new NeighborAccess();
+	}
+
+	@Override
+	public NeighborAccess randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	// 21 bits per axis, blocks of up to 2^20 in both directions
+	private static long key( final long bx, final long by, final long bz )
+	{
+		final long mask = ( 1L << 21 ) - 1;
+		final long offset = 1L << 20;
+		return ( ( ( bx + offset ) & mask ) << 42 ) | ( ( ( by + offset ) & mask ) << 21 ) | ( ( bz + offset ) & mask );
+	}
+
+	private Block load( final Long key )
+	{
+		final long mask = ( 1L << 21 ) - 1;
+		final long offset = 1L << 20;
+		final long bz = ( key & mask ) - offset;
+		final long by = ( ( key >>> 21 ) & mask ) - offset;
+		final long bx = ( ( key >>> 42 ) & mask ) - offset;
+
+		final Block block = new Block( blockSize );
+		final RadiusSearch search = index.radiusSearch();
+		final RealPoint p = new RealPoint( 3 );
+		int i = 0;
+		for( int z = 0; z < blockSize; z++ )
+			for( int y = 0; y < blockSize; y++ )
+				for( int x = 0; x < blockSize; x++ )
+				{
+					p.setPosition( ( bx * blockSize + x ) * voxelSize, 0 );
+					p.setPosition( ( by * blockSize + y ) * voxelSize, 1 );
+					p.setPosition( ( bz * blockSize + z ) * voxelSize, 2 );
+					search.visit( p, maxRadius, block );
+					block.offsets[ ++i ] = block.size;
+				}
+
+		block.trim();
+		return block;
+	}
+
+	/**
+	 * The neighbor lists of the voxels of a block, x fastest. The neighbors
+	 * of voxel i are [ offsets[ i ], offsets[ i + 1 ] ).
+	 */
+	private static class Block implements NeighborVisitor
+	{
+		final int[] offsets;
+
+		float[] values = new float[ 1024 ];
+
+		float[] sqrDists = new float[ 1024 ];
+
+		int size = 0;
+
+		Block( final int blockSize )
+		{
+			offsets = new int[ blockSize * blockSize * blockSize + 1 ];
+		}
+
+		@Override
+		public void accept( final double value, final double squareDistance )
+		{
+			if( size == values.length )
+			{
+				values = Arrays.copyOf( values, 2 * size );
+				sqrDists = Arrays.copyOf( sqrDists, 2 * size );
+			}
+			values[ size ] = (float)value;
+			sqrDists[ size++ ] = (float)squareDistance;
+		}
+
+		void trim()
+		{
+			values = Arrays.copyOf( values, size );
+			sqrDists = Arrays.copyOf( sqrDists, size );
+		}
+	}
+
+	/**
+	 * An accessor with its own interpolator that shares the search radius
+	 * and threshold, and the last block it read.
+	 */
+	public class NeighborAccess extends Point implements RandomAccess< T >
+	{
+		private final RBFInterpolator< T > accessInterp = interp.sharedCopy();
+
+		private long lastKey;
+
+		private Block lastBlock = null;
+
+		NeighborAccess()
+		{
+			super( 3 );
+		}
+
+		NeighborAccess( final NeighborAccess other )
+		{
+			super( other );
+		}
+
+		@Override
+		public T get()
+		{
+			if( accessInterp.getRadius() > maxRadius )
+			{
+				for( int d = 0; d < 3; d++ )
+					accessInterp.setPosition( position[ d ] * voxelSize, d );
+
+				return accessInterp.get();
+			}
+
+			final long bx = Math.floorDiv( position[ 0 ], blockSize );
+			final long by = Math.floorDiv( position[ 1 ], blockSize );
+			final long bz = Math.floorDiv( position[ 2 ], blockSize );
+			final long key = key( bx, by, bz );
+			if( lastBlock == null || key != lastKey )
+			{
+				try
+				{
+					lastBlock = blocks.get( key );
+				}
+				catch( final ExecutionException e )
+				{
+					throw new RuntimeException( e );
+				}
+				lastKey = key;
+			}
+
+			final int i = (int)( ( ( position[ 2 ] - bz * blockSize ) * blockSize + position[ 1 ] - by * blockSize ) * blockSize + position[ 0 ] - bx * blockSize );
+			return accessInterp.evaluate( lastBlock.values, lastBlock.sqrDists, lastBlock.offsets[ i ], lastBlock.offsets[ i + 1 ] );
+		}
+
+		@Override
+		public NeighborAccess copy()
+		{
+			return new NeighborAccess( this );
+		}
+
+		@Override
+		public NeighborAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+}
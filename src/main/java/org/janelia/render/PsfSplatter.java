@@ -0,0 +1,326 @@
+package org.janelia.render;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Adds a point spread function at many points into a 3d image, like
+ * {@link RenderPointsPsf#render(RealLocalizable, RandomAccessibleInterval, RealRandomAccessible, Interval)}
+ * does for one point, but in parallel.
+ * <p>
+ * The psf is sampled once into dense stencils, one for every sub-voxel
+ * shift of a point from its nearest voxel, with the shift quantized to
+ * 1 / subdivisions of a voxel per axis. The output is cut into blocks and
+ * points are bucketed by the blocks their stencil overlaps. Every block is
+ * splatted by one task of a fork-join pool into its own buffer and then
+ * added to the output, so tasks never write the same voxel.
+ * <p>
+ * Stencil voxels outside of the output are dropped.
+ */
+public class PsfSplatter
+{
+	public static final int DEFAULT_SUBDIVISIONS = 8;
+
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	// the size and offset of a stencil
+	private final int[] dims = new int[ 3 ];
+
+	private final int[] min = new int[ 3 ];
+
+	// shifts per axis, from -0.5 to 0.5
+	private final int numShifts;
+
+	private final int subdivisions;
+
+	// stencils[ ( sz * numShifts + sy ) * numShifts + sx ] in x fastest order
+	private final float[][] stencils;
+
+	private int[] blockSize = { DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_SIZE };
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * @param psf the psf, centered at the origin
+	 * @param psfInterval the offsets from a point's voxel to render
+	 */
+	public < S extends RealType< S > > PsfSplatter( final RealRandomAccessible< S > psf, final Interval psfInterval )
+	{
+		this( psf, psfInterval, DEFAULT_SUBDIVISIONS );
+	}
+
+	/**
+	 * @param psf the psf, centered at the origin
+	 * @param psfInterval the offsets from a point's voxel to render
+	 * @param subdivisions the number of sub-voxel shifts per voxel and axis
+	 */
+	public < S extends RealType< S > > PsfSplatter( final RealRandomAccessible< S > psf, final Interval psfInterval, final int subdivisions )
+	{
+		if( subdivisions < 1 )
+			throw new IllegalArgumentException( "subdivisions must be positive, but is " + subdivisions );
+
+		this.subdivisions = subdivisions;
+		numShifts = subdivisions + 1;
+		for( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = (int)psfInterval.min( d );
+			dims[ d ] = (int)psfInterval.dimension( d );
+		}
+
+		final RealRandomAccess< S > psfRa = psf.realRandomAccess();
+		stencils = new float[ numShifts * numShifts * numShifts ][];
+		for( int sz = 0; sz < numShifts; sz++ )
+			for( int sy = 0; sy < numShifts; sy++ )
+				for( int sx = 0; sx < numShifts; sx++ )
+				{
+					final float[] stencil = new float[ dims[ 0 ] * dims[ 1 ] * dims[ 2 ] ];
+					int i = 0;
+					for( int z = 0; z < dims[ 2 ]; z++ )
+						for( int y = 0; y < dims[ 1 ]; y++ )
+							for( int x = 0; x < dims[ 0 ]; x++ )
+							{
+								// sampled at offset + shift like RenderPointsPsf.render
+								psfRa.setPosition( min[ 0 ] + x + shift( sx ), 0 );
+								psfRa.setPosition( min[ 1 ] + y + shift( sy ), 1 );
+								psfRa.setPosition( min[ 2 ] + z + shift( sz ), 2 );
+								stencil[ i++ ] = (float)psfRa.get().getRealDouble();
+							}
+
+					stencils[ ( sz * numShifts + sy ) * numShifts + sx ] = stencil;
+				}
+	}
+
+	public PsfSplatter blockSize( final int... blockSize )
+	{
+		if( blockSize.length < 3 )
+			throw new IllegalArgumentException( "need a block size per axis" );
+
+		this.blockSize = blockSize.clone();
+		return this;
+	}
+
+	public PsfSplatter pool( final ForkJoinPool pool )
+	{
+		this.pool = pool;
+		return this;
+	}
+
+	private double shift( final int s )
+	{
+		return (double)s / subdivisions - 0.5;
+	}
+
+	private int shiftIndex( final double shift )
+	{
+		return (int)Math.round( ( shift + 0.5 ) * subdivisions );
+	}
+
+	/**
+	 * Renders points after transforming them into the output.
+	 *
+	 * @param pts the points
+	 * @param pt2imageTransform from point to output coordinates
+	 * @param rai the output, the psf is added to it
+	 */
+	public < T extends RealType< T > > void render(
+			final List< ? extends RealLocalizable > pts,
+			final AffineTransform3D pt2imageTransform,
+			final RandomAccessibleInterval< T > rai )
+	{
+		final double[] xyz = new double[ 3 * pts.size() ];
+		final double[] p = new double[ 3 ];
+		for( int i = 0; i < pts.size(); i++ )
+		{
+			pts.get( i ).localize( p );
+			pt2imageTransform.apply( p, p );
+			System.arraycopy( p, 0, xyz, 3 * i, 3 );
+		}
+		render( xyz, null, rai );
+	}
+
+	/**
+	 * @param xyz interleaved point coordinates in the output
+	 * @param weights the psf is scaled by these, all one if null
+	 * @param rai the output, the psf is added to it
+	 */
+	public < T extends RealType< T > > void render(
+			final double[] xyz,
+			final double[] weights,
+			final RandomAccessibleInterval< T > rai )
+	{
+		final int n = xyz.length / 3;
+		final long[] outMin = Intervals.minAsLongArray( rai );
+		final long[] outMax = Intervals.maxAsLongArray( rai );
+
+		final int[] numBlocks = new int[ 3 ];
+		for( int d = 0; d < 3; d++ )
+			numBlocks[ d ] = (int)( ( rai.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ] );
+
+		final int totalBlocks = numBlocks[ 0 ] * numBlocks[ 1 ] * numBlocks[ 2 ];
+
+		// the voxel of every point relative to the output min, and its stencil
+		final long[] centers = new long[ 3 * n ];
+		final int[] stencilIds = new int[ n ];
+
+		// first and last block of every point's stencil, -1 if outside
+		final int[] blockRanges = new int[ 6 * n ];
+
+		final int[] offsets = new int[ totalBlocks + 1 ];
+		for( int i = 0; i < n; i++ )
+		{
+			int stencilId = 0;
+			boolean inside = true;
+			for( int d = 2; d >= 0; d-- )
+			{
+				final double x = xyz[ 3 * i + d ];
+				if( Double.isNaN( x ) )
+				{
+					inside = false;
+					break;
+				}
+
+				final long c = Math.round( x );
+				centers[ 3 * i + d ] = c - outMin[ d ];
+				stencilId = stencilId * numShifts + shiftIndex( x - c );
+
+				final long lo = Math.max( c + min[ d ], outMin[ d ] );
+				final long hi = Math.min( c + min[ d ] + dims[ d ] - 1, outMax[ d ] );
+				if( lo > hi )
+				{
+					inside = false;
+					break;
+				}
+				blockRanges[ 6 * i + 2 * d ] = (int)( ( lo - outMin[ d ] ) / blockSize[ d ] );
+				blockRanges[ 6 * i + 2 * d + 1 ] = (int)( ( hi - outMin[ d ] ) / blockSize[ d ] );
+			}
+
+			if( !inside )
+			{
+				blockRanges[ 6 * i ] = -1;
+				continue;
+			}
+
+			stencilIds[ i ] = stencilId;
+			forEachBlock( blockRanges, i, numBlocks, b -> offsets[ b + 1 ]++ );
+		}
+
+		// counting sort of the points by block
+		for( int b = 0; b < totalBlocks; b++ )
+			offsets[ b + 1 ] += offsets[ b ];
+
+		final int[] buckets = new int[ offsets[ totalBlocks ] ];
+		final int[] next = Arrays.copyOf( offsets, totalBlocks );
+		for( int i = 0; i < n; i++ )
+		{
+			final int pt = i;
+			if( blockRanges[ 6 * i ] >= 0 )
+				forEachBlock( blockRanges, i, numBlocks, b -> buckets[ next[ b ]++ ] = pt );
+		}
+
+		pool.submit( () -> IntStream.range( 0, totalBlocks ).parallel()
+				.filter( b -> offsets[ b + 1 ] > offsets[ b ] )
+				.forEach( b -> splatBlock( b, numBlocks, outMin, rai, buckets, offsets, centers, stencilIds, weights ) ) )
+				.join();
+	}
+
+	private interface BlockConsumer
+	{
+		public void accept( int block );
+	}
+
+	private static void forEachBlock( final int[] blockRanges, final int i, final int[] numBlocks, final BlockConsumer consumer )
+	{
+		final int o = 6 * i;
+		for( int bz = blockRanges[ o + 4 ]; bz <= blockRanges[ o + 5 ]; bz++ )
+			for( int by = blockRanges[ o + 2 ]; by <= blockRanges[ o + 3 ]; by++ )
+				for( int bx = blockRanges[ o ]; bx <= blockRanges[ o + 1 ]; bx++ )
+					consumer.accept( ( bz * numBlocks[ 1 ] + by ) * numBlocks[ 0 ] + bx );
+	}
+
+	private < T extends RealType< T > > void splatBlock(
+			final int b,
+			final int[] numBlocks,
+			final long[] outMin,
+			final RandomAccessibleInterval< T > rai,
+			final int[] buckets,
+			final int[] offsets,
+			final long[] centers,
+			final int[] stencilIds,
+			final double[] weights )
+	{
+		// the block relative to the output min
+		final long[] blockMin = new long[ 3 ];
+		final long[] blockMax = new long[ 3 ];
+		final int[] blockDims = new int[ 3 ];
+		int r = b;
+		for( int d = 0; d < 3; d++ )
+		{
+			blockMin[ d ] = (long)( r % numBlocks[ d ] ) * blockSize[ d ];
+			blockMax[ d ] = Math.min( blockMin[ d ] + blockSize[ d ], rai.dimension( d ) ) - 1;
+			blockDims[ d ] = (int)( blockMax[ d ] - blockMin[ d ] + 1 );
+			r /= numBlocks[ d ];
+		}
+
+		final float[] buffer = new float[ blockDims[ 0 ] * blockDims[ 1 ] * blockDims[ 2 ] ];
+		for( int j = offsets[ b ]; j < offsets[ b + 1 ]; j++ )
+		{
+			final int i = buckets[ j ];
+			final float[] stencil = stencils[ stencilIds[ i ] ];
+			final float w = weights == null ? 1 : (float)weights[ i ];
+
+			// the part of the stencil inside of the block
+			final int[] from = new int[ 3 ];
+			final int[] to = new int[ 3 ];
+			final int[] start = new int[ 3 ];
+			for( int d = 0; d < 3; d++ )
+			{
+				final long first = centers[ 3 * i + d ] + min[ d ];
+				from[ d ] = (int)Math.max( 0, blockMin[ d ] - first );
+				to[ d ] = (int)Math.min( dims[ d ] - 1, blockMax[ d ] - first );
+				start[ d ] = (int)( first + from[ d ] - blockMin[ d ] );
+			}
+
+			for( int z = from[ 2 ]; z <= to[ 2 ]; z++ )
+			{
+				final int bz = start[ 2 ] + z - from[ 2 ];
+				for( int y = from[ 1 ]; y <= to[ 1 ]; y++ )
+				{
+					final int by = start[ 1 ] + y - from[ 1 ];
+					int s = ( z * dims[ 1 ] + y ) * dims[ 0 ] + from[ 0 ];
+					int t = ( bz * blockDims[ 1 ] + by ) * blockDims[ 0 ] + start[ 0 ];
+					for( int x = from[ 0 ]; x <= to[ 0 ]; x++ )
+						buffer[ t++ ] += w * stencil[ s++ ];
+				}
+			}
+		}
+
+		final long[] imgMin = new long[ 3 ];
+		final long[] imgMax = new long[ 3 ];
+		for( int d = 0; d < 3; d++ )
+		{
+			imgMin[ d ] = outMin[ d ] + blockMin[ d ];
+			imgMax[ d ] = outMin[ d ] + blockMax[ d ];
+		}
+
+		final Cursor< T > c = Views.flatIterable( Views.interval( rai, new FinalInterval( imgMin, imgMax ) ) ).cursor();
+		for( int i = 0; i < buffer.length; i++ )
+		{
+			final T v = c.next();
+			v.setReal( v.getRealDouble() + buffer[ i ] );
+		}
+	}
+}
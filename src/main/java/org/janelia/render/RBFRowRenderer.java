@@ -0,0 +1,194 @@
+package org.janelia.render;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.index.OccupancyGrid;
+import org.janelia.render.kernel.RadialKernel;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Renders the RBF density of the points of a {@link FlatKDTree} into an
+ * image row by row, for the raster outputs of the renderers.
+ * <p>
+ * Where the {@link net.imglib2.interpolation.neighborsearch.RBFInterpolator}
+ * searches the tree once per voxel, a row is split into segments of about
+ * two search radii, and one search per segment finds the candidates of all
+ * its voxels. For every candidate the range of voxels within the search
+ * radius is solved for directly, and its squared distances to them are
+ * computed in a loop without branches over primitive arrays, which the JIT
+ * can unroll and vectorize, before the kernel weights are added.
+ * <p>
+ * The sums equal those of an unnormalized RBFInterpolator with the same
+ * kernel, radius and threshold. Segments in empty cells of an
+ * {@link OccupancyGrid} stay zero without a search.
+ */
+public class RBFRowRenderer
+{
+	private final FlatKDTree tree;
+
+	private final RadialKernel kernel;
+
+	private final double radius;
+
+	private OccupancyGrid occupancy;
+
+	private double threshold = 0;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * @param tree the points
+	 * @param kernel from squared distance to weight
+	 * @param radius the search radius
+	 */
+	public RBFRowRenderer( final FlatKDTree tree, final RadialKernel kernel, final double radius )
+	{
+		this.tree = tree;
+		this.kernel = kernel;
+		this.radius = radius;
+	}
+
+	/**
+	 * Sets the occupancy grid of the points of the tree, e.g. one that is
+	 * shared with the interpolators. render builds one if it is missing or
+	 * its radius is smaller than the search radius.
+	 */
+	public RBFRowRenderer occupancy( final OccupancyGrid occupancy )
+	{
+		this.occupancy = occupancy;
+		return this;
+	}
+
+	/**
+	 * Points with smaller values are skipped.
+	 */
+	public RBFRowRenderer threshold( final double threshold )
+	{
+		this.threshold = threshold;
+		return this;
+	}
+
+	public RBFRowRenderer pool( final ForkJoinPool pool )
+	{
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Sets every voxel of a 3d image to the density at its position, rows
+	 * in parallel.
+	 *
+	 * @param rai the output
+	 * @param voxelSize voxel v is at v * voxelSize in point coordinates
+	 */
+	public < T extends RealType< T > > void render( final RandomAccessibleInterval< T > rai, final double[] voxelSize )
+	{
+		if( occupancy == null || occupancy.getRadius() < radius )
+			occupancy = new OccupancyGrid( tree.getPositions(), radius );
+
+		final long[] min = Intervals.minAsLongArray( rai );
+		final int nx = (int)rai.dimension( 0 );
+		final int ny = (int)rai.dimension( 1 );
+		final int nz = (int)rai.dimension( 2 );
+
+		pool.submit( () -> IntStream.range( 0, ny * nz ).parallel().forEach( row -> {
+			final long y = min[ 1 ] + row % ny;
+			final long z = min[ 2 ] + row / ny;
+			final double[] out = new double[ nx ];
+			new RowEvaluator().evaluate( min[ 0 ] * voxelSize[ 0 ], voxelSize[ 0 ], y * voxelSize[ 1 ], z * voxelSize[ 2 ], out, nx );
+
+			final RandomAccess< T > ra = rai.randomAccess();
+			ra.setPosition( min[ 0 ], 0 );
+			ra.setPosition( y, 1 );
+			ra.setPosition( z, 2 );
+			for( int i = 0; i < nx; i++ )
+			{
+				ra.get().setReal( out[ i ] );
+				ra.fwd( 0 );
+			}
+		} ) ).join();
+	}
+
+	/**
+	 * Evaluates rows of positions, with its own search and scratch space,
+	 * so it is used by one thread at a time.
+	 */
+	public class RowEvaluator
+	{
+		private final FlatKDTree.Search search = tree.radiusSearch();
+
+		private double[] sqrDists = new double[ 256 ];
+
+		/**
+		 * Sets out[ i ] to the density at ( x0 + i * dx, y, z ) for all i
+		 * smaller than n.
+		 *
+		 * @param dx the positive spacing of the positions
+		 */
+		public void evaluate( final double x0, final double dx, final double y, final double z, final double[] out, final int n )
+		{
+			for( int i = 0; i < n; i++ )
+				out[ i ] = 0;
+
+			final double r2 = radius * radius;
+
+			// all candidates of a segment are within radius + half its length of its center
+			final int segmentSize = Math.max( 1, (int)( 2 * radius / dx ) );
+			for( int s = 0; s < n; s += segmentSize )
+			{
+				final int e = Math.min( n, s + segmentSize );
+				if( occupancy != null && occupancy.isEmpty( x0 + s * dx, y, z, x0 + ( e - 1 ) * dx, y, z ) )
+					continue;
+
+				final double halfLength = 0.5 * ( e - 1 - s ) * dx;
+				search.search( x0 + s * dx + halfLength, y, z, radius + halfLength );
+
+				for( int k = 0; k < search.numNeighbors(); k++ )
+				{
+					final double v = search.getValue( k );
+					if( v < threshold )
+						continue;
+
+					final int node = search.getNeighbor( k );
+					final double dy = tree.getDoublePosition( node, 1 ) - y;
+					final double dz = tree.getDoublePosition( node, 2 ) - z;
+					final double dyz2 = dy * dy + dz * dz;
+					if( dyz2 > r2 )
+						continue;
+
+					// the voxels within the radius along the row
+					final double h = Math.sqrt( r2 - dyz2 );
+					final double px = tree.getDoublePosition( node, 0 );
+					final int lo = (int)Math.max( s, Math.ceil( ( px - h - x0 ) / dx ) );
+					final int hi = (int)Math.min( e - 1, Math.floor( ( px + h - x0 ) / dx ) );
+					if( lo <= hi )
+						add( v, px, dyz2, x0, dx, lo, hi, out );
+				}
+			}
+		}
+
+		private void add( final double v, final double px, final double dyz2,
+				final double x0, final double dx, final int lo, final int hi, final double[] out )
+		{
+			final int m = hi - lo + 1;
+			if( m > sqrDists.length )
+				sqrDists = new double[ Math.max( m, 2 * sqrDists.length ) ];
+
+			final double t0 = x0 + lo * dx - px;
+			for( int i = 0; i < m; i++ )
+			{
+				final double t = t0 + i * dx;
+				sqrDists[ i ] = t * t + dyz2;
+			}
+
+			for( int i = 0; i < m; i++ )
+				out[ lo + i ] += v * kernel.applyAsDouble( sqrDists[ i ] );
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package org.janelia.render;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import org.janelia.render.TbarPrediction.TbarCollection;
+import org.janelia.render.data.SynColumns;
 
 import ij.IJ;
 import net.imglib2.*;
@@ -25,7 +28,7 @@ public class RenderPointsPsf
 	public static final long padAmt = 15;
 	public static final double confidenceThresh = 0.85;
 	
-	public static void main( String[] args ) throws ImgLibException
+	public static void main( String[] args ) throws ImgLibException, IOException
 	{
 		// the psf (at the resolution of the lm space)
 		FloatImagePlus< FloatType > psf = ImagePlusImgs.floats( 9, 9, 9 );
@@ -79,11 +82,11 @@ public class RenderPointsPsf
 //		String path = "/data-ssd/john/flyem/test_tbars2.json";
 
 //		String path = "/data-ssd/john/flyem/test_tbars2.ser";
-		String path = "/data-ssd/john/flyem/synapses.ser";
+		String path = "/data-ssd/john/flyem/synapses.bin";
 
 		System.out.println("reading tbars + synapses" );
 //		TbarCollection tbars = TbarPrediction.loadAll( path );
-		TbarCollection tbars = TbarPrediction.loadSerialized( path );
+		TbarCollection<DoubleType> tbars = TbarPrediction.loadBinary( path, new DoubleType() );
 		final long[] min = tbars.min;
 		final long[] max = tbars.max;
 		System.out.println("done" );
@@ -258,6 +261,10 @@ public class RenderPointsPsf
 		}
 	}
 
+	/**
+	 * Renders the points with a confidence of at least confidenceThresh in
+	 * parallel with a {@link PsfSplatter}.
+	 */
 	public static <T extends RealType<T>, S extends RealType<S>> void render( 
 			List<TbarPrediction> ptList,
 			AffineTransform3D pt2imageTransform,
@@ -265,31 +272,83 @@ public class RenderPointsPsf
 			RealRandomAccessible<S> psf,
 			Interval psfInterval )
 	{
-		RealPoint imgPt = new RealPoint( 3 );
-		int i = 0;
-		int nskipped = 0;
+		ArrayList<TbarPrediction> kept = new ArrayList<>();
 		for( TbarPrediction pt : ptList )
-		{
-			i++;
-			
-			if( pt.confidence < confidenceThresh )
-			{
-				nskipped++;
-				continue;
-			}
+			if( pt.confidence >= confidenceThresh )
+				kept.add( pt );
 
-			pt2imageTransform.apply( pt, imgPt );
-			render( imgPt, rai, psf, psfInterval );
+		new PsfSplatter( psf, psfInterval ).render( kept, pt2imageTransform, rai );
+		System.out.println(" " + ( ptList.size() - kept.size() ) + " tbars were under the confidence threshold and skipped");
+	}
+	
+	/**
+	 * Renders every point, for points that were filtered by confidence while
+	 * loading, e.g. with
+	 * <code>SynColumns.load( path, new PointFilter().confidence( c -&gt; c &gt;= confidenceThresh ) )</code>.
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void render( 
+			SynColumns pts,
+			AffineTransform3D pt2imageTransform,
+			RandomAccessibleInterval<T> rai,
+			RealRandomAccessible<S> psf,
+			Interval psfInterval )
+	{
+		new PsfSplatter( psf, psfInterval ).render( pts.positions(), pt2imageTransform, rai );
+	}
 
-			
-			if( i % 5000 == 0 )
-			{
-				System.out.println( String.format("pt %d of %d ", i, ptList.size()) );
-			}
+	/**
+	 * Renders points that are in output coordinates in parallel, with the
+	 * psf sampled for every point like the single point render. The points
+	 * are added to an {@link AtomicAccumulator} of the image from all threads
+	 * and the sums to the image at the end.
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void renderParallel( 
+			List<? extends RealLocalizable> pts,
+			RandomAccessibleInterval<T> rai,
+			RealRandomAccessible<S> psf,
+			Interval psfInterval,
+			ForkJoinPool pool )
+	{
+		final AtomicAccumulator target = new AtomicAccumulator( rai );
+		pool.submit( () -> pts.parallelStream().forEach( pt -> render( pt, target, psf, psfInterval ) ) ).join();
+		target.addTo( rai );
+	}
+
+	/**
+	 * Renders one point into an accumulator, safe to call from many threads
+	 * at once, unlike the render into an image.
+	 */
+	public static <S extends RealType<S>> void render( 
+			RealLocalizable pt,
+			AtomicAccumulator target,
+			RealRandomAccessible<S> psf,
+			Interval psfInterval )
+	{
+		RealPoint diff = new RealPoint(
+				pt.getDoublePosition( 0 ) - Math.round( pt.getDoublePosition( 0 )),
+				pt.getDoublePosition( 1 ) - Math.round( pt.getDoublePosition( 1 )),
+				pt.getDoublePosition( 2 ) - Math.round( pt.getDoublePosition( 2 )));
+
+		Point p = new Point( 3 );
+		RealRandomAccess< S > psfRa = psf.realRandomAccess();
+
+		IntervalIterator it = new IntervalIterator( psfInterval );
+		while( it.hasNext() )
+		{
+			it.fwd();
+			offset( p, pt, it );
+			realoffset( psfRa, diff, it );
+
+			target.add( p.getLongPosition( 0 ), p.getLongPosition( 1 ), p.getLongPosition( 2 ),
+					psfRa.get().getRealFloat() );
 		}
-		System.out.println(" " + nskipped + " tbars were under the confidence threshold and skipped");
 	}
-	
+
+	/**
+	 * Adds the psf of one point to the image by reading and writing its
+	 * voxels, so calls for points with overlapping footprints must not run
+	 * in parallel, see {@link #renderParallel} and {@link PsfSplatter}.
+	 */
 	public static <T extends RealType<T>, S extends RealType<S>> void render( 
 			RealLocalizable pt,
 			RandomAccessibleInterval<T> rai,
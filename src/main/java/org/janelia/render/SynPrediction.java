@@ -1,20 +1,23 @@
 package org.janelia.render;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import org.janelia.render.data.BinaryPointFormat;
+import org.janelia.render.data.JsonPointParser;
+import org.janelia.render.data.ParallelJsonReader;
+import org.janelia.render.data.SynColumns;
+import org.janelia.render.data.SynapseJsonWriter;
+import org.janelia.render.data.SynapseSink;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -123,6 +126,11 @@ public class SynPrediction extends AbstractRealType<SynPrediction> implements Se
 		System.out.println( "done" );
 	}
 
+	/**
+	 * @deprecated java serialization breaks whenever the classes change,
+	 * use {@link #writeBinary(SynCollection, String)} instead.
+	 */
+	@Deprecated
 	public static void writeSer( SynCollection tbars, String outpath )
 	{
 		try {
@@ -140,14 +148,61 @@ public class SynPrediction extends AbstractRealType<SynPrediction> implements Se
 		}
 	}
 	
-	public static void write( SynCollection tbars, String outpath ) throws IOException
-	{
-		JSONArray out = tbars.toJson();
-//		System.out.println( out );
-	
-		Files.write( Paths.get( outpath ), out.toString().getBytes());
+	/**
+	 * Writes the synapses in the columnar {@link BinaryPointFormat}.
+	 *
+	 * @param syns the synapses
+	 * @param outpath the output file
+	 * @throws IOException
+	 */
+	public static void writeBinary( SynCollection<?> syns, String outpath ) throws IOException
+	{
+		BinaryPointFormat.write( syns, outpath );
+	}
+
+	/**
+	 * Loads synapses written by {@link #writeBinary(SynCollection, String)}.
+	 *
+	 * @param path the binary file
+	 * @param t the value type
+	 * @return the synapse collection
+	 * @throws IOException
+	 */
+	public static <T extends RealType<T>> SynCollection<T> loadBinary( String path, T t ) throws IOException
+	{
+		return BinaryPointFormat.readSynapses( path, t );
+	}
+
+	/**
+	 * Writes the synapses as a json array, or as json lines if the path ends
+	 * in {@link SynapseJsonWriter#JSON_LINES_EXTENSION}. Records are streamed
+	 * to the file one by one.
+	 *
+	 * @param tbars the synapses
+	 * @param outpath the output file
+	 * @throws IOException
+	 */
+	public static void write( SynCollection<?> tbars, String outpath ) throws IOException
+	{
+		try( SynapseJsonWriter writer = SynapseJsonWriter.open( outpath ) )
+		{
+			for( SynPrediction syn : tbars.getList() )
+			{
+				if( syn.location != null )
+					writer.accept( syn.kind, syn.location[ 0 ], syn.location[ 1 ], syn.location[ 2 ],
+							syn.props.conf, syn.error );
+				else
+					writer.accept( syn.kind, syn.locationDouble[ 0 ], syn.locationDouble[ 1 ], syn.locationDouble[ 2 ],
+							syn.props.conf, syn.error );
+			}
+		}
 	}
 	
+	public static void write( SynColumns syns, String outpath ) throws IOException
+	{
+		SynapseJsonWriter.write( syns, outpath );
+	}
+
 	public static SynPrediction load( JSONObject obj )
 	{
 		SynPrediction out = new SynPrediction();
@@ -165,6 +220,10 @@ public class SynPrediction extends AbstractRealType<SynPrediction> implements Se
 		return out;
 	}
 
+	/**
+	 * @deprecated use {@link #loadBinary(String, RealType)} instead.
+	 */
+	@Deprecated
 	public static <T extends RealType<T>> SynCollection<T> loadSerialized( String path, T t )
 	{
 		if( !path.endsWith( ".ser" ))
@@ -190,40 +249,97 @@ public class SynPrediction extends AbstractRealType<SynPrediction> implements Se
 		return tbars;
 	}
 	
+	/**
+	 * Loads all synapses in a json file, streaming them straight into the collection.
+	 *
+	 * @param path the json file
+	 * @param t the value type
+	 * @return the synapse collection
+	 * @throws UncheckedIOException if the file can not be read or is not a synapse array
+	 */
 	public static <T extends RealType<T>> SynCollection<T> loadAll( String path, T t )
 	{
-//		String jsonData = "";
-		BufferedReader br = null;
-		StringBuffer jsonData = new StringBuffer();
-		try {
-			String line;
-			br = new BufferedReader(new FileReader( path ));
-			System.out.println("reading");
-			int i = 0;
-			while ((line = br.readLine()) != null) {
-				jsonData.append( line );
-				jsonData.append( '\n' );
-				i++;
-
-//				if( i % 10000 == 0 )
-//				{
-//					System.out.println( "line i: " + i + " out of ~12m" );
-//				}
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (br != null)
-					br.close();
-			} catch (IOException ex) {
-				ex.printStackTrace();
+		final SynCollector syns = new SynCollector();
+		System.out.println("reading");
+		try
+		{
+			JsonPointParser.readSynapses( path, syns );
+		}
+		catch( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		return new SynCollection<T>( syns.list, syns.min, syns.max, t );
+	}
+
+	/**
+	 * Loads all synapses in a json file like {@link #loadAll(String, RealType)},
+	 * but parses chunks of the file in parallel on the common fork-join pool.
+	 *
+	 * @param path the json file
+	 * @param t the value type
+	 * @return the synapse collection
+	 * @throws UncheckedIOException if the file can not be read or is not a synapse array
+	 */
+	public static <T extends RealType<T>> SynCollection<T> loadAllParallel( String path, T t )
+	{
+		final List<SynCollector> chunks;
+		System.out.println("reading in parallel");
+		try
+		{
+			chunks = ParallelJsonReader.readSynapses( path, SynCollector::new );
+		}
+		catch( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+
+		final SynCollector syns = new SynCollector( chunks.stream().mapToInt( c -> c.list.size() ).sum() );
+		for( SynCollector c : chunks )
+			syns.addAll( c );
+
+		return new SynCollection<T>( syns.list, syns.min, syns.max, t );
+	}
+
+	/**
+	 * Collects parsed synapses and their bounding box.
+	 */
+	private static class SynCollector implements SynapseSink
+	{
+		final ArrayList<SynPrediction> list;
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		SynCollector()
+		{
+			this( 10 );
+		}
+
+		SynCollector( final int capacity )
+		{
+			list = new ArrayList<SynPrediction>( capacity );
+			Arrays.fill( min, Long.MAX_VALUE );
+			Arrays.fill( max, Long.MIN_VALUE );
+		}
+
+		@Override
+		public void accept( final String kind, final double x, final double y, final double z, final double conf, final double err )
+		{
+			final SynPrediction syn = new SynPrediction( kind,
+					new int[]{ (int)x, (int)y, (int)z }, conf, err );
+			updateMinMax( min, max, syn );
+			list.add( syn );
+		}
+
+		void addAll( final SynCollector other )
+		{
+			list.addAll( other.list );
+			for( int d = 0; d < 3; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], other.min[ d ] );
+				max[ d ] = Math.max( max[ d ], other.max[ d ] );
 			}
 		}
-		JSONArray obj = new JSONArray( jsonData.toString() );
-		SynCollection<T> syns = SynPrediction.loadAll( obj, t );
-		return syns;
 	}
 
 	public static <T extends RealType<T>> SynCollection<T> loadAll( JSONArray tbarArray, T t  )
@@ -11,8 +11,10 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import org.janelia.render.SynPrediction.SynCollection;
-import org.janelia.render.TbarPrediction.TbarCollection;
+import org.janelia.render.data.PointFormats;
+import org.janelia.render.data.SynColumns;
+import org.janelia.render.data.SynapseJsonWriter;
+import org.janelia.render.data.SynapseSink;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -214,33 +216,9 @@ public class SynapseJsonXfmFlyemInc<T extends RealType<T>,P extends RealLocaliza
 			// load synapses
 			
 			
-			boolean newSynapseJson = false; 
-			PtsAndValues pav = load( synapseFile.getAbsolutePath() );
-			List<RealPoint> ptList = pav.ptList;
-			List< DoubleType > values = pav.values;
-//			if(  synapseFile.getName().startsWith( "cx" ))
-//			{
-//				System.out.println("loading synapses new");
-//				SynCollection<DoubleType> synapses = SynPrediction.loadAll( synapseFile.getAbsolutePath(), new DoubleType() );
-//				System.out.println( synapses );
-//
-//				System.out.println( "outFile: " + outFile );
-//
-//				newSynapseJson = true;
-//				ptList = synapses.getPoints();
-//				values = synapses.getValues();
-//			}
-//			else
-//			{
-//				System.out.println("loading tbars old");
-//				TbarCollection<DoubleType> tbars = TbarPrediction.loadAll( synapseFile.getAbsolutePath(), new DoubleType() );
-//
-//				System.out.println( "outFile: " + outFile );
-//				System.out.println( tbars );
-//				ptList = tbars.getPoints();
-//				values = tbars.getValues();
-//			}
-			
+			SynColumns synapses = SynColumns.load( synapseFile.getAbsolutePath() );
+			System.out.println( "synapses: " + synapses );
+
 			String topDatasetName = topDatasetNames.get( i );
 			String botDatasetName = botDatasetNames.get( i );
 
@@ -289,18 +267,12 @@ public class SynapseJsonXfmFlyemInc<T extends RealType<T>,P extends RealLocaliza
 			inv.setDefaultIndex( 1 );			
 			inv.setFixZ( fixZ );
 			
-			RealPointErrorList pts_xfm = transformPointsWithErrors( ptList, inv );
-			
-			SynCollection< DoubleType > syns_xfm = new SynCollection< DoubleType >( 
-					pts_xfm.pts,
-					values,
-					pts_xfm.errs,
-					new DoubleType() );
-			
-			System.out.println( "transformed synapses: " + syns_xfm );
-			// System.out.println( "fraction failed: " + syns_xfm.fractionFailed() ); 
-			
-			SynPrediction.write( syns_xfm, outFile.getAbsolutePath() );
+			// transformed synapses go straight to the output file
+			try( SynapseJsonWriter out = SynapseJsonWriter.open( outFile.getAbsolutePath() ) )
+			{
+				transformPointsWithErrors( synapses, inv, out );
+				System.out.println( "transformed synapses: " + out.size() );
+			}
 
 		}
 	}
@@ -371,6 +343,36 @@ public class SynapseJsonXfmFlyemInc<T extends RealType<T>,P extends RealLocaliza
 		return ptsAndErrs;
 	}
 	
+	/**
+	 * Transforms every synapse into new columns, keeping kind and confidence
+	 * and storing the inverter's best error as the error.
+	 */
+	public static SynColumns transformPointsWithErrors(
+			final SynColumns syns, final IncrementalInverter xfm )
+	{
+		final SynColumns out = new SynColumns( syns.size() );
+		transformPointsWithErrors( syns, xfm, out );
+		return out;
+	}
+
+	/**
+	 * Transforms every synapse and hands it to a sink, e.g. a
+	 * {@link SynapseJsonWriter}, so the result is never held in memory.
+	 */
+	public static void transformPointsWithErrors(
+			final SynColumns syns, final IncrementalInverter xfm, final SynapseSink out )
+	{
+		final double[] source = new double[ 3 ];
+		final double[] target = new double[ 3 ];
+		for( int i = 0; i < syns.size(); i++ )
+		{
+			syns.localize( i, source );
+			xfm.apply( source, target );
+			out.accept( syns.getKind( i ), target[ 0 ], target[ 1 ], target[ 2 ],
+					syns.getConfidence( i ), xfm.getBestError() );
+		}
+	}
+
 	public static class RealPointErrorList
 	{
 		public final ArrayList<RealPoint> pts;
@@ -387,49 +389,33 @@ public class SynapseJsonXfmFlyemInc<T extends RealType<T>,P extends RealLocaliza
 		}
 	}
 	
+	/**
+	 * Loads synapses or T-bars, detecting the format from the first bytes of
+	 * the file so that it is read only once.
+	 *
+	 * @param synapseFilePath the file
+	 * @return the points and their confidences, or null if the file could not be read
+	 */
 	public static PtsAndValues load( String synapseFilePath )
 	{
-		boolean success = false;
-		PtsAndValues output = null;
-		String errNew = "";
-		String errOld = "";
-		try
-		{
-			SynCollection<DoubleType> synapses = SynPrediction.loadAll( synapseFilePath, new DoubleType() );
-			System.out.println( "tbars: " + synapses );
-			output = new PtsAndValues( synapses.getPoints(), synapses.getValues() );
-			success = true;
-		}
-		catch( Exception e )
-		{
-			System.out.println( "Not a new synapse json" );
-			errNew = e.getMessage();
-		}
-		
-		if( success )
-			return output;
-		
 		try
 		{
-			TbarCollection<DoubleType> tbars = TbarPrediction.loadAll( synapseFilePath, new DoubleType() );
-			System.out.println( "tbars: " + tbars );
-			output = new PtsAndValues( tbars.getPoints(), tbars.getValues() );
-			success = true;
+			SynColumns synapses = PointFormats.load( synapseFilePath );
+			System.out.println( "synapses: " + synapses );
+
+			// copies, callers may modify the lists
+			List<RealPoint> ptList = synapses.positions().stream()
+					.map( p -> new RealPoint( p ) )
+					.collect( Collectors.toList() );
+			List<DoubleType> values = new ArrayList<>( synapses.values( new DoubleType() ) );
+			return new PtsAndValues( ptList, values );
 		}
-		catch( Exception e )
-		{
-			System.out.println( "Not an old synapse json" );
-			errOld = e.getMessage();
-		}
-		
-		if( !success )
+		catch( IOException e )
 		{
 			System.err.println( "Could not read synapses/tbars " );
-			System.err.println( "new format error: \n " + errNew );
-			System.err.println( "old format error: \n " + errOld );
+			System.err.println( e.getMessage() );
+			return null;
 		}
-
-		return output;
 	}
 	
 	public static class PtsAndValues
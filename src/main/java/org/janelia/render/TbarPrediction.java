@@ -1,18 +1,21 @@
 package org.janelia.render;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import org.janelia.render.data.BinaryPointFormat;
+import org.janelia.render.data.JsonPointParser;
+import org.janelia.render.data.ParallelJsonReader;
+import org.janelia.render.data.TbarSink;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -61,6 +64,11 @@ public class TbarPrediction extends AbstractRealType<TbarPrediction> implements
 		System.out.println( "done" );
 	}
 
+	/**
+	 * @deprecated java serialization breaks whenever the classes change,
+	 * use {@link #writeBinary(TbarCollection, String)} instead.
+	 */
+	@Deprecated
 	public static void write( TbarCollection<?> tbars, String outpath )
 	{
 		try {
@@ -78,6 +86,31 @@ public class TbarPrediction extends AbstractRealType<TbarPrediction> implements
 		}
 	}
 	
+	/**
+	 * Writes the T-bars and their partners in the columnar {@link BinaryPointFormat}.
+	 *
+	 * @param tbars the T-bars
+	 * @param outpath the output file
+	 * @throws IOException
+	 */
+	public static void writeBinary( TbarCollection<?> tbars, String outpath ) throws IOException
+	{
+		BinaryPointFormat.write( tbars, outpath );
+	}
+
+	/**
+	 * Loads T-bars written by {@link #writeBinary(TbarCollection, String)}.
+	 *
+	 * @param path the binary file
+	 * @param type the value type
+	 * @return the T-bar collection
+	 * @throws IOException
+	 */
+	public static <T extends RealType<T>> TbarCollection<T> loadBinary( String path, T type ) throws IOException
+	{
+		return BinaryPointFormat.readTbars( path, type );
+	}
+
 	public static TbarPrediction load( JSONObject obj )
 	{
 		TbarPrediction out = new TbarPrediction();
@@ -105,6 +138,10 @@ public class TbarPrediction extends AbstractRealType<TbarPrediction> implements
 		return out;
 	}
 
+	/**
+	 * @deprecated use {@link #loadBinary(String, RealType)} instead.
+	 */
+	@Deprecated
 	public static TbarCollection loadSerialized( String path )
 	{
 		if( !path.endsWith( ".ser" ))
@@ -130,41 +167,116 @@ public class TbarPrediction extends AbstractRealType<TbarPrediction> implements
 		return tbars;
 	}
 	
+	/**
+	 * Loads all T-bars in the "data" array of a json file, streaming them
+	 * straight into the collection.
+	 *
+	 * @param path the json file
+	 * @param type the value type
+	 * @return the T-bar collection
+	 * @throws UncheckedIOException if the file can not be read or is not a T-bar file
+	 */
 	public static <T extends RealType<T>> TbarCollection<T> loadAll( String path, T type )
 	{
-//		String jsonData = "";
-		BufferedReader br = null;
-		StringBuffer jsonData = new StringBuffer();
-		try {
-			String line;
-			br = new BufferedReader(new FileReader( path ));
-			System.out.println("reading");
-			int i = 0;
-			while ((line = br.readLine()) != null) {
-				jsonData.append( line );
-				jsonData.append( '\n' );
-				i++;
-
-//				if( i % 10000 == 0 )
-//				{
-//					System.out.println( "line i: " + i + " out of ~12m" );
-//				}
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (br != null)
-					br.close();
-			} catch (IOException ex) {
-				ex.printStackTrace();
+		final TbarCollector tbars = new TbarCollector();
+		System.out.println("reading");
+		try
+		{
+			JsonPointParser.readTbars( path, tbars );
+		}
+		catch( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		return new TbarCollection<T>( tbars.list, tbars.min, tbars.max, type );
+	}
+
+	/**
+	 * Loads all T-bars in a json file like {@link #loadAll(String, RealType)},
+	 * but parses chunks of the "data" array in parallel on the common fork-join pool.
+	 *
+	 * @param path the json file
+	 * @param type the value type
+	 * @return the T-bar collection
+	 * @throws UncheckedIOException if the file can not be read or is not a T-bar file
+	 */
+	public static <T extends RealType<T>> TbarCollection<T> loadAllParallel( String path, T type )
+	{
+		final List<TbarCollector> chunks;
+		System.out.println("reading in parallel");
+		try
+		{
+			chunks = ParallelJsonReader.readTbars( path, TbarCollector::new );
+		}
+		catch( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+
+		final TbarCollector tbars = new TbarCollector( chunks.stream().mapToInt( c -> c.list.size() ).sum() );
+		for( TbarCollector c : chunks )
+			tbars.addAll( c );
+
+		return new TbarCollection<T>( tbars.list, tbars.min, tbars.max, type );
+	}
+
+	/**
+	 * Collects parsed T-bars with their partners and their bounding box.
+	 */
+	private static class TbarCollector implements TbarSink
+	{
+		final ArrayList<TbarPrediction> list;
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		private TbarPrediction current;
+		private int k;
+
+		TbarCollector()
+		{
+			this( 10 );
+		}
+
+		TbarCollector( final int capacity )
+		{
+			list = new ArrayList<TbarPrediction>( capacity );
+			Arrays.fill( min, Long.MAX_VALUE );
+			Arrays.fill( max, Long.MIN_VALUE );
+		}
+
+		@Override
+		public void tbar( final String status, final double confidence, final long bodyId,
+				final double x, final double y, final double z, final int numPartners )
+		{
+			current = new TbarPrediction();
+			current.status = status;
+			current.confidence = confidence;
+			current.body_ID = (int)bodyId;
+			current.location = new int[]{ (int)x, (int)y, (int)z };
+			current.partners = new TbarPartner[ numPartners ];
+			k = 0;
+
+			updateMinMax( min, max, current );
+			list.add( current );
+		}
+
+		@Override
+		public void partner( final double confidence, final long bodyId,
+				final double x, final double y, final double z )
+		{
+			current.partners[ k++ ] = new TbarPartner( confidence, (int)bodyId,
+					new int[]{ (int)x, (int)y, (int)z } );
+		}
+
+		void addAll( final TbarCollector other )
+		{
+			list.addAll( other.list );
+			for( int d = 0; d < 3; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], other.min[ d ] );
+				max[ d ] = Math.max( max[ d ], other.max[ d ] );
 			}
 		}
-		JSONObject obj = new JSONObject(jsonData.toString());
-		JSONArray data = obj.getJSONArray("data");
-		TbarCollection<T> tbars = TbarPrediction.loadAll( data, type );
-		return tbars;
 	}
 
 	public static <T extends RealType<T>> TbarCollection<T> loadAll( JSONArray tbarArray, T type )
@@ -0,0 +1,798 @@
+package org.janelia.render.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.render.SynPrediction;
+import org.janelia.render.SynPrediction.SynCollection;
+import org.janelia.render.TbarPrediction;
+import org.janelia.render.TbarPrediction.TbarCollection;
+import org.janelia.render.TbarPrediction.TbarPartner;
+
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A versioned, column oriented binary format for synapse and T-bar
+ * collections that replaces java serialization of the collection objects.
+ * <p>
+ * All values are little endian. The file starts with a header
+ * <pre>
+ * int     magic ("SYNB")
+ * int     version
+ * byte    content ({@link #SYNAPSES} or {@link #TBARS})
+ * byte    1 if the coordinates are integer valued, else 0
+ * short   0, padding
+ * int     number of points n
+ * int     number of T-bar partners m (0 for synapses)
+ * long[3] bounding box min
+ * long[3] bounding box max
+ * short   number of dictionary entries, followed by each entry as
+ *         short length (-1 for null) and that many utf-8 bytes
+ * </pre>
+ * followed by the columns
+ * <pre>
+ * T[3n]      xyz, interleaved
+ * double[n]  confidence
+ * byte[n]    kind (synapses) or status (T-bars) as dictionary index
+ * </pre>
+ * and for synapses
+ * <pre>
+ * double[n]  error
+ * </pre>
+ * or for T-bars
+ * <pre>
+ * long[n]    body ID
+ * int[n+1]   partner offsets, the partners of T-bar i are [offset[i], offset[i+1])
+ * T[3m]      partner xyz, interleaved
+ * double[m]  partner confidence
+ * long[m]    partner body ID
+ * </pre>
+ * where T is int if the coordinates are integer valued and float else.
+ * Version 1 files, which stored all coordinates as double, are still
+ * read.
+ */
+public class BinaryPointFormat
+{
+	public static final int MAGIC = 0x53594e42;
+
+	public static final int VERSION = 2;
+
+	public static final byte SYNAPSES = 0;
+
+	public static final byte TBARS = 1;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	public static class Header
+	{
+		public final int version;
+		public final byte content;
+		public final boolean integerCoordinates;
+		public final int numPoints;
+		public final int numPartners;
+		public final long[] min;
+		public final long[] max;
+		public final List< String > dictionary;
+
+		public Header( final int version, final byte content, final boolean integerCoordinates,
+				final int numPoints, final int numPartners,
+				final long[] min, final long[] max,
+				final List< String > dictionary )
+		{
+			this.version = version;
+			this.content = content;
+			this.integerCoordinates = integerCoordinates;
+			this.numPoints = numPoints;
+			this.numPartners = numPartners;
+			this.min = min;
+			this.max = max;
+			this.dictionary = dictionary;
+		}
+	}
+
+	public static void write( final SynCollection< ? > syns, final String path ) throws IOException
+	{
+		final ArrayList< SynPrediction > list = syns.getList();
+		final int n = list.size();
+
+		boolean integerCoordinates = true;
+		final ArrayList< String > dictionary = new ArrayList<>();
+		for( final SynPrediction syn : list )
+		{
+			integerCoordinates &= syn.location != null;
+			code( dictionary, syn.kind );
+		}
+
+		try( final FileChannel ch = openForWriting( path ) )
+		{
+			final ByteBuffer buf = newBuffer();
+			// the bounds are transient and missing from deserialized collections
+			final long[] min = syns.min != null ? syns.min : new long[ 3 ];
+			final long[] max = syns.max != null ? syns.max : new long[ 3 ];
+			if( syns.min == null )
+				bounds( list, min, max );
+
+			writeHeader( ch, buf, new Header( VERSION, SYNAPSES, integerCoordinates, n, 0,
+					min, max, dictionary ) );
+
+			for( final SynPrediction syn : list )
+			{
+				ensure( ch, buf, 12 );
+				if( syn.location != null )
+					putPosition( buf, integerCoordinates, syn.location[ 0 ], syn.location[ 1 ], syn.location[ 2 ] );
+				else
+					putPosition( buf, integerCoordinates, syn.locationDouble[ 0 ], syn.locationDouble[ 1 ], syn.locationDouble[ 2 ] );
+			}
+
+			for( final SynPrediction syn : list )
+			{
+				ensure( ch, buf, 8 );
+				buf.putDouble( syn.props.conf );
+			}
+
+			for( final SynPrediction syn : list )
+			{
+				ensure( ch, buf, 1 );
+				buf.put( (byte)code( dictionary, syn.kind ) );
+			}
+
+			for( final SynPrediction syn : list )
+			{
+				ensure( ch, buf, 8 );
+				buf.putDouble( syn.error );
+			}
+
+			flush( ch, buf );
+		}
+	}
+
+	public static void write( final TbarCollection< ? > tbars, final String path ) throws IOException
+	{
+		final ArrayList< TbarPrediction > list = tbars.list;
+		final int n = list.size();
+
+		int m = 0;
+		final ArrayList< String > dictionary = new ArrayList<>();
+		for( final TbarPrediction tbar : list )
+		{
+			code( dictionary, tbar.status );
+			m += numPartners( tbar );
+		}
+
+		try( final FileChannel ch = openForWriting( path ) )
+		{
+			final ByteBuffer buf = newBuffer();
+			writeHeader( ch, buf, new Header( VERSION, TBARS, true, n, m,
+					tbars.min, tbars.max, dictionary ) );
+
+			for( final TbarPrediction tbar : list )
+			{
+				ensure( ch, buf, 12 );
+				putPosition( buf, true, tbar.location[ 0 ], tbar.location[ 1 ], tbar.location[ 2 ] );
+			}
+
+			for( final TbarPrediction tbar : list )
+			{
+				ensure( ch, buf, 8 );
+				buf.putDouble( tbar.confidence );
+			}
+
+			for( final TbarPrediction tbar : list )
+			{
+				ensure( ch, buf, 1 );
+				buf.put( (byte)code( dictionary, tbar.status ) );
+			}
+
+			for( final TbarPrediction tbar : list )
+			{
+				ensure( ch, buf, 8 );
+				buf.putLong( tbar.body_ID );
+			}
+
+			int offset = 0;
+			ensure( ch, buf, 4 );
+			buf.putInt( offset );
+			for( final TbarPrediction tbar : list )
+			{
+				offset += numPartners( tbar );
+				ensure( ch, buf, 4 );
+				buf.putInt( offset );
+			}
+
+			for( final TbarPrediction tbar : list )
+				for( int i = 0; i < numPartners( tbar ); i++ )
+				{
+					final int[] location = tbar.partners[ i ].location;
+					ensure( ch, buf, 12 );
+					putPosition( buf, true, location[ 0 ], location[ 1 ], location[ 2 ] );
+				}
+
+			for( final TbarPrediction tbar : list )
+				for( int i = 0; i < numPartners( tbar ); i++ )
+				{
+					ensure( ch, buf, 8 );
+					buf.putDouble( tbar.partners[ i ].confidence );
+				}
+
+			for( final TbarPrediction tbar : list )
+				for( int i = 0; i < numPartners( tbar ); i++ )
+				{
+					ensure( ch, buf, 8 );
+					buf.putLong( tbar.partners[ i ].body_ID );
+				}
+
+			flush( ch, buf );
+		}
+	}
+
+	public static void write( final TbarGraph tbars, final String path ) throws IOException
+	{
+		final int n = tbars.size();
+		final int m = tbars.numPartners();
+
+		boolean integerCoordinates = true;
+		final ArrayList< String > dictionary = new ArrayList<>();
+		for( int i = 0; i < n; i++ )
+		{
+			for( int d = 0; d < 3; d++ )
+				integerCoordinates &= isInt( tbars.getDoublePosition( i, d ) );
+
+			code( dictionary, tbars.getStatus( i ) );
+		}
+		for( int p = 0; p < m; p++ )
+			for( int d = 0; d < 3; d++ )
+				integerCoordinates &= isInt( tbars.getPartnerDoublePosition( p, d ) );
+
+		try( final FileChannel ch = openForWriting( path ) )
+		{
+			final ByteBuffer buf = newBuffer();
+			writeHeader( ch, buf, new Header( VERSION, TBARS, integerCoordinates, n, m,
+					n == 0 ? new long[ 3 ] : tbars.getMin(), n == 0 ? new long[ 3 ] : tbars.getMax(), dictionary ) );
+
+			for( int i = 0; i < n; i++ )
+			{
+				ensure( ch, buf, 12 );
+				putPosition( buf, integerCoordinates,
+						tbars.getDoublePosition( i, 0 ), tbars.getDoublePosition( i, 1 ), tbars.getDoublePosition( i, 2 ) );
+			}
+
+			for( int i = 0; i < n; i++ )
+			{
+				ensure( ch, buf, 8 );
+				buf.putDouble( tbars.getConfidence( i ) );
+			}
+
+			for( int i = 0; i < n; i++ )
+			{
+				ensure( ch, buf, 1 );
+				buf.put( (byte)code( dictionary, tbars.getStatus( i ) ) );
+			}
+
+			for( int i = 0; i < n; i++ )
+			{
+				ensure( ch, buf, 8 );
+				buf.putLong( tbars.getBodyId( i ) );
+			}
+
+			for( int i = 0; i <= n; i++ )
+			{
+				ensure( ch, buf, 4 );
+				buf.putInt( i < n ? tbars.partnerStart( i ) : m );
+			}
+
+			for( int p = 0; p < m; p++ )
+			{
+				ensure( ch, buf, 12 );
+				putPosition( buf, integerCoordinates,
+						tbars.getPartnerDoublePosition( p, 0 ), tbars.getPartnerDoublePosition( p, 1 ), tbars.getPartnerDoublePosition( p, 2 ) );
+			}
+
+			for( int p = 0; p < m; p++ )
+			{
+				ensure( ch, buf, 8 );
+				buf.putDouble( tbars.getPartnerConfidence( p ) );
+			}
+
+			for( int p = 0; p < m; p++ )
+			{
+				ensure( ch, buf, 8 );
+				buf.putLong( tbars.getPartnerBodyId( p ) );
+			}
+
+			flush( ch, buf );
+		}
+	}
+
+	public static < T extends RealType< T > > SynCollection< T > readSynapses( final String path, final T t ) throws IOException
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer buf = newBuffer();
+			final Header header = readHeader( ch, buf );
+			if( header.content != SYNAPSES )
+				throw new IOException( path + " does not contain synapses" );
+
+			final int n = header.numPoints;
+			final double[] xyz = new double[ 3 * n ];
+			final double[] conf = new double[ n ];
+			final byte[] kind = new byte[ n ];
+			final double[] err = new double[ n ];
+			readPositions( ch, buf, header, xyz );
+			readDoubles( ch, buf, conf );
+			readBytes( ch, buf, kind );
+			readDoubles( ch, buf, err );
+
+			final ArrayList< SynPrediction > list = new ArrayList<>( n );
+			for( int i = 0; i < n; i++ )
+			{
+				final int j = 3 * i;
+				final String k = header.dictionary.get( kind[ i ] & 0xff );
+				if( header.integerCoordinates )
+					list.add( new SynPrediction( k,
+							new int[]{ (int)xyz[ j ], (int)xyz[ j + 1 ], (int)xyz[ j + 2 ] },
+							conf[ i ], err[ i ] ) );
+				else
+					list.add( new SynPrediction( k,
+							new double[]{ xyz[ j ], xyz[ j + 1 ], xyz[ j + 2 ] },
+							conf[ i ], err[ i ] ) );
+			}
+
+			return new SynCollection< T >( list, header.min, header.max, t );
+		}
+	}
+
+	public static < T extends RealType< T > > TbarCollection< T > readTbars( final String path, final T t ) throws IOException
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer buf = newBuffer();
+			final Header header = readHeader( ch, buf );
+			if( header.content != TBARS )
+				throw new IOException( path + " does not contain T-bars" );
+
+			final int n = header.numPoints;
+			final int m = header.numPartners;
+			final double[] xyz = new double[ 3 * n ];
+			final double[] conf = new double[ n ];
+			final byte[] status = new byte[ n ];
+			final long[] bodyId = new long[ n ];
+			final int[] offsets = new int[ n + 1 ];
+			final double[] partnerXyz = new double[ 3 * m ];
+			final double[] partnerConf = new double[ m ];
+			final long[] partnerBodyId = new long[ m ];
+			readPositions( ch, buf, header, xyz );
+			readDoubles( ch, buf, conf );
+			readBytes( ch, buf, status );
+			readLongs( ch, buf, bodyId );
+			readInts( ch, buf, offsets );
+			readPositions( ch, buf, header, partnerXyz );
+			readDoubles( ch, buf, partnerConf );
+			readLongs( ch, buf, partnerBodyId );
+
+			final ArrayList< TbarPrediction > list = new ArrayList<>( n );
+			for( int i = 0; i < n; i++ )
+			{
+				final int j = 3 * i;
+				final TbarPrediction tbar = new TbarPrediction();
+				tbar.status = header.dictionary.get( status[ i ] & 0xff );
+				tbar.confidence = conf[ i ];
+				tbar.body_ID = (int)bodyId[ i ];
+				tbar.location = new int[]{ (int)xyz[ j ], (int)xyz[ j + 1 ], (int)xyz[ j + 2 ] };
+
+				tbar.partners = new TbarPartner[ offsets[ i + 1 ] - offsets[ i ] ];
+				for( int p = offsets[ i ]; p < offsets[ i + 1 ]; p++ )
+				{
+					final int q = 3 * p;
+					tbar.partners[ p - offsets[ i ] ] = new TbarPartner( partnerConf[ p ], (int)partnerBodyId[ p ],
+							new int[]{ (int)partnerXyz[ q ], (int)partnerXyz[ q + 1 ], (int)partnerXyz[ q + 2 ] } );
+				}
+				list.add( tbar );
+			}
+
+			return new TbarCollection< T >( list, header.min, header.max, t );
+		}
+	}
+
+	/**
+	 * Reads the T-bars and partners of a file into a sink without creating
+	 * an object per T-bar or partner, e.g. into a {@link TbarGraph}.
+	 *
+	 * @param path the file
+	 * @param sink receives every T-bar followed by its partners
+	 * @throws IOException if the file does not contain T-bars
+	 */
+	public static void readTbarGraph( final String path, final TbarSink sink ) throws IOException
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer buf = newBuffer();
+			final Header header = readHeader( ch, buf );
+			if( header.content != TBARS )
+				throw new IOException( path + " does not contain T-bars" );
+
+			final int n = header.numPoints;
+			final int m = header.numPartners;
+			final double[] xyz = new double[ 3 * n ];
+			final double[] conf = new double[ n ];
+			final byte[] status = new byte[ n ];
+			final long[] bodyId = new long[ n ];
+			final int[] offsets = new int[ n + 1 ];
+			final double[] partnerXyz = new double[ 3 * m ];
+			final double[] partnerConf = new double[ m ];
+			final long[] partnerBodyId = new long[ m ];
+			readPositions( ch, buf, header, xyz );
+			readDoubles( ch, buf, conf );
+			readBytes( ch, buf, status );
+			readLongs( ch, buf, bodyId );
+			readInts( ch, buf, offsets );
+			readPositions( ch, buf, header, partnerXyz );
+			readDoubles( ch, buf, partnerConf );
+			readLongs( ch, buf, partnerBodyId );
+
+			for( int i = 0; i < n; i++ )
+			{
+				final int j = 3 * i;
+				sink.tbar( header.dictionary.get( status[ i ] & 0xff ), conf[ i ], bodyId[ i ],
+						xyz[ j ], xyz[ j + 1 ], xyz[ j + 2 ], offsets[ i + 1 ] - offsets[ i ] );
+
+				for( int p = offsets[ i ]; p < offsets[ i + 1 ]; p++ )
+				{
+					final int q = 3 * p;
+					sink.partner( partnerConf[ p ], partnerBodyId[ p ], partnerXyz[ q ], partnerXyz[ q + 1 ], partnerXyz[ q + 2 ] );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the points of a synapse or T-bar file into a sink without
+	 * creating an object per point or an array of all points, the columns
+	 * are read in chunks of 1 MB. T-bars have zero error and kind
+	 * {@link PointFilter#TBAR_KIND}, like T-bars from json, partners are
+	 * skipped.
+	 *
+	 * @param path the file
+	 * @param sink receives every point
+	 * @throws IOException if the file is not in this format
+	 */
+	public static void readPoints( final String path, final SynapseSink sink ) throws IOException
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final Header header = readHeader( ch, newBuffer() );
+			final int n = header.numPoints;
+			final boolean tbars = header.content == TBARS;
+			final int positionBytes = header.version < 2 ? 24 : 12;
+
+			// the columns are read side by side in chunks, so the sink sees
+			// every point before the next chunk and rejected points are never stored
+			final long xyzStart = ch.position();
+			final long confStart = xyzStart + (long)positionBytes * n;
+			final long kindStart = confStart + 8L * n;
+			final long errStart = kindStart + n;
+
+			final ByteBuffer xyz = newBuffer();
+			final ByteBuffer conf = newBuffer();
+			final ByteBuffer kind = newBuffer();
+			final ByteBuffer err = newBuffer();
+			final int chunkSize = BUFFER_SIZE / positionBytes;
+			for( int i = 0; i < n; i += chunkSize )
+			{
+				final int len = Math.min( chunkSize, n - i );
+				fill( ch, xyz, xyzStart + (long)positionBytes * i, positionBytes * len );
+				fill( ch, conf, confStart + 8L * i, 8 * len );
+				if( !tbars )
+				{
+					fill( ch, kind, kindStart + i, len );
+					fill( ch, err, errStart + 8L * i, 8 * len );
+				}
+
+				for( int k = 0; k < len; k++ )
+				{
+					final double x = getCoordinate( xyz, header );
+					final double y = getCoordinate( xyz, header );
+					final double z = getCoordinate( xyz, header );
+					sink.accept( tbars ? PointFilter.TBAR_KIND : header.dictionary.get( kind.get() & 0xff ),
+							x, y, z, conf.getDouble(), tbars ? 0 : err.getDouble() );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads only the header of a file.
+	 *
+	 * @param path the file
+	 * @return the header
+	 * @throws IOException if the file is not in this format
+	 */
+	public static Header readHeader( final String path ) throws IOException
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			return readHeader( ch, newBuffer() );
+		}
+	}
+
+	public static Header readHeader( final ReadableByteChannel ch, final ByteBuffer buf ) throws IOException
+	{
+		fill( ch, buf, 12 );
+		if( buf.getInt() != MAGIC )
+			throw new IOException( "not a binary point file" );
+
+		final int version = buf.getInt();
+		if( version > VERSION )
+			throw new IOException( "unsupported binary point file version " + version );
+
+		final byte content = buf.get();
+		final boolean integerCoordinates = buf.get() != 0;
+		buf.getShort();
+
+		fill( ch, buf, 8 + 48 + 2 );
+		final int numPoints = buf.getInt();
+		final int numPartners = buf.getInt();
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for( int d = 0; d < 3; d++ )
+			min[ d ] = buf.getLong();
+		for( int d = 0; d < 3; d++ )
+			max[ d ] = buf.getLong();
+
+		final int numEntries = buf.getShort();
+		final ArrayList< String > dictionary = new ArrayList<>( numEntries );
+		for( int i = 0; i < numEntries; i++ )
+		{
+			fill( ch, buf, 2 );
+			final int len = buf.getShort();
+			if( len < 0 )
+				dictionary.add( null );
+			else
+			{
+				final byte[] bytes = new byte[ len ];
+				readBytes( ch, buf, bytes );
+				dictionary.add( new String( bytes, StandardCharsets.UTF_8 ) );
+			}
+		}
+
+		return new Header( version, content, integerCoordinates, numPoints, numPartners, min, max, dictionary );
+	}
+
+	private static void writeHeader( final WritableByteChannel ch, final ByteBuffer buf, final Header header ) throws IOException
+	{
+		buf.putInt( MAGIC );
+		buf.putInt( header.version );
+		buf.put( header.content );
+		buf.put( (byte)( header.integerCoordinates ? 1 : 0 ) );
+		buf.putShort( (short)0 );
+		buf.putInt( header.numPoints );
+		buf.putInt( header.numPartners );
+		for( int d = 0; d < 3; d++ )
+			buf.putLong( header.min[ d ] );
+		for( int d = 0; d < 3; d++ )
+			buf.putLong( header.max[ d ] );
+
+		buf.putShort( (short)header.dictionary.size() );
+		for( final String s : header.dictionary )
+		{
+			if( s == null )
+			{
+				ensure( ch, buf, 2 );
+				buf.putShort( (short)-1 );
+			}
+			else
+			{
+				final byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+				ensure( ch, buf, 2 + bytes.length );
+				buf.putShort( (short)bytes.length );
+				buf.put( bytes );
+			}
+		}
+	}
+
+	/**
+	 * Returns the dictionary index of a value, adding it if it is new.
+	 */
+	private static int code( final List< String > dictionary, final String value )
+	{
+		final int i = dictionary.indexOf( value );
+		if( i >= 0 )
+			return i;
+
+		if( dictionary.size() > 255 )
+			throw new IllegalArgumentException( "more than 256 distinct kinds or statuses" );
+
+		dictionary.add( value );
+		return dictionary.size() - 1;
+	}
+
+	private static void bounds( final List< SynPrediction > list, final long[] min, final long[] max )
+	{
+		Arrays.fill( min, Long.MAX_VALUE );
+		Arrays.fill( max, Long.MIN_VALUE );
+		for( final SynPrediction syn : list )
+			for( int d = 0; d < 3; d++ )
+			{
+				final double x = syn.location != null ? syn.location[ d ] : syn.locationDouble[ d ];
+				min[ d ] = Math.min( min[ d ], (long)Math.floor( x ) );
+				max[ d ] = Math.max( max[ d ], (long)Math.ceil( x ) );
+			}
+	}
+
+	private static int numPartners( final TbarPrediction tbar )
+	{
+		return tbar.partners == null ? 0 : tbar.partners.length;
+	}
+
+	private static boolean isInt( final double x )
+	{
+		return x == Math.rint( x ) && Math.abs( x ) <= Integer.MAX_VALUE;
+	}
+
+	private static void putPosition( final ByteBuffer buf, final boolean integerCoordinates,
+			final double x, final double y, final double z )
+	{
+		if( integerCoordinates )
+		{
+			buf.putInt( (int)x );
+			buf.putInt( (int)y );
+			buf.putInt( (int)z );
+		}
+		else
+		{
+			buf.putFloat( (float)x );
+			buf.putFloat( (float)y );
+			buf.putFloat( (float)z );
+		}
+	}
+
+	private static FileChannel openForWriting( final String path ) throws IOException
+	{
+		return FileChannel.open( Paths.get( path ),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE );
+	}
+
+	private static ByteBuffer newBuffer()
+	{
+		return ByteBuffer.allocateDirect( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	/**
+	 * Writes out the buffer if fewer than numBytes are left in it.
+	 */
+	private static void ensure( final WritableByteChannel ch, final ByteBuffer buf, final int numBytes ) throws IOException
+	{
+		if( buf.remaining() < numBytes )
+			flush( ch, buf );
+	}
+
+	private static void flush( final WritableByteChannel ch, final ByteBuffer buf ) throws IOException
+	{
+		buf.flip();
+		while( buf.hasRemaining() )
+			ch.write( buf );
+
+		buf.clear();
+	}
+
+	/**
+	 * Reads exactly numBytes into the cleared buffer and flips it for reading.
+	 */
+	private static void fill( final ReadableByteChannel ch, final ByteBuffer buf, final int numBytes ) throws IOException
+	{
+		buf.clear();
+		buf.limit( numBytes );
+		while( buf.hasRemaining() )
+			if( ch.read( buf ) < 0 )
+				throw new IOException( "unexpected end of binary point file" );
+
+		buf.flip();
+	}
+
+	/**
+	 * Reads exactly numBytes from a position of the file into the cleared
+	 * buffer and flips it for reading.
+	 */
+	private static void fill( final FileChannel ch, final ByteBuffer buf, final long position, final int numBytes ) throws IOException
+	{
+		buf.clear();
+		buf.limit( numBytes );
+		while( buf.hasRemaining() )
+			if( ch.read( buf, position + buf.position() ) < 0 )
+				throw new IOException( "unexpected end of binary point file" );
+
+		buf.flip();
+	}
+
+	/**
+	 * Reads one coordinate, an int or float, or a double in version 1 files.
+	 */
+	private static double getCoordinate( final ByteBuffer buf, final Header header )
+	{
+		if( header.version < 2 )
+			return buf.getDouble();
+
+		return header.integerCoordinates ? buf.getInt() : buf.getFloat();
+	}
+
+	private static void readDoubles( final ReadableByteChannel ch, final ByteBuffer buf, final double[] values ) throws IOException
+	{
+		final int step = buf.capacity() / 8;
+		for( int i = 0; i < values.length; i += step )
+		{
+			final int len = Math.min( step, values.length - i );
+			fill( ch, buf, 8 * len );
+			buf.asDoubleBuffer().get( values, i, len );
+		}
+	}
+
+	/**
+	 * Reads a column of interleaved coordinates, ints or floats, or doubles
+	 * in version 1 files.
+	 */
+	private static void readPositions( final ReadableByteChannel ch, final ByteBuffer buf, final Header header, final double[] xyz ) throws IOException
+	{
+		if( header.version < 2 )
+		{
+			readDoubles( ch, buf, xyz );
+			return;
+		}
+
+		final int step = buf.capacity() / 4;
+		for( int i = 0; i < xyz.length; i += step )
+		{
+			final int len = Math.min( step, xyz.length - i );
+			fill( ch, buf, 4 * len );
+			if( header.integerCoordinates )
+				for( int k = 0; k < len; k++ )
+					xyz[ i + k ] = buf.getInt();
+			else
+				for( int k = 0; k < len; k++ )
+					xyz[ i + k ] = buf.getFloat();
+		}
+	}
+
+	private static void readLongs( final ReadableByteChannel ch, final ByteBuffer buf, final long[] values ) throws IOException
+	{
+		final int step = buf.capacity() / 8;
+		for( int i = 0; i < values.length; i += step )
+		{
+			final int len = Math.min( step, values.length - i );
+			fill( ch, buf, 8 * len );
+			buf.asLongBuffer().get( values, i, len );
+		}
+	}
+
+	private static void readInts( final ReadableByteChannel ch, final ByteBuffer buf, final int[] values ) throws IOException
+	{
+		final int step = buf.capacity() / 4;
+		for( int i = 0; i < values.length; i += step )
+		{
+			final int len = Math.min( step, values.length - i );
+			fill( ch, buf, 4 * len );
+			buf.asIntBuffer().get( values, i, len );
+		}
+	}
+
+	private static void readBytes( final ReadableByteChannel ch, final ByteBuffer buf, final byte[] values ) throws IOException
+	{
+		final int step = buf.capacity();
+		for( int i = 0; i < values.length; i += step )
+		{
+			final int len = Math.min( step, values.length - i );
+			fill( ch, buf, len );
+			buf.get( values, i, len );
+		}
+	}
+}
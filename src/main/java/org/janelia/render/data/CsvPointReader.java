@@ -0,0 +1,399 @@
+package org.janelia.render.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Reads points from delimiter separated text files of x,y,z and an
+ * optional value (one if missing), as used by KDTreeRendererCsv,
+ * KDTreeRendererVNC and KDTreeRendererMaleBrain.
+ * <p>
+ * The file is cut into chunks at newlines and every chunk is memory-mapped
+ * and parsed byte by byte, without creating a String per line or field.
+ * Chunks are parsed in parallel on a fork-join pool, each into its own
+ * sink, like {@link ParallelJsonReader}. Subsampling, a value threshold,
+ * a per axis scale and a {@link PointFilter} are applied while parsing, so
+ * dropped points are never stored.
+ * <p>
+ * A first line that is not numeric is skipped as a header.
+ */
+public class CsvPointReader
+{
+	public static final long DEFAULT_CHUNK_SIZE = 16 << 20;
+
+	private static final double[] POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private byte delimiter = ',';
+
+	private int subsample = 1;
+
+	private double threshold = Double.NEGATIVE_INFINITY;
+
+	private double[] scale = null;
+
+	private PointFilter filter = null;
+
+	private long chunkSize = DEFAULT_CHUNK_SIZE;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * @param delimiter a single ascii character, or \t for tabs
+	 */
+	public CsvPointReader delimiter( final String delimiter )
+	{
+		if( delimiter.equals( "\\t" ) )
+			this.delimiter = '\t';
+		else if( delimiter.length() == 1 && delimiter.charAt( 0 ) < 0x80 )
+			this.delimiter = (byte)delimiter.charAt( 0 );
+		else
+			throw new IllegalArgumentException( "delimiter must be a single ascii character, but is \"" + delimiter + "\"" );
+
+		return this;
+	}
+
+	/**
+	 * Keeps only the points on every subsample-th line, counting all lines
+	 * of the file from zero.
+	 */
+	public CsvPointReader subsample( final int subsample )
+	{
+		if( subsample < 1 )
+			throw new IllegalArgumentException( "subsample factor must be positive, but is " + subsample );
+
+		this.subsample = subsample;
+		return this;
+	}
+
+	/**
+	 * Drops points whose value is below the threshold.
+	 */
+	public CsvPointReader threshold( final double threshold )
+	{
+		this.threshold = threshold;
+		return this;
+	}
+
+	/**
+	 * Multiplies x, y and z by these factors, e.g. the resolution of the
+	 * input points.
+	 */
+	public CsvPointReader scale( final double... scale )
+	{
+		if( scale != null && scale.length < 3 )
+			throw new IllegalArgumentException( "need a scale per axis" );
+
+		this.scale = scale;
+		return this;
+	}
+
+	/**
+	 * Keeps only the points that pass a filter, tested after scaling, with
+	 * a null kind and the value as confidence.
+	 */
+	public CsvPointReader filter( final PointFilter filter )
+	{
+		this.filter = filter;
+		return this;
+	}
+
+	public CsvPointReader chunkSize( final long chunkSize )
+	{
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	public CsvPointReader pool( final ForkJoinPool pool )
+	{
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Reads all points into columns, in parallel.
+	 *
+	 * @param path the file
+	 * @return the points with their value as confidence
+	 * @throws IOException if reading fails or a line is not numeric
+	 */
+	public SynColumns load( final String path ) throws IOException
+	{
+		return SynColumns.concatenate( read( path, SynColumns::new ) );
+	}
+
+	/**
+	 * Reads all points in file order on the calling thread.
+	 *
+	 * @param path the file
+	 * @param sink receives every point with its value as confidence
+	 * @throws IOException if reading fails or a line is not numeric
+	 */
+	public void read( final String path, final SynapseSink sink ) throws IOException
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			long line = 0;
+			for( final long[] chunk : ParallelJsonReader.lineChunks( path, chunkSize ) )
+				line = readChunk( path, ch, chunk, line, sink );
+		}
+	}
+
+	/**
+	 * Reads chunks of the file in parallel.
+	 *
+	 * @param path the file
+	 * @param sinks creates one sink per chunk
+	 * @return the filled sinks in file order
+	 * @throws IOException if reading fails or a line is not numeric
+	 */
+	public < S extends SynapseSink > List< S > read( final String path, final Supplier< S > sinks ) throws IOException
+	{
+		final List< long[] > chunks = ParallelJsonReader.lineChunks( path, chunkSize );
+		try
+		{
+			// the index of the first line of every chunk is only needed to subsample
+			final long[] firstLines = new long[ chunks.size() ];
+			if( subsample > 1 )
+			{
+				final long[] numLines = pool.submit( () -> chunks.parallelStream()
+						.mapToLong( chunk -> countLines( path, chunk ) )
+						.toArray() ).get();
+
+				for( int i = 1; i < firstLines.length; i++ )
+					firstLines[ i ] = firstLines[ i - 1 ] + numLines[ i - 1 ];
+			}
+
+			return pool.submit( () -> IntStream.range( 0, chunks.size() ).parallel()
+					.mapToObj( i -> {
+						try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+						{
+							final S sink = sinks.get();
+							readChunk( path, ch, chunks.get( i ), firstLines[ i ], sink );
+							return sink;
+						}
+						catch( final IOException e )
+						{
+							throw new UncheckedIOException( e );
+						}
+					})
+					.collect( Collectors.toList() ) ).get();
+		}
+		catch( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted reading " + path );
+		}
+		catch( final ExecutionException e )
+		{
+			if( e.getCause() instanceof UncheckedIOException )
+				throw ( (UncheckedIOException)e.getCause() ).getCause();
+			else if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException)e.getCause();
+			else
+				throw new IOException( e.getCause() );
+		}
+	}
+
+	private static long countLines( final String path, final long[] chunk )
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer bb = ch.map( MapMode.READ_ONLY, chunk[ 0 ], chunk[ 1 ] - chunk[ 0 ] );
+			long n = 0;
+			for( int i = 0; i < bb.limit(); i++ )
+				if( bb.get( i ) == '\n' )
+					n++;
+
+			// a last line without newline
+			if( bb.limit() > 0 && bb.get( bb.limit() - 1 ) != '\n' )
+				n++;
+
+			return n;
+		}
+		catch( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	/**
+	 * @return the index of the line after the chunk
+	 */
+	private long readChunk(
+			final String path,
+			final FileChannel ch,
+			final long[] chunk,
+			long line,
+			final SynapseSink sink ) throws IOException
+	{
+		final ByteBuffer bb = ch.map( MapMode.READ_ONLY, chunk[ 0 ], chunk[ 1 ] - chunk[ 0 ] );
+		final int n = bb.limit();
+		final double[] values = new double[ 4 ];
+
+		for( int start = 0; start < n; line++ )
+		{
+			int end = start;
+			while( end < n && bb.get( end ) != '\n' )
+				end++;
+
+			if( line % subsample == 0 )
+			{
+				final int numValues;
+				try
+				{
+					numValues = parseLine( bb, start, end, values );
+				}
+				catch( final NumberFormatException e )
+				{
+					if( chunk[ 0 ] + start != 0 )
+						throw new IOException( path + ": not a number in line starting at byte " + ( chunk[ 0 ] + start ) );
+
+					// header
+					start = end + 1;
+					continue;
+				}
+
+				if( numValues > 0 && numValues < 3 )
+					throw new IOException( path + ": expected x,y,z in line starting at byte " + ( chunk[ 0 ] + start ) );
+
+				final double v = numValues > 3 ? values[ 3 ] : 1;
+				if( numValues > 0 && !( v < threshold ) )
+				{
+					if( scale != null )
+						for( int d = 0; d < 3; d++ )
+							values[ d ] *= scale[ d ];
+
+					if( filter == null || filter.test( null, values[ 0 ], values[ 1 ], values[ 2 ], v ) )
+						sink.accept( null, values[ 0 ], values[ 1 ], values[ 2 ], v, 0 );
+				}
+			}
+			start = end + 1;
+		}
+		return line;
+	}
+
+	/**
+	 * Parses up to values.length fields of the line [start, end).
+	 *
+	 * @return the number of fields parsed, 0 for a blank line
+	 * @throws NumberFormatException if one of the fields is not a number
+	 */
+	private int parseLine( final ByteBuffer bb, final int start, final int end, final double[] values )
+	{
+		int numValues = 0;
+		int from = start;
+		while( from <= end && numValues < values.length )
+		{
+			int to = from;
+			while( to < end && bb.get( to ) != delimiter )
+				to++;
+
+			// skip whitespace and quotes around the field
+			int a = from;
+			int b = to;
+			while( a < b && isBlank( bb.get( a ) ) )
+				a++;
+			while( b > a && isBlank( bb.get( b - 1 ) ) )
+				b--;
+
+			if( a == b )
+			{
+				// blank line or trailing delimiter
+				if( numValues == 0 && to == end )
+					return 0;
+				else if( numValues >= 3 )
+					return numValues;
+
+				throw new NumberFormatException( "empty field" );
+			}
+
+			values[ numValues++ ] = parseDouble( bb, a, b );
+			from = to + 1;
+		}
+		return numValues;
+	}
+
+	private static boolean isBlank( final byte b )
+	{
+		return b == ' ' || b == '\t' || b == '\r' || b == '"';
+	}
+
+	/**
+	 * Parses the number in [start, end). Plain decimals of up to 15
+	 * significant digits are computed exactly from their digits, all other
+	 * numbers by Double.parseDouble.
+	 */
+	static double parseDouble( final ByteBuffer bb, final int start, final int end )
+	{
+		int i = start;
+		boolean negative = false;
+		byte b = bb.get( i );
+		if( b == '-' || b == '+' )
+		{
+			negative = b == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int numDigits = 0;
+		int exp10 = 0;
+		boolean anyDigit = false;
+
+		for( ; i < end && ( b = bb.get( i ) ) >= '0' && b <= '9'; i++ )
+		{
+			anyDigit = true;
+			if( mantissa != 0 || b != '0' )
+				numDigits++;
+
+			if( numDigits <= 18 )
+				mantissa = 10 * mantissa + ( b - '0' );
+			else
+				exp10++;
+		}
+
+		if( i < end && bb.get( i ) == '.' )
+		{
+			for( i++; i < end && ( b = bb.get( i ) ) >= '0' && b <= '9'; i++ )
+			{
+				anyDigit = true;
+				if( mantissa != 0 || b != '0' )
+					numDigits++;
+
+				if( numDigits <= 18 )
+				{
+					mantissa = 10 * mantissa + ( b - '0' );
+					exp10--;
+				}
+			}
+		}
+
+		if( i == end && anyDigit && numDigits <= 15 && exp10 >= -22 )
+		{
+			final double m = mantissa;
+			final double v = exp10 >= 0 ? m * POW10[ exp10 ] : m / POW10[ -exp10 ];
+			return negative ? -v : v;
+		}
+
+		// exponents, NaN, Infinity and long mantissas
+		final byte[] bytes = new byte[ end - start ];
+		for( int j = 0; j < bytes.length; j++ )
+			bytes[ j ] = bb.get( start + j );
+
+		return Double.parseDouble( new String( bytes, StandardCharsets.US_ASCII ) );
+	}
+}
@@ -0,0 +1,849 @@
+package org.janelia.render.data;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A streaming reader for synapse and T-bar prediction json files.
+ * <p>
+ * Reads bytes straight from the stream and hands every record to a sink as
+ * soon as it is complete, so no intermediate {@link String} or json tree
+ * of the whole file is ever built. Numbers are parsed in place; the only
+ * strings that are decoded are the synapse kind and T-bar status, and
+ * repeated values of those are shared.
+ * <p>
+ * Two layouts are understood:
+ * <ul>
+ * <li>synapses: <code>[ {"Kind": .., "Pos": [x,y,z], "Prop": {"conf": .., "err": ..}}, ... ]</code></li>
+ * <li>T-bars: <code>{"data": [ {"T-bar": {"status": .., "confidence": .., "body ID": .., "location": [x,y,z]}, "partners": [ .. ]}, ... ]}</code></li>
+ * </ul>
+ * Unknown keys are skipped.
+ */
+public class JsonPointParser
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int MAX_SHARED_STRINGS = 64;
+
+	private static final double[] POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+			1e21, 1e22 };
+
+	private final InputStream in;
+
+	private final byte[] buf;
+
+	private int pos;
+
+	private int limit;
+
+	// absolute offset of buf[ 0 ]
+	private long offset;
+
+	// number of bytes that may still be read from the stream
+	private long remaining;
+
+	private final StringBuilder sb = new StringBuilder();
+
+	private char[] numChars = new char[ 64 ];
+
+	private final ArrayList< String > sharedStrings = new ArrayList<>();
+
+	// reused scratch for partners of the current T-bar
+	private double[] partnerValues = new double[ 5 * 16 ];
+
+	private final double[] xyz = new double[ 3 ];
+
+	public JsonPointParser( final InputStream in )
+	{
+		this( in, Long.MAX_VALUE );
+	}
+
+	/**
+	 * @param in the stream
+	 * @param length the maximum number of bytes to read from the stream
+	 */
+	public JsonPointParser( final InputStream in, final long length )
+	{
+		this.in = in;
+		this.remaining = length;
+		buf = new byte[ BUFFER_SIZE ];
+		pos = 0;
+		limit = 0;
+		offset = 0;
+	}
+
+	/**
+	 * Reads a synapse json array, or json lines if the path ends in
+	 * {@link SynapseJsonWriter#JSON_LINES_EXTENSION}.
+	 */
+	public static void readSynapses( final String path, final SynapseSink sink ) throws IOException
+	{
+		try( final InputStream in = new FileInputStream( path ) )
+		{
+			if( SynapseJsonWriter.isJsonLines( path ) )
+				new JsonPointParser( in ).readSynapseSequence( sink );
+			else
+				new JsonPointParser( in ).readSynapses( sink );
+		}
+	}
+
+	/**
+	 * Reads synapse json lines, whatever the extension of the path.
+	 */
+	public static void readSynapseLines( final String path, final SynapseSink sink ) throws IOException
+	{
+		try( final InputStream in = new FileInputStream( path ) )
+		{
+			new JsonPointParser( in ).readSynapseSequence( sink );
+		}
+	}
+
+	public static void readTbars( final String path, final TbarSink sink ) throws IOException
+	{
+		try( final InputStream in = new FileInputStream( path ) )
+		{
+			new JsonPointParser( in ).readTbars( sink );
+		}
+	}
+
+	/**
+	 * Reads a json array of synapses.
+	 *
+	 * @param sink receives every synapse
+	 * @throws IOException if reading fails or the content is not a synapse array
+	 */
+	public void readSynapses( final SynapseSink sink ) throws IOException
+	{
+		expect( '[' );
+		if( peek() == ']' )
+		{
+			next();
+			return;
+		}
+
+		do
+			readSynapse( sink );
+		while( nextSeparator( ']' ) );
+	}
+
+	/**
+	 * Reads synapse objects until the end of input. The objects may be
+	 * separated by newlines or commas, so this reads json lines as well as
+	 * a slice of the elements of a synapse array.
+	 *
+	 * @param sink receives every synapse
+	 * @throws IOException if reading fails or a record is not a synapse
+	 */
+	public void readSynapseSequence( final SynapseSink sink ) throws IOException
+	{
+		int b;
+		while( ( b = peek() ) >= 0 )
+		{
+			if( b == ',' )
+				next();
+			else
+				readSynapse( sink );
+		}
+	}
+
+	/**
+	 * Reads T-bar objects until the end of input, see {@link #readSynapseSequence}.
+	 *
+	 * @param sink receives every T-bar and its partners
+	 * @throws IOException if reading fails or a record is not a T-bar
+	 */
+	public void readTbarSequence( final TbarSink sink ) throws IOException
+	{
+		int b;
+		while( ( b = peek() ) >= 0 )
+		{
+			if( b == ',' )
+				next();
+			else
+				readTbar( sink );
+		}
+	}
+
+	/**
+	 * Advances to the "data" array of a T-bar json object.
+	 *
+	 * @return the absolute offset of the opening bracket of the array
+	 * @throws IOException if the content is not a T-bar object
+	 */
+	public long seekTbarArray() throws IOException
+	{
+		expect( '{' );
+		if( peek() != '}' )
+		{
+			do
+			{
+				readString();
+				expect( ':' );
+				if( "data".contentEquals( sb ) )
+				{
+					if( peek() != '[' )
+						throw error( "\"data\" is not an array" );
+
+					return position();
+				}
+				skipValue();
+			}
+			while( nextSeparator( '}' ) );
+		}
+		throw error( "no \"data\" array" );
+	}
+
+	/**
+	 * Reads a json object whose "data" entry is an array of T-bars.
+	 *
+	 * @param sink receives every T-bar and its partners
+	 * @throws IOException if reading fails or the content is not a T-bar object
+	 */
+	public void readTbars( final TbarSink sink ) throws IOException
+	{
+		boolean foundData = false;
+		expect( '{' );
+		if( peek() != '}' )
+		{
+			do
+			{
+				readString();
+				expect( ':' );
+				if( !foundData && "data".contentEquals( sb ) )
+				{
+					readTbarArray( sink );
+					foundData = true;
+				}
+				else
+					skipValue();
+			}
+			while( nextSeparator( '}' ) );
+		}
+		else
+			next();
+
+		if( !foundData )
+			throw error( "no \"data\" array" );
+	}
+
+	/**
+	 * Reads a json array of T-bars.
+	 *
+	 * @param sink receives every T-bar and its partners
+	 * @throws IOException if reading fails or the content is not a T-bar array
+	 */
+	public void readTbarArray( final TbarSink sink ) throws IOException
+	{
+		expect( '[' );
+		if( peek() == ']' )
+		{
+			next();
+			return;
+		}
+
+		do
+			readTbar( sink );
+		while( nextSeparator( ']' ) );
+	}
+
+	/**
+	 * Reads a single synapse object.
+	 *
+	 * @param sink receives the synapse
+	 * @throws IOException if reading fails
+	 */
+	public void readSynapse( final SynapseSink sink ) throws IOException
+	{
+		String kind = null;
+		double conf = 0;
+		double err = 0;
+		xyz[ 0 ] = Double.NaN;
+		xyz[ 1 ] = Double.NaN;
+		xyz[ 2 ] = Double.NaN;
+
+		expect( '{' );
+		if( peek() == '}' )
+			next();
+		else
+		{
+			do
+			{
+				readString();
+				expect( ':' );
+				if( "Kind".contentEquals( sb ) )
+					kind = readSharedString();
+				else if( "Pos".contentEquals( sb ) )
+					readPosition( xyz );
+				else if( "Prop".contentEquals( sb ) )
+				{
+					expect( '{' );
+					if( peek() == '}' )
+						next();
+					else
+					{
+						do
+						{
+							readString();
+							expect( ':' );
+							if( "conf".contentEquals( sb ) )
+								conf = readDouble();
+							else if( "err".contentEquals( sb ) )
+								err = readDouble();
+							else
+								skipValue();
+						}
+						while( nextSeparator( '}' ) );
+					}
+				}
+				else
+					skipValue();
+			}
+			while( nextSeparator( '}' ) );
+		}
+
+		sink.accept( kind, xyz[ 0 ], xyz[ 1 ], xyz[ 2 ], conf, err );
+	}
+
+	/**
+	 * Reads a single T-bar object together with its partners.
+	 *
+	 * @param sink receives the T-bar and its partners
+	 * @throws IOException if reading fails
+	 */
+	public void readTbar( final TbarSink sink ) throws IOException
+	{
+		String status = null;
+		double confidence = 0;
+		long bodyId = 0;
+		xyz[ 0 ] = Double.NaN;
+		xyz[ 1 ] = Double.NaN;
+		xyz[ 2 ] = Double.NaN;
+		int numPartners = 0;
+
+		expect( '{' );
+		if( peek() == '}' )
+			next();
+		else
+		{
+			do
+			{
+				readString();
+				expect( ':' );
+				if( "T-bar".contentEquals( sb ) )
+				{
+					expect( '{' );
+					if( peek() == '}' )
+						next();
+					else
+					{
+						do
+						{
+							readString();
+							expect( ':' );
+							if( "status".contentEquals( sb ) )
+								status = readSharedString();
+							else if( "confidence".contentEquals( sb ) )
+								confidence = readDouble();
+							else if( "body ID".contentEquals( sb ) )
+								bodyId = (long)readDouble();
+							else if( "location".contentEquals( sb ) )
+								readPosition( xyz );
+							else
+								skipValue();
+						}
+						while( nextSeparator( '}' ) );
+					}
+				}
+				else if( "partners".contentEquals( sb ) )
+					numPartners = readPartners();
+				else
+					skipValue();
+			}
+			while( nextSeparator( '}' ) );
+		}
+
+		sink.tbar( status, confidence, bodyId, xyz[ 0 ], xyz[ 1 ], xyz[ 2 ], numPartners );
+		for( int i = 0; i < numPartners; i++ )
+		{
+			final int j = 5 * i;
+			sink.partner( partnerValues[ j ], (long)partnerValues[ j + 1 ],
+					partnerValues[ j + 2 ], partnerValues[ j + 3 ], partnerValues[ j + 4 ] );
+		}
+	}
+
+	/**
+	 * Reads an array of partners into the partner scratch buffer, since
+	 * the partners may be listed before their T-bar.
+	 *
+	 * @return the number of partners
+	 */
+	private int readPartners() throws IOException
+	{
+		int n = 0;
+		expect( '[' );
+		if( peek() == ']' )
+		{
+			next();
+			return 0;
+		}
+
+		do
+		{
+			if( 5 * ( n + 1 ) > partnerValues.length )
+				partnerValues = Arrays.copyOf( partnerValues, 2 * partnerValues.length );
+
+			final int j = 5 * n;
+			partnerValues[ j ] = 0;
+			partnerValues[ j + 1 ] = 0;
+			partnerValues[ j + 2 ] = Double.NaN;
+			partnerValues[ j + 3 ] = Double.NaN;
+			partnerValues[ j + 4 ] = Double.NaN;
+
+			expect( '{' );
+			if( peek() == '}' )
+				next();
+			else
+			{
+				do
+				{
+					readString();
+					expect( ':' );
+					if( "confidence".contentEquals( sb ) )
+						partnerValues[ j ] = readDouble();
+					else if( "body ID".contentEquals( sb ) )
+						partnerValues[ j + 1 ] = readDouble();
+					else if( "location".contentEquals( sb ) )
+					{
+						readPosition( xyz );
+						partnerValues[ j + 2 ] = xyz[ 0 ];
+						partnerValues[ j + 3 ] = xyz[ 1 ];
+						partnerValues[ j + 4 ] = xyz[ 2 ];
+					}
+					else
+						skipValue();
+				}
+				while( nextSeparator( '}' ) );
+			}
+			n++;
+		}
+		while( nextSeparator( ']' ) );
+
+		return n;
+	}
+
+	/**
+	 * Reads a json array of three numbers.
+	 */
+	private void readPosition( final double[] position ) throws IOException
+	{
+		expect( '[' );
+		position[ 0 ] = readDouble();
+		expect( ',' );
+		position[ 1 ] = readDouble();
+		expect( ',' );
+		position[ 2 ] = readDouble();
+		expect( ']' );
+	}
+
+	/**
+	 * @return the absolute offset of the next byte to be read
+	 */
+	public long position()
+	{
+		return offset + pos;
+	}
+
+	/**
+	 * Returns the next non-whitespace byte without consuming it.
+	 *
+	 * @return the byte or -1 at the end of input
+	 * @throws IOException
+	 */
+	public int peek() throws IOException
+	{
+		while( true )
+		{
+			while( pos < limit )
+			{
+				final byte b = buf[ pos ];
+				if( b == ' ' || b == '\n' || b == '\r' || b == '\t' )
+					pos++;
+				else
+					return b;
+			}
+
+			if( !fill() )
+				return -1;
+		}
+	}
+
+	private int next() throws IOException
+	{
+		final int b = peek();
+		if( b >= 0 )
+			pos++;
+
+		return b;
+	}
+
+	private int nextRaw() throws IOException
+	{
+		if( pos >= limit && !fill() )
+			throw error( "unexpected end of input" );
+
+		return buf[ pos++ ] & 0xff;
+	}
+
+	private boolean fill() throws IOException
+	{
+		offset += limit;
+		pos = 0;
+		limit = 0;
+		if( remaining <= 0 )
+			return false;
+
+		final int n = in.read( buf, 0, (int)Math.min( buf.length, remaining ) );
+		if( n <= 0 )
+		{
+			remaining = 0;
+			return false;
+		}
+
+		remaining -= n;
+		limit = n;
+		return true;
+	}
+
+	private void expect( final char c ) throws IOException
+	{
+		final int b = next();
+		if( b != c )
+			throw error( "expected '" + c + "' but found " + describe( b ) );
+	}
+
+	/**
+	 * Consumes the separator that follows a value inside an array or object.
+	 *
+	 * @param close the closing bracket of the enclosing array or object
+	 * @return true if another value follows, false if the closing bracket was consumed
+	 */
+	private boolean nextSeparator( final char close ) throws IOException
+	{
+		final int b = next();
+		if( b == ',' )
+			return true;
+		else if( b == close )
+			return false;
+
+		throw error( "expected ',' or '" + close + "' but found " + describe( b ) );
+	}
+
+	private IOException error( final String message )
+	{
+		return new IOException( message + " at byte " + position() );
+	}
+
+	private static String describe( final int b )
+	{
+		return b < 0 ? "end of input" : "'" + (char)b + "'";
+	}
+
+	/**
+	 * Reads a json string into the reusable string builder.
+	 */
+	private void readString() throws IOException
+	{
+		expect( '"' );
+		sb.setLength( 0 );
+		while( true )
+		{
+			final int b = nextRaw();
+			if( b == '"' )
+				return;
+			else if( b == '\\' )
+			{
+				final int e = nextRaw();
+				switch( e )
+				{
+				case 'b': sb.append( '\b' ); break;
+				case 'f': sb.append( '\f' ); break;
+				case 'n': sb.append( '\n' ); break;
+				case 'r': sb.append( '\r' ); break;
+				case 't': sb.append( '\t' ); break;
+				case 'u':
+					int c = 0;
+					for( int i = 0; i < 4; i++ )
+						c = ( c << 4 ) | Character.digit( nextRaw(), 16 );
+					sb.append( (char)c );
+					break;
+				default: sb.append( (char)e );
+				}
+			}
+			else if( b < 0x80 )
+				sb.append( (char)b );
+			else
+				appendUtf8( b );
+		}
+	}
+
+	private void appendUtf8( final int first ) throws IOException
+	{
+		final int n;
+		int c;
+		if( ( first & 0xe0 ) == 0xc0 )
+		{
+			n = 1;
+			c = first & 0x1f;
+		}
+		else if( ( first & 0xf0 ) == 0xe0 )
+		{
+			n = 2;
+			c = first & 0x0f;
+		}
+		else
+		{
+			n = 3;
+			c = first & 0x07;
+		}
+
+		for( int i = 0; i < n; i++ )
+			c = ( c << 6 ) | ( nextRaw() & 0x3f );
+
+		sb.appendCodePoint( c );
+	}
+
+	/**
+	 * Reads a json string and returns a shared instance for values that
+	 * were seen before, so that repeated kinds or statuses cost nothing.
+	 */
+	private String readSharedString() throws IOException
+	{
+		if( peek() == 'n' )
+		{
+			skipValue();
+			return null;
+		}
+
+		readString();
+		for( final String s : sharedStrings )
+			if( s.contentEquals( sb ) )
+				return s;
+
+		final String s = sb.toString();
+		if( sharedStrings.size() < MAX_SHARED_STRINGS )
+			sharedStrings.add( s );
+
+		return s;
+	}
+
+	/**
+	 * Reads a json number without allocating.
+	 * <p>
+	 * Numbers with up to 15 significant digits and a small decimal exponent
+	 * are converted exactly from their mantissa; everything else falls back
+	 * to {@link Double#parseDouble}. Quoted numbers and the NaN / Infinity
+	 * literals are accepted as well.
+	 */
+	public double readDouble() throws IOException
+	{
+		final int first = peek();
+		if( first == '"' )
+		{
+			readString();
+			return Double.parseDouble( sb.toString() );
+		}
+		else if( first == 'n' )
+		{
+			skipValue();
+			return Double.NaN;
+		}
+		else if( first < 0 )
+			throw error( "expected a number but found end of input" );
+
+		int len = 0;
+		long mantissa = 0;
+		int numDigits = 0;
+		int exp10 = 0;
+		boolean negative = false;
+		boolean fast = true;
+
+		int b = buf[ pos ];
+		if( b == '-' || b == '+' )
+		{
+			negative = b == '-';
+			numChars[ len++ ] = (char)b;
+			pos++;
+			b = peekRaw();
+		}
+
+		if( b == 'N' || b == 'I' )
+		{
+			skipLiteral();
+			return b == 'N' ? Double.NaN : negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		}
+
+		// integer part
+		while( b >= '0' && b <= '9' )
+		{
+			len = appendNumChar( len, b );
+			if( numDigits < 18 )
+			{
+				if( mantissa != 0 || b != '0' )
+				{
+					mantissa = 10 * mantissa + ( b - '0' );
+					numDigits++;
+				}
+			}
+			else
+			{
+				exp10++;
+				fast = false;
+			}
+			pos++;
+			b = peekRaw();
+		}
+
+		// fraction
+		if( b == '.' )
+		{
+			len = appendNumChar( len, b );
+			pos++;
+			b = peekRaw();
+			while( b >= '0' && b <= '9' )
+			{
+				len = appendNumChar( len, b );
+				if( numDigits < 18 )
+				{
+					if( mantissa != 0 || b != '0' )
+						numDigits++;
+
+					mantissa = 10 * mantissa + ( b - '0' );
+					exp10--;
+				}
+				else
+					fast = false;
+
+				pos++;
+				b = peekRaw();
+			}
+		}
+
+		// exponent
+		if( b == 'e' || b == 'E' )
+		{
+			len = appendNumChar( len, b );
+			pos++;
+			b = peekRaw();
+			boolean negativeExp = false;
+			if( b == '-' || b == '+' )
+			{
+				negativeExp = b == '-';
+				len = appendNumChar( len, b );
+				pos++;
+				b = peekRaw();
+			}
+
+			int e = 0;
+			while( b >= '0' && b <= '9' )
+			{
+				len = appendNumChar( len, b );
+				if( e < 100000 )
+					e = 10 * e + ( b - '0' );
+
+				pos++;
+				b = peekRaw();
+			}
+			exp10 += negativeExp ? -e : e;
+		}
+
+		if( len == 0 || ( len == 1 && ( numChars[ 0 ] == '-' || numChars[ 0 ] == '+' ) ) )
+			throw error( "expected a number but found " + describe( b ) );
+
+		if( fast && numDigits <= 15 && exp10 >= -22 && exp10 <= 22 )
+		{
+			final double m = mantissa;
+			final double v = exp10 >= 0 ? m * POW10[ exp10 ] : m / POW10[ -exp10 ];
+			return negative ? -v : v;
+		}
+		else
+			return Double.parseDouble( new String( numChars, 0, len ) );
+	}
+
+	private int appendNumChar( final int len, final int b )
+	{
+		if( len == numChars.length )
+			numChars = Arrays.copyOf( numChars, 2 * len );
+
+		numChars[ len ] = (char)b;
+		return len + 1;
+	}
+
+	/**
+	 * @return the next byte without skipping whitespace or consuming it, -1 at the end of input
+	 */
+	private int peekRaw() throws IOException
+	{
+		if( pos >= limit && !fill() )
+			return -1;
+
+		return buf[ pos ] & 0xff;
+	}
+
+	private void skipLiteral() throws IOException
+	{
+		int b = peekRaw();
+		while( b >= 0 && b != ',' && b != ']' && b != '}' &&
+				b != ' ' && b != '\n' && b != '\r' && b != '\t' )
+		{
+			pos++;
+			b = peekRaw();
+		}
+	}
+
+	/**
+	 * Skips over the next json value of any type.
+	 */
+	public void skipValue() throws IOException
+	{
+		final int b = peek();
+		if( b == '{' )
+		{
+			next();
+			if( peek() == '}' )
+			{
+				next();
+				return;
+			}
+			do
+			{
+				readString();
+				expect( ':' );
+				skipValue();
+			}
+			while( nextSeparator( '}' ) );
+		}
+		else if( b == '[' )
+		{
+			next();
+			if( peek() == ']' )
+			{
+				next();
+				return;
+			}
+			do
+				skipValue();
+			while( nextSeparator( ']' ) );
+		}
+		else if( b == '"' )
+			readString();
+		else if( b < 0 )
+			throw error( "unexpected end of input" );
+		else
+			skipLiteral();
+	}
+}
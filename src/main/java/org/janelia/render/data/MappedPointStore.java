@@ -0,0 +1,500 @@
+package org.janelia.render.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * A point cloud with one value per point, stored in a file and accessed
+ * through memory mapping.
+ * <p>
+ * Each point is a record of four little endian floats (x, y, z, value)
+ * following a 64 byte header, and the records are followed by one byte per
+ * point. When a store is written, its records are reordered in place into
+ * the implicit layout of {@link org.janelia.render.index.FlatKDTree}: the
+ * subtree of the range [lo, hi) has its root at mid = (lo + hi) / 2 and
+ * ranges of at most {@link #LEAF_SIZE} points are leaves. The bytes hold
+ * the split dimension of every node. Points are read straight from the
+ * mapped file, so a store costs no heap, opening an existing store is
+ * instant, and a KD-tree can search the file directly.
+ */
+public class MappedPointStore
+{
+	public static final int MAGIC = 0x53594e4d;
+
+	// version 1 stores were not in tree order
+	public static final int VERSION = 2;
+
+	public static final String EXTENSION = ".pts";
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final int RECORD_SIZE = 16;
+
+	/**
+	 * Subtrees of at most this many points are not ordered, as in FlatKDTree.
+	 */
+	public static final int LEAF_SIZE = 8;
+
+	// ranges larger than this are ordered in parallel
+	private static final int PARALLEL_SIZE = 1 << 16;
+
+	// a mapping can not exceed Integer.MAX_VALUE bytes, 2^26 records are 1GB
+	private static final int SEGMENT_BITS = 26;
+
+	private static final long SEGMENT_MASK = ( 1L << SEGMENT_BITS ) - 1;
+
+	private final FloatBuffer[] segments;
+
+	private final ByteBuffer[] splitDims;
+
+	private final long size;
+
+	private final long[] min;
+
+	private final long[] max;
+
+	private MappedPointStore( final FloatBuffer[] segments, final ByteBuffer[] splitDims, final long size, final long[] min, final long[] max )
+	{
+		this.segments = segments;
+		this.splitDims = splitDims;
+		this.size = size;
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Fills a {@link Writer}, used to create a store the first time it is needed.
+	 */
+	@FunctionalInterface
+	public static interface Filler
+	{
+		public void fill( Writer writer ) throws IOException;
+	}
+
+	/**
+	 * Maps an existing store.
+	 *
+	 * @param path the store file
+	 * @return the store
+	 * @throws IOException if the file is not a point store
+	 */
+	public static MappedPointStore open( final String path ) throws IOException
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			while( header.hasRemaining() )
+				if( ch.read( header ) < 0 )
+					throw new IOException( path + " is not a point store" );
+
+			header.flip();
+			if( header.getInt() != MAGIC )
+				throw new IOException( path + " is not a point store" );
+
+			final int version = header.getInt();
+			if( version != VERSION )
+				throw new IOException( "unsupported point store version " + version + ", delete " + path + " to recreate it" );
+
+			final long size = header.getLong();
+			final long[] min = new long[ 3 ];
+			final long[] max = new long[ 3 ];
+			for( int d = 0; d < 3; d++ )
+				min[ d ] = header.getLong();
+			for( int d = 0; d < 3; d++ )
+				max[ d ] = header.getLong();
+
+			if( ch.size() < HEADER_SIZE + size * ( RECORD_SIZE + 1 ) )
+				throw new IOException( path + " is truncated, it has less than " + size + " points" );
+
+			return new MappedPointStore(
+					mapRecords( ch, FileChannel.MapMode.READ_ONLY, size ),
+					mapSplitDims( ch, FileChannel.MapMode.READ_ONLY, size ),
+					size, min, max );
+		}
+	}
+
+	private static FloatBuffer[] mapRecords( final FileChannel ch, final FileChannel.MapMode mode, final long size ) throws IOException
+	{
+		final FloatBuffer[] segments = new FloatBuffer[ numSegments( size ) ];
+		for( int s = 0; s < segments.length; s++ )
+		{
+			final long first = (long)s << SEGMENT_BITS;
+			final long n = Math.min( size - first, 1L << SEGMENT_BITS );
+			segments[ s ] = ch.map( mode, HEADER_SIZE + first * RECORD_SIZE, n * RECORD_SIZE )
+					.order( ByteOrder.LITTLE_ENDIAN )
+					.asFloatBuffer();
+		}
+		return segments;
+	}
+
+	private static ByteBuffer[] mapSplitDims( final FileChannel ch, final FileChannel.MapMode mode, final long size ) throws IOException
+	{
+		final ByteBuffer[] segments = new ByteBuffer[ numSegments( size ) ];
+		for( int s = 0; s < segments.length; s++ )
+		{
+			final long first = (long)s << SEGMENT_BITS;
+			final long n = Math.min( size - first, 1L << SEGMENT_BITS );
+			segments[ s ] = ch.map( mode, HEADER_SIZE + size * RECORD_SIZE + first, n );
+		}
+		return segments;
+	}
+
+	private static int numSegments( final long size )
+	{
+		return (int)( ( size + SEGMENT_MASK ) >>> SEGMENT_BITS );
+	}
+
+	/**
+	 * @return the version of a store file, or -1 if it is not a store
+	 */
+	private static int version( final File file )
+	{
+		try( final FileChannel ch = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer header = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+			while( header.hasRemaining() )
+				if( ch.read( header ) < 0 )
+					return -1;
+
+			header.flip();
+			return header.getInt() == MAGIC ? header.getInt() : -1;
+		}
+		catch( final IOException e )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Opens the store cached next to a source file, creating it first if it
+	 * does not exist, is older than the source or has an older version.
+	 *
+	 * @param sourcePath the file the points come from
+	 * @param storePath the store file
+	 * @param filler writes the points of the source into a new store
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static MappedPointStore openOrCreate( final String sourcePath, final String storePath, final Filler filler ) throws IOException
+	{
+		final File source = new File( sourcePath );
+		final File store = new File( storePath );
+		if( !store.exists() || store.lastModified() < source.lastModified() || version( store ) != VERSION )
+		{
+			// write to a temporary file so an interrupted run never leaves a broken store
+			final Path tmp = Paths.get( storePath + ".tmp" );
+			try( final Writer writer = new Writer( tmp.toString() ) )
+			{
+				filler.fill( writer );
+			}
+			Files.move( tmp, store.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			System.out.println( "cached points in " + storePath );
+		}
+		return open( storePath );
+	}
+
+	public static MappedPointStore openOrCreate( final String sourcePath, final Filler filler ) throws IOException
+	{
+		return openOrCreate( sourcePath, sourcePath + EXTENSION, filler );
+	}
+
+	public long size()
+	{
+		return size;
+	}
+
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	public Interval getInterval()
+	{
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @param i the point, in tree order
+	 */
+	public double getDoublePosition( final long i, final int d )
+	{
+		return segments[ (int)( i >>> SEGMENT_BITS ) ].get( (int)( i & SEGMENT_MASK ) * 4 + d );
+	}
+
+	/**
+	 * @param i the point, in tree order
+	 */
+	public double getValue( final long i )
+	{
+		return segments[ (int)( i >>> SEGMENT_BITS ) ].get( (int)( i & SEGMENT_MASK ) * 4 + 3 );
+	}
+
+	/**
+	 * @param i the root of a subtree of more than {@link #LEAF_SIZE} points
+	 * @return the dimension the subtree is split along
+	 */
+	public int getSplitDimension( final long i )
+	{
+		return splitDims[ (int)( i >>> SEGMENT_BITS ) ].get( (int)( i & SEGMENT_MASK ) );
+	}
+
+	/**
+	 * Appends points to a new store file. On {@link #close()} the records
+	 * are reordered into tree order and the split dimensions and header
+	 * are written.
+	 */
+	public static class Writer implements SynapseSink, Closeable
+	{
+		private final FileChannel ch;
+
+		private final ByteBuffer buf;
+
+		private long size;
+
+		private final long[] min;
+
+		private final long[] max;
+
+		public Writer( final String path ) throws IOException
+		{
+			ch = FileChannel.open( Paths.get( path ),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE );
+			ch.position( HEADER_SIZE );
+			buf = ByteBuffer.allocateDirect( RECORD_SIZE << 16 ).order( ByteOrder.LITTLE_ENDIAN );
+
+			size = 0;
+			min = new long[ 3 ];
+			max = new long[ 3 ];
+			Arrays.fill( min, Long.MAX_VALUE );
+			Arrays.fill( max, Long.MIN_VALUE );
+		}
+
+		public void add( final double x, final double y, final double z, final double value )
+		{
+			if( !buf.hasRemaining() )
+				flush();
+
+			buf.putFloat( (float)x );
+			buf.putFloat( (float)y );
+			buf.putFloat( (float)z );
+			buf.putFloat( (float)value );
+			updateMinMax( 0, x );
+			updateMinMax( 1, y );
+			updateMinMax( 2, z );
+			size++;
+		}
+
+		/**
+		 * Adds a synapse with its confidence as value.
+		 */
+		@Override
+		public void accept( final String kind, final double x, final double y, final double z, final double conf, final double err )
+		{
+			add( x, y, z, conf );
+		}
+
+		public long size()
+		{
+			return size;
+		}
+
+		private void updateMinMax( final int d, final double x )
+		{
+			final long lo = (long)Math.floor( x );
+			final long hi = (long)Math.ceil( x );
+			if( lo < min[ d ] )
+				min[ d ] = lo;
+
+			if( hi > max[ d ] )
+				max[ d ] = hi;
+		}
+
+		private void flush()
+		{
+			try
+			{
+				buf.flip();
+				while( buf.hasRemaining() )
+					ch.write( buf );
+
+				buf.clear();
+			}
+			catch( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+
+			// the mappings are written through to the file, no records are copied to the heap
+			final FloatBuffer[] records = mapRecords( ch, FileChannel.MapMode.READ_WRITE, size );
+			final ByteBuffer[] dims = mapSplitDims( ch, FileChannel.MapMode.READ_WRITE, size );
+			ForkJoinPool.commonPool().invoke( new TreeOrder( records, dims, 0, size ) );
+
+			final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			header.putInt( MAGIC );
+			header.putInt( VERSION );
+			header.putLong( size );
+			for( int d = 0; d < 3; d++ )
+				header.putLong( size == 0 ? 0 : min[ d ] );
+			for( int d = 0; d < 3; d++ )
+				header.putLong( size == 0 ? 0 : max[ d ] );
+
+			header.flip();
+			long p = 0;
+			while( header.hasRemaining() )
+				p += ch.write( header, p );
+
+			ch.close();
+		}
+	}
+
+	/**
+	 * Puts the median of the widest dimension of a range of records at its
+	 * middle and orders both halves, as FlatKDTree does with its ids.
+	 */
+	@SuppressWarnings( "serial" )
+	private static class TreeOrder extends RecursiveAction
+	{
+		private final FloatBuffer[] records;
+
+		private final ByteBuffer[] dims;
+
+		private final long lo;
+
+		private final long hi;
+
+		public TreeOrder( final FloatBuffer[] records, final ByteBuffer[] dims, final long lo, final long hi )
+		{
+			this.records = records;
+			this.dims = dims;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( hi - lo <= LEAF_SIZE )
+				return;
+
+			final long mid = ( lo + hi ) >>> 1;
+			final int d = widestDimension();
+			select( d, mid );
+			dims[ (int)( mid >>> SEGMENT_BITS ) ].put( (int)( mid & SEGMENT_MASK ), (byte)d );
+
+			final TreeOrder left = new TreeOrder( records, dims, lo, mid );
+			final TreeOrder right = new TreeOrder( records, dims, mid + 1, hi );
+			if( hi - lo > PARALLEL_SIZE )
+				invokeAll( left, right );
+			else
+			{
+				left.compute();
+				right.compute();
+			}
+		}
+
+		private double get( final long i, final int d )
+		{
+			return records[ (int)( i >>> SEGMENT_BITS ) ].get( (int)( i & SEGMENT_MASK ) * 4 + d );
+		}
+
+		private void swap( final long i, final long j )
+		{
+			final FloatBuffer a = records[ (int)( i >>> SEGMENT_BITS ) ];
+			final FloatBuffer b = records[ (int)( j >>> SEGMENT_BITS ) ];
+			final int oa = (int)( i & SEGMENT_MASK ) * 4;
+			final int ob = (int)( j & SEGMENT_MASK ) * 4;
+			for( int k = 0; k < 4; k++ )
+			{
+				final float t = a.get( oa + k );
+				a.put( oa + k, b.get( ob + k ) );
+				b.put( ob + k, t );
+			}
+		}
+
+		private int widestDimension()
+		{
+			final double[] min = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+			final double[] max = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			for( long i = lo; i < hi; i++ )
+				for( int d = 0; d < 3; d++ )
+				{
+					final double x = get( i, d );
+					if( x < min[ d ] )
+						min[ d ] = x;
+					if( x > max[ d ] )
+						max[ d ] = x;
+				}
+
+			int widest = 0;
+			for( int d = 1; d < 3; d++ )
+				if( max[ d ] - min[ d ] > max[ widest ] - min[ widest ] )
+					widest = d;
+
+			return widest;
+		}
+
+		/**
+		 * Reorders the range such that record k has the k-th smallest
+		 * coordinate in dimension d, all records before it are not larger
+		 * and all records after it not smaller.
+		 */
+		private void select( final int d, final long k )
+		{
+			long l = lo;
+			long h = hi - 1;
+			while( h > l )
+			{
+				final double a = get( l, d );
+				final double b = get( ( l + h ) >>> 1, d );
+				final double c = get( h, d );
+				final double pivot = Math.max( Math.min( a, b ), Math.min( Math.max( a, b ), c ) );
+
+				long i = l;
+				long j = h;
+				while( i <= j )
+				{
+					while( get( i, d ) < pivot )
+						i++;
+					while( get( j, d ) > pivot )
+						j--;
+
+					if( i <= j )
+						swap( i++, j-- );
+				}
+
+				if( k <= j )
+					h = j;
+				else if( k >= i )
+					l = i;
+				else
+					return;
+			}
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package org.janelia.render.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+
+/**
+ * Synapses bucketed into an N5 dataset on a regular spatial grid.
+ * <p>
+ * Every grid cell of cellSize voxels is one block of the dataset, so the
+ * dataset has a block size of one and as many elements as there are grid
+ * cells. A block is a var-length double block holding one record of
+ * {@link #FIELDS} per synapse in the cell; empty cells are not written.
+ * The dataset attributes hold the grid origin and cell size, the bounding
+ * box and number of the points and the dictionary of synapse kinds.
+ * <p>
+ * A range query reads only the blocks of the cells it touches.
+ */
+public class N5PointGrid
+{
+	public static final String[] FIELDS = { "x", "y", "z", "conf", "err", "kind" };
+
+	public static final String ORIGIN_KEY = "gridOrigin";
+
+	public static final String CELL_SIZE_KEY = "cellSize";
+
+	public static final String MIN_KEY = "boundsMin";
+
+	public static final String MAX_KEY = "boundsMax";
+
+	public static final String NUM_POINTS_KEY = "numPoints";
+
+	public static final String FIELDS_KEY = "fields";
+
+	public static final String KINDS_KEY = "kinds";
+
+	private static final int RECORD_SIZE = FIELDS.length;
+
+	private final N5Reader n5;
+
+	private final String dataset;
+
+	private final DatasetAttributes attributes;
+
+	private final long[] origin;
+
+	private final int[] cellSize;
+
+	private final long[] min;
+
+	private final long[] max;
+
+	private final long numPoints;
+
+	private final String[] kinds;
+
+	public N5PointGrid( final N5Reader n5, final String dataset ) throws IOException
+	{
+		this.n5 = n5;
+		this.dataset = dataset;
+		attributes = n5.getDatasetAttributes( dataset );
+		if( attributes == null )
+			throw new IOException( dataset + " is not a dataset" );
+
+		origin = n5.getAttribute( dataset, ORIGIN_KEY, long[].class );
+		cellSize = n5.getAttribute( dataset, CELL_SIZE_KEY, int[].class );
+		min = n5.getAttribute( dataset, MIN_KEY, long[].class );
+		max = n5.getAttribute( dataset, MAX_KEY, long[].class );
+		final Long n = n5.getAttribute( dataset, NUM_POINTS_KEY, Long.class );
+		final String[] k = n5.getAttribute( dataset, KINDS_KEY, String[].class );
+		if( origin == null || cellSize == null )
+			throw new IOException( dataset + " is not a point grid" );
+
+		numPoints = n == null ? -1 : n;
+		kinds = k == null ? new String[ 0 ] : k;
+	}
+
+	public static void main( String[] args ) throws IOException
+	{
+		final String inpath = args[ 0 ];
+		final String n5Path = args[ 1 ];
+		final String dataset = args[ 2 ];
+		final int size = Integer.parseInt( args[ 3 ] );
+
+		final SynColumns syns = PointFormats.load( inpath );
+		System.out.println( syns );
+
+		write( new N5FSWriter( n5Path ), dataset, syns, new int[]{ size, size, size } );
+		System.out.println( new N5PointGrid( new N5FSReader( n5Path ), dataset ) );
+	}
+
+	/**
+	 * Writes synapses into a new point grid dataset.
+	 *
+	 * @param n5 the container
+	 * @param dataset the dataset
+	 * @param syns the synapses
+	 * @param cellSize the size of a grid cell
+	 * @throws IOException
+	 */
+	public static void write( final N5Writer n5, final String dataset, final SynColumns syns, final int[] cellSize ) throws IOException
+	{
+		final int n = syns.size();
+		final long[] origin = n == 0 ? new long[ 3 ] : syns.getMin().clone();
+		final long[] max = n == 0 ? new long[ 3 ] : syns.getMax().clone();
+
+		final long[] gridDimensions = new long[ 3 ];
+		long numCells = 1;
+		for( int d = 0; d < 3; d++ )
+		{
+			gridDimensions[ d ] = Math.max( 1, ( max[ d ] - origin[ d ] ) / cellSize[ d ] + 1 );
+			numCells *= gridDimensions[ d ];
+		}
+		if( numCells > Integer.MAX_VALUE )
+			throw new IOException( "too many grid cells, use a larger cell size" );
+
+		// sort points by cell with one primitive sort of ( cell, index ) pairs,
+		// points without a position (failed transformations) are dropped
+		long[] keys = new long[ n ];
+		final long[] offset = new long[ 3 ];
+		final double[] p = new double[ 3 ];
+		int numValid = 0;
+		for( int i = 0; i < n; i++ )
+		{
+			syns.localize( i, p );
+			if( Double.isNaN( p[ 0 ] ) || Double.isNaN( p[ 1 ] ) || Double.isNaN( p[ 2 ] ) )
+				continue;
+
+			for( int d = 0; d < 3; d++ )
+				offset[ d ] = (long)Math.floor( p[ d ] );
+
+			final long[] cell = Grid.gridCell( offset, origin, cellSize );
+			keys[ numValid++ ] = ( linearIndex( cell, gridDimensions ) << 32 ) | i;
+		}
+		if( numValid < n )
+		{
+			System.out.println( "skipping " + ( n - numValid ) + " points without a position" );
+			keys = Arrays.copyOf( keys, numValid );
+		}
+		Arrays.sort( keys );
+
+		final ArrayList< String > kinds = new ArrayList<>();
+		final HashMap< String, Integer > kindCodes = new HashMap<>();
+
+		final DatasetAttributes attributes = new DatasetAttributes( gridDimensions, new int[]{ 1, 1, 1 }, DataType.FLOAT64, new GzipCompression() );
+		n5.createDataset( dataset, attributes );
+
+		final long[] gridPosition = new long[ 3 ];
+		for( int start = 0; start < numValid; )
+		{
+			final long cellIndex = keys[ start ] >>> 32;
+			int end = start + 1;
+			while( end < numValid && ( keys[ end ] >>> 32 ) == cellIndex )
+				end++;
+
+			final double[] data = new double[ RECORD_SIZE * ( end - start ) ];
+			for( int j = start, o = 0; j < end; j++, o += RECORD_SIZE )
+			{
+				final int i = (int)keys[ j ];
+				data[ o ] = syns.getDoublePosition( i, 0 );
+				data[ o + 1 ] = syns.getDoublePosition( i, 1 );
+				data[ o + 2 ] = syns.getDoublePosition( i, 2 );
+				data[ o + 3 ] = syns.getConfidence( i );
+				data[ o + 4 ] = syns.getError( i );
+				data[ o + 5 ] = kindCode( syns.getKind( i ), kinds, kindCodes );
+			}
+
+			gridPosition( cellIndex, gridDimensions, gridPosition );
+			n5.writeBlock( dataset, attributes, new DoubleArrayDataBlock( new int[]{ 1, 1, 1 }, gridPosition, data ) );
+			start = end;
+		}
+
+		n5.setAttribute( dataset, ORIGIN_KEY, origin );
+		n5.setAttribute( dataset, CELL_SIZE_KEY, cellSize );
+		n5.setAttribute( dataset, MIN_KEY, origin );
+		n5.setAttribute( dataset, MAX_KEY, max );
+		n5.setAttribute( dataset, NUM_POINTS_KEY, (long)numValid );
+		n5.setAttribute( dataset, FIELDS_KEY, FIELDS );
+		n5.setAttribute( dataset, KINDS_KEY, kinds.toArray( new String[ 0 ] ) );
+	}
+
+	private static int kindCode( final String kind, final List< String > kinds, final HashMap< String, Integer > kindCodes )
+	{
+		if( kind == null )
+			return -1;
+
+		Integer code = kindCodes.get( kind );
+		if( code == null )
+		{
+			code = kinds.size();
+			kinds.add( kind );
+			kindCodes.put( kind, code );
+		}
+		return code;
+	}
+
+	private static long linearIndex( final long[] cell, final long[] gridDimensions )
+	{
+		return cell[ 0 ] + gridDimensions[ 0 ] * ( cell[ 1 ] + gridDimensions[ 1 ] * cell[ 2 ] );
+	}
+
+	private static void gridPosition( long index, final long[] gridDimensions, final long[] gridPosition )
+	{
+		for( int d = 0; d < 3; d++ )
+		{
+			gridPosition[ d ] = index % gridDimensions[ d ];
+			index /= gridDimensions[ d ];
+		}
+	}
+
+	/**
+	 * @return the bounding box of all points
+	 */
+	public Interval getInterval()
+	{
+		return new FinalInterval( min, max );
+	}
+
+	public int[] getCellSize()
+	{
+		return cellSize;
+	}
+
+	public long numPoints()
+	{
+		return numPoints;
+	}
+
+	/**
+	 * Reads the synapses inside an interval, only the blocks of grid cells
+	 * that intersect the interval are read.
+	 *
+	 * @param roi the interval
+	 * @param sink receives every synapse inside the interval
+	 * @throws IOException
+	 */
+	public void read( final RealInterval roi, final SynapseSink sink ) throws IOException
+	{
+		final long[] gridDimensions = attributes.getDimensions();
+		final long[] cellMin = new long[ 3 ];
+		final long[] cellMax = new long[ 3 ];
+		for( int d = 0; d < 3; d++ )
+		{
+			cellMin[ d ] = Math.max( 0, Math.floorDiv( (long)Math.floor( roi.realMin( d ) ) - origin[ d ], cellSize[ d ] ) );
+			cellMax[ d ] = Math.min( gridDimensions[ d ] - 1, Math.floorDiv( (long)Math.floor( roi.realMax( d ) ) - origin[ d ], cellSize[ d ] ) );
+			if( cellMin[ d ] > cellMax[ d ] )
+				return;
+		}
+
+		for( final long[] gridPosition : Grid.createOffsets( new FinalInterval( cellMin, cellMax ), new int[]{ 1, 1, 1 } ) )
+		{
+			final DataBlock< ? > block = n5.readBlock( dataset, attributes, gridPosition );
+			if( block == null )
+				continue;
+
+			final double[] data = (double[])block.getData();
+			for( int o = 0; o < data.length; o += RECORD_SIZE )
+			{
+				final double x = data[ o ];
+				final double y = data[ o + 1 ];
+				final double z = data[ o + 2 ];
+				if( x < roi.realMin( 0 ) || x > roi.realMax( 0 ) ||
+					y < roi.realMin( 1 ) || y > roi.realMax( 1 ) ||
+					z < roi.realMin( 2 ) || z > roi.realMax( 2 ) )
+					continue;
+
+				final int k = (int)data[ o + 5 ];
+				sink.accept( k < 0 ? null : kinds[ k ], x, y, z, data[ o + 3 ], data[ o + 4 ] );
+			}
+		}
+	}
+
+	/**
+	 * @param roi the interval
+	 * @return the synapses inside the interval
+	 * @throws IOException
+	 */
+	public SynColumns load( final RealInterval roi ) throws IOException
+	{
+		final SynColumns syns = new SynColumns();
+		read( roi, syns );
+		return syns;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Point grid " + dataset + " ( " + numPoints + ") " +
+				Arrays.toString( min ) + " : " + Arrays.toString( max ) +
+				" cells " + Arrays.toString( cellSize );
+	}
+}
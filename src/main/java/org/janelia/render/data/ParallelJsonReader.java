@@ -0,0 +1,293 @@
+package org.janelia.render.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Reads large synapse and T-bar json files with all cores.
+ * <p>
+ * The byte range of the record array is cut into chunks at record
+ * boundaries and every chunk is parsed by its own {@link JsonPointParser}
+ * on a fork-join pool. Each chunk fills its own sink, the sinks are
+ * returned in file order so the caller can merge them, e.g. concatenate
+ * the records and combine the bounding boxes.
+ * <p>
+ * Finding the boundaries of a json array takes one sequential pass that
+ * only tracks nesting and strings, which is much cheaper than parsing.
+ * Json lines files are split at newlines without that pass.
+ */
+public class ParallelJsonReader
+{
+	public static final long DEFAULT_CHUNK_SIZE = 16 << 20;
+
+	private static final int SCAN_BUFFER_SIZE = 1 << 20;
+
+	@FunctionalInterface
+	private static interface ChunkReader< S >
+	{
+		public S read( JsonPointParser parser ) throws IOException;
+	}
+
+	/**
+	 * Reads a synapse json array or json lines file in parallel on the common pool.
+	 *
+	 * @param path the json file
+	 * @param sinks creates one sink per chunk
+	 * @return the filled sinks in file order
+	 * @throws IOException if reading fails or the file is not a synapse array
+	 */
+	public static < S extends SynapseSink > List< S > readSynapses( final String path, final Supplier< S > sinks ) throws IOException
+	{
+		return readSynapses( path, sinks, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool() );
+	}
+
+	public static < S extends SynapseSink > List< S > readSynapses(
+			final String path,
+			final Supplier< S > sinks,
+			final long chunkSize,
+			final ForkJoinPool pool ) throws IOException
+	{
+		final List< long[] > chunks = SynapseJsonWriter.isJsonLines( path )
+				? lineChunks( path, chunkSize )
+				: arrayChunks( path, 0, chunkSize );
+
+		return read( path, chunks, pool, parser -> {
+			final S sink = sinks.get();
+			parser.readSynapseSequence( sink );
+			return sink;
+		});
+	}
+
+	/**
+	 * Reads synapse json lines in parallel on the common pool, whatever the
+	 * extension of the path.
+	 *
+	 * @param path the json lines file
+	 * @param sinks creates one sink per chunk
+	 * @return the filled sinks in file order
+	 * @throws IOException if reading fails or a line is not a synapse
+	 */
+	public static < S extends SynapseSink > List< S > readSynapseLines( final String path, final Supplier< S > sinks ) throws IOException
+	{
+		return read( path, lineChunks( path, DEFAULT_CHUNK_SIZE ), ForkJoinPool.commonPool(), parser -> {
+			final S sink = sinks.get();
+			parser.readSynapseSequence( sink );
+			return sink;
+		});
+	}
+
+	/**
+	 * Reads the "data" array of a T-bar json file in parallel on the common pool.
+	 *
+	 * @param path the json file
+	 * @param sinks creates one sink per chunk
+	 * @return the filled sinks in file order
+	 * @throws IOException if reading fails or the file is not a T-bar file
+	 */
+	public static < S extends TbarSink > List< S > readTbars( final String path, final Supplier< S > sinks ) throws IOException
+	{
+		return readTbars( path, sinks, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool() );
+	}
+
+	public static < S extends TbarSink > List< S > readTbars(
+			final String path,
+			final Supplier< S > sinks,
+			final long chunkSize,
+			final ForkJoinPool pool ) throws IOException
+	{
+		final long start;
+		try( final InputStream in = Channels.newInputStream( FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) ) )
+		{
+			start = new JsonPointParser( in ).seekTbarArray();
+		}
+
+		return read( path, arrayChunks( path, start, chunkSize ), pool, parser -> {
+			final S sink = sinks.get();
+			parser.readTbarSequence( sink );
+			return sink;
+		});
+	}
+
+	private static < S > List< S > read(
+			final String path,
+			final List< long[] > chunks,
+			final ForkJoinPool pool,
+			final ChunkReader< S > reader ) throws IOException
+	{
+		try
+		{
+			// a parallel stream started from within a pool runs on that pool
+			return pool.submit( () -> chunks.parallelStream()
+					.map( chunk -> readChunk( path, chunk, reader ) )
+					.collect( Collectors.toList() ) ).get();
+		}
+		catch( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted reading " + path );
+		}
+		catch( final ExecutionException e )
+		{
+			if( e.getCause() instanceof UncheckedIOException )
+				throw ( (UncheckedIOException)e.getCause() ).getCause();
+			else if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException)e.getCause();
+			else
+				throw new IOException( e.getCause() );
+		}
+	}
+
+	private static < S > S readChunk( final String path, final long[] chunk, final ChunkReader< S > reader )
+	{
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			ch.position( chunk[ 0 ] );
+			return reader.read( new JsonPointParser( Channels.newInputStream( ch ), chunk[ 1 ] - chunk[ 0 ] ) );
+		}
+		catch( final IOException e )
+		{
+			throw new UncheckedIOException(
+					new IOException( path + ", chunk starting at byte " + chunk[ 0 ] + ": " + e.getMessage(), e ) );
+		}
+	}
+
+	/**
+	 * Cuts the elements of the json array starting at or after the given
+	 * offset into chunks of about chunkSize bytes. Every chunk ends right
+	 * after an element, so the next one starts with its separating comma.
+	 *
+	 * @return the [start, end) byte ranges of the chunks
+	 * @throws IOException if the content is not a json array
+	 */
+	static List< long[] > arrayChunks( final String path, final long start, final long chunkSize ) throws IOException
+	{
+		final ArrayList< long[] > chunks = new ArrayList<>();
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer buf = ByteBuffer.allocate( SCAN_BUFFER_SIZE );
+			final byte[] bytes = buf.array();
+
+			long p = start;
+			long chunkStart = -1;
+			int depth = 0;
+			boolean inString = false;
+			boolean escape = false;
+
+			int n;
+			while( ( n = ch.read( buf, p ) ) > 0 )
+			{
+				for( int i = 0; i < n; i++, p++ )
+				{
+					final byte b = bytes[ i ];
+					if( inString )
+					{
+						if( escape )
+							escape = false;
+						else if( b == '\\' )
+							escape = true;
+						else if( b == '"' )
+							inString = false;
+
+						continue;
+					}
+
+					switch( b )
+					{
+					case '"':
+						if( depth == 0 )
+							throw new IOException( path + " is not a json array at byte " + p );
+
+						inString = true;
+						break;
+					case '[':
+					case '{':
+						if( depth == 0 )
+						{
+							if( b != '[' )
+								throw new IOException( path + " is not a json array at byte " + p );
+
+							chunkStart = p + 1;
+						}
+						depth++;
+						break;
+					case ']':
+					case '}':
+						depth--;
+						if( depth == 1 && p + 1 - chunkStart >= chunkSize )
+						{
+							chunks.add( new long[]{ chunkStart, p + 1 } );
+							chunkStart = p + 1;
+						}
+						else if( depth == 0 )
+						{
+							chunks.add( new long[]{ chunkStart, p } );
+							return chunks;
+						}
+						break;
+					default:
+						if( depth == 0 && b != ' ' && b != '\n' && b != '\r' && b != '\t' )
+							throw new IOException( path + " is not a json array at byte " + p );
+					}
+				}
+				buf.clear();
+			}
+		}
+		throw new IOException( path + " ends inside the json array" );
+	}
+
+	/**
+	 * Cuts a json lines file into chunks of about chunkSize bytes that end
+	 * after a newline.
+	 *
+	 * @return the [start, end) byte ranges of the chunks
+	 */
+	static List< long[] > lineChunks( final String path, final long chunkSize ) throws IOException
+	{
+		final ArrayList< long[] > chunks = new ArrayList<>();
+		try( final FileChannel ch = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final long size = ch.size();
+			final ByteBuffer buf = ByteBuffer.allocate( 1 << 12 );
+			final byte[] bytes = buf.array();
+
+			long chunkStart = 0;
+			while( size - chunkStart > chunkSize )
+			{
+				// the chunk ends after the first newline past chunkSize
+				long p = chunkStart + chunkSize;
+				long end = size;
+				int n;
+				buf.clear();
+				search:
+				while( ( n = ch.read( buf, p ) ) > 0 )
+				{
+					for( int i = 0; i < n; i++, p++ )
+						if( bytes[ i ] == '\n' )
+						{
+							end = p + 1;
+							break search;
+						}
+					buf.clear();
+				}
+				chunks.add( new long[]{ chunkStart, end } );
+				chunkStart = end;
+			}
+			if( chunkStart < size )
+				chunks.add( new long[]{ chunkStart, size } );
+		}
+		return chunks;
+	}
+}
@@ -0,0 +1,163 @@
+package org.janelia.render.data;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.DoublePredicate;
+
+import net.imglib2.RealInterval;
+
+/**
+ * Decides which points a loader keeps, by confidence, kind and position.
+ * <p>
+ * Filters are applied while a file is parsed by wrapping the sink that
+ * receives the points, so dropped points are never stored or indexed.
+ * This replaces loading everything and zeroing low confidence points with
+ * getValues( thresh ), which keeps them in the KDTree where every RBF query
+ * still visits them.
+ * <p>
+ * A new filter keeps all points.
+ */
+public class PointFilter
+{
+	/** the kind T-bars have when they are read as points */
+	public static final String TBAR_KIND = "PreSyn";
+
+	private DoublePredicate confidence = null;
+
+	private Set< String > kinds = null;
+
+	private RealInterval roi = null;
+
+	/**
+	 * Keeps points whose confidence passes a test.
+	 */
+	public PointFilter confidence( final DoublePredicate confidence )
+	{
+		this.confidence = confidence;
+		return this;
+	}
+
+	/**
+	 * Keeps points with a confidence above the threshold, exactly the
+	 * points that getValues( thresh ) sets to one.
+	 */
+	public PointFilter confidenceAbove( final double thresh )
+	{
+		return confidence( c -> c > thresh );
+	}
+
+	/**
+	 * Keeps points of the given kinds, e.g. "PreSyn" or "PostSyn".
+	 */
+	public PointFilter kinds( final String... kinds )
+	{
+		this.kinds = new HashSet<>( Arrays.asList( kinds ) );
+		return this;
+	}
+
+	/**
+	 * Keeps points inside an interval, including its bounds.
+	 */
+	public PointFilter roi( final RealInterval roi )
+	{
+		if( roi != null && roi.numDimensions() < 3 )
+			throw new IllegalArgumentException( "roi must be 3d" );
+
+		this.roi = roi;
+		return this;
+	}
+
+	/**
+	 * @return true if the point is kept
+	 */
+	public boolean test( final String kind, final double x, final double y, final double z, final double conf )
+	{
+		if( confidence != null && !confidence.test( conf ) )
+			return false;
+
+		if( kinds != null && !kinds.contains( kind ) )
+			return false;
+
+		if( roi != null && (
+				x < roi.realMin( 0 ) || x > roi.realMax( 0 ) ||
+				y < roi.realMin( 1 ) || y > roi.realMax( 1 ) ||
+				z < roi.realMin( 2 ) || z > roi.realMax( 2 ) ) )
+			return false;
+
+		return true;
+	}
+
+	/**
+	 * @param sink receives the points that are kept
+	 * @return a sink that filters what it passes on to sink
+	 */
+	public < S extends SynapseSink > Synapses< S > synapses( final S sink )
+	{
+		return new Synapses<>( this, sink );
+	}
+
+	/**
+	 * T-bars are tested with kind {@link #TBAR_KIND}, the partners of a
+	 * T-bar are kept or dropped with it.
+	 *
+	 * @param sink receives the T-bars that are kept
+	 * @return a sink that filters what it passes on to sink
+	 */
+	public < S extends TbarSink > Tbars< S > tbars( final S sink )
+	{
+		return new Tbars<>( this, sink );
+	}
+
+	public static class Synapses< S extends SynapseSink > implements SynapseSink
+	{
+		public final S sink;
+
+		private final PointFilter filter;
+
+		public Synapses( final PointFilter filter, final S sink )
+		{
+			this.filter = filter;
+			this.sink = sink;
+		}
+
+		@Override
+		public void accept( final String kind, final double x, final double y, final double z, final double conf, final double err )
+		{
+			if( filter.test( kind, x, y, z, conf ) )
+				sink.accept( kind, x, y, z, conf, err );
+		}
+	}
+
+	public static class Tbars< S extends TbarSink > implements TbarSink
+	{
+		public final S sink;
+
+		private final PointFilter filter;
+
+		private boolean keep = false;
+
+		public Tbars( final PointFilter filter, final S sink )
+		{
+			this.filter = filter;
+			this.sink = sink;
+		}
+
+		@Override
+		public void tbar( final String status, final double confidence, final long bodyId,
+				final double x, final double y, final double z, final int numPartners )
+		{
+			keep = filter.test( TBAR_KIND, x, y, z, confidence );
+			if( keep )
+				sink.tbar( status, confidence, bodyId, x, y, z, numPartners );
+		}
+
+		@Override
+		public void partner( final double confidence, final long bodyId,
+				final double x, final double y, final double z )
+		{
+			if( keep )
+				sink.partner( confidence, bodyId, x, y, z );
+		}
+	}
+}
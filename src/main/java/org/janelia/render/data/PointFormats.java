@@ -0,0 +1,290 @@
+package org.janelia.render.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds out what kind of point file a path holds from its first bytes and
+ * reads it with the matching loader, so that no file is parsed twice to
+ * find the right reader.
+ * <p>
+ * Loaders for every {@link Format} are registered by default and can be
+ * replaced with {@link #register}.
+ */
+public class PointFormats
+{
+	public static enum Format
+	{
+		/** a json array of synapse objects */
+		SYNAPSE_JSON,
+		/** synapse objects as json lines */
+		SYNAPSE_JSON_LINES,
+		/** a json object whose "data" entry is an array of T-bars */
+		TBAR_JSON,
+		/** comma separated x,y,z and an optional value, optionally with a header line */
+		CSV,
+		/** {@link BinaryPointFormat} */
+		BINARY,
+		/** {@link MappedPointStore} */
+		POINT_STORE
+	}
+
+	/**
+	 * Reads the points of a file.
+	 */
+	@FunctionalInterface
+	public static interface Loader
+	{
+		/**
+		 * @param path the file
+		 * @param sink receives every point, with its value as confidence
+		 * @throws IOException if reading fails
+		 */
+		public void read( String path, SynapseSink sink ) throws IOException;
+
+		/**
+		 * Reads all points into columns.
+		 */
+		public default SynColumns load( final String path ) throws IOException
+		{
+			return load( path, new PointFilter() );
+		}
+
+		/**
+		 * Reads the points that pass a filter into columns, loaders that can
+		 * do better than one sequential pass override this.
+		 */
+		public default SynColumns load( final String path, final PointFilter filter ) throws IOException
+		{
+			final SynColumns syns = new SynColumns();
+			read( path, filter.synapses( syns ) );
+			return syns;
+		}
+	}
+
+	private static final int SNIFF_SIZE = 1 << 12;
+
+	private static final Map< Format, Loader > loaders = new EnumMap<>( Format.class );
+
+	static
+	{
+		register( Format.SYNAPSE_JSON, new Loader()
+		{
+			@Override
+			public void read( final String path, final SynapseSink sink ) throws IOException
+			{
+				JsonPointParser.readSynapses( path, sink );
+			}
+
+			@Override
+			public SynColumns load( final String path, final PointFilter filter ) throws IOException
+			{
+				return concatenate( ParallelJsonReader.readSynapses( path, () -> filter.synapses( new SynColumns() ) ) );
+			}
+		});
+		register( Format.SYNAPSE_JSON_LINES, new Loader()
+		{
+			@Override
+			public void read( final String path, final SynapseSink sink ) throws IOException
+			{
+				JsonPointParser.readSynapseLines( path, sink );
+			}
+
+			@Override
+			public SynColumns load( final String path, final PointFilter filter ) throws IOException
+			{
+				return concatenate( ParallelJsonReader.readSynapseLines( path, () -> filter.synapses( new SynColumns() ) ) );
+			}
+		});
+		register( Format.TBAR_JSON, new Loader()
+		{
+			@Override
+			public void read( final String path, final SynapseSink sink ) throws IOException
+			{
+				JsonPointParser.readTbars( path, new TbarSink()
+				{
+					@Override
+					public void tbar( final String status, final double confidence, final long bodyId,
+							final double x, final double y, final double z, final int numPartners )
+					{
+						sink.accept( PointFilter.TBAR_KIND, x, y, z, confidence, 0 );
+					}
+
+					@Override
+					public void partner( final double confidence, final long bodyId,
+							final double x, final double y, final double z ) {}
+				});
+			}
+
+			@Override
+			public SynColumns load( final String path, final PointFilter filter ) throws IOException
+			{
+				return SynColumns.loadTbarsParallel( path, filter );
+			}
+		});
+		register( Format.CSV, new Loader()
+		{
+			@Override
+			public void read( final String path, final SynapseSink sink ) throws IOException
+			{
+				new CsvPointReader().read( path, sink );
+			}
+
+			@Override
+			public SynColumns load( final String path, final PointFilter filter ) throws IOException
+			{
+				return new CsvPointReader().filter( filter ).load( path );
+			}
+		});
+		register( Format.BINARY, BinaryPointFormat::readPoints );
+		register( Format.POINT_STORE, ( path, sink ) -> {
+			final MappedPointStore store = MappedPointStore.open( path );
+			for( long i = 0; i < store.size(); i++ )
+				sink.accept( null,
+						store.getDoublePosition( i, 0 ),
+						store.getDoublePosition( i, 1 ),
+						store.getDoublePosition( i, 2 ),
+						store.getValue( i ), 0 );
+		});
+	}
+
+	/**
+	 * Replaces the loader of a format.
+	 */
+	public static synchronized void register( final Format format, final Loader loader )
+	{
+		loaders.put( format, loader );
+	}
+
+	public static synchronized Loader getLoader( final Format format )
+	{
+		return loaders.get( format );
+	}
+
+	/**
+	 * Reads all points of a file in whatever format it is.
+	 *
+	 * @param path the file
+	 * @param sink receives every point
+	 * @throws IOException if the format is unknown or reading fails
+	 */
+	public static void read( final String path, final SynapseSink sink ) throws IOException
+	{
+		getLoader( detect( path ) ).read( path, sink );
+	}
+
+	/**
+	 * Loads all points of a file in whatever format it is.
+	 *
+	 * @param path the file
+	 * @return the points
+	 * @throws IOException if the format is unknown or reading fails
+	 */
+	public static SynColumns load( final String path ) throws IOException
+	{
+		return load( path, new PointFilter() );
+	}
+
+	/**
+	 * Loads the points of a file that pass a filter, in whatever format the
+	 * file is. The filter is applied while parsing.
+	 *
+	 * @param path the file
+	 * @param filter which points to keep
+	 * @return the points
+	 * @throws IOException if the format is unknown or reading fails
+	 */
+	public static SynColumns load( final String path, final PointFilter filter ) throws IOException
+	{
+		return getLoader( detect( path ) ).load( path, filter );
+	}
+
+	private static SynColumns concatenate( final List< PointFilter.Synapses< SynColumns > > parts )
+	{
+		final ArrayList< SynColumns > columns = new ArrayList<>( parts.size() );
+		for( final PointFilter.Synapses< SynColumns > part : parts )
+			columns.add( part.sink );
+
+		return SynColumns.concatenate( columns );
+	}
+
+	/**
+	 * Detects the format of a file from its first bytes.
+	 *
+	 * @param path the file
+	 * @return the format
+	 * @throws IOException if the file can not be read or is empty
+	 */
+	public static Format detect( final String path ) throws IOException
+	{
+		final byte[] head = new byte[ SNIFF_SIZE ];
+		int n = 0;
+		try( final InputStream in = Files.newInputStream( Paths.get( path ) ) )
+		{
+			int r;
+			while( n < head.length && ( r = in.read( head, n, head.length - n ) ) > 0 )
+				n += r;
+		}
+
+		if( n >= 4 )
+		{
+			final int magic = ByteBuffer.wrap( head, 0, 4 ).order( ByteOrder.LITTLE_ENDIAN ).getInt();
+			if( magic == BinaryPointFormat.MAGIC )
+				return Format.BINARY;
+			else if( magic == MappedPointStore.MAGIC )
+				return Format.POINT_STORE;
+		}
+
+		int i = 0;
+		while( i < n && isWhitespace( head[ i ] ) )
+			i++;
+
+		if( i == n )
+			throw new IOException( path + " is empty" );
+
+		if( head[ i ] == '[' )
+			return Format.SYNAPSE_JSON;
+		else if( head[ i ] == '{' )
+		{
+			if( SynapseJsonWriter.isJsonLines( path ) )
+				return Format.SYNAPSE_JSON_LINES;
+
+			// a T-bar file is one object, synapse json lines start with a synapse
+			final String key = firstKey( head, i + 1, n );
+			if( "Kind".equals( key ) || "Pos".equals( key ) || "Prop".equals( key ) )
+				return Format.SYNAPSE_JSON_LINES;
+			else
+				return Format.TBAR_JSON;
+		}
+		else
+			return Format.CSV;
+	}
+
+	private static boolean isWhitespace( final byte b )
+	{
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private static String firstKey( final byte[] head, int i, final int n )
+	{
+		while( i < n && isWhitespace( head[ i ] ) )
+			i++;
+
+		if( i == n || head[ i ] != '"' )
+			return null;
+
+		final int start = ++i;
+		while( i < n && head[ i ] != '"' )
+			i++;
+
+		return i < n ? new String( head, start, i - start ) : null;
+	}
+}
@@ -3,49 +3,41 @@ package org.janelia.render.data;
 import java.io.IOException;
 import java.util.List;
 
-import org.janelia.render.SynPrediction;
-import org.janelia.render.SynPrediction.SynCollection;
-import org.janelia.render.SynapseJsonXfmFlyemInc;
 import org.janelia.render.SynapseJsonXfmFlyemInc.PtsAndValues;
 
-import net.imglib2.RealPoint;
-import net.imglib2.type.numeric.real.DoubleType;
-
 public class SubSynapses
 {
 
+	/**
+	 * Usage: SubSynapses &lt;in&gt; &lt;out&gt; &lt;factor&gt;, keeps every factor-th
+	 * synapse, or SubSynapses &lt;in&gt; &lt;out&gt; grid &lt;cellSize&gt; | poisson &lt;radius&gt;
+	 * for an even spatial coverage. Synapses stream from the input to the
+	 * output, the input is never loaded as a whole.
+	 */
 	public static void main( String[] args )
 	{
 		String inpath = args[ 0 ];
 		String outpath = args[ 1 ];
-		int subfactor = Integer.parseInt( args[ 2 ] );
-		
-		PtsAndValues pav = SynapseJsonXfmFlyemInc.load( inpath );
-		
-		subsampleInPlaceRevrm( pav, subfactor );
-		
-		List<RealPoint> ptList = pav.ptList;
-		List< DoubleType > values = pav.values;
-		
-		
-		SynCollection< DoubleType > syns_xfm = new SynCollection< DoubleType >( 
-				ptList,
-				values,
-				null,
-				new DoubleType() );
-		
-		
-		 try
+
+		try( final SynapseJsonWriter out = SynapseJsonWriter.open( outpath ) )
 		{
-			SynPrediction.write( syns_xfm, outpath );
-		} catch ( IOException e )
+			final SynapseSink sampler;
+			if( args[ 2 ].equals( "grid" ) )
+				sampler = Subsampling.grid( Double.parseDouble( args[ 3 ] ), out );
+			else if( args[ 2 ].equals( "poisson" ) )
+				sampler = Subsampling.poissonDisk( Double.parseDouble( args[ 3 ] ), out );
+			else
+				sampler = Subsampling.everyKth( Integer.parseInt( args[ 2 ] ), out );
+
+			PointFormats.read( inpath, sampler );
+			System.out.println( "kept " + out.size() );
+		}
+		catch ( IOException e )
 		{
 			e.printStackTrace();
 		}
-
-
 	}
-	
+
 	public static void subsampleInPlace(
 			PtsAndValues pav,
 			int factor )
@@ -53,14 +45,8 @@ public class SubSynapses
 		System.out.println(" before " + 
 				pav.ptList.size() + " " + 
 				pav.values.size() );
-		for( int i = pav.ptList.size()-1; i >=0 ; i-- )
-		{
-			if( i % factor != 0 )
-			{
-				pav.ptList.remove( i );
-				pav.values.remove( i );
-			}
-		}
+		keepEvery( pav.ptList, factor );
+		keepEvery( pav.values, factor );
 		System.out.println(" after " + 
 				pav.ptList.size() + " " + 
 				pav.values.size() );
@@ -73,19 +59,34 @@ public class SubSynapses
 		System.out.println(" before " + 
 				pav.ptList.size() + " " + 
 				pav.values.size() );
-		for( int i = pav.ptList.size()-1; i >=0 ; i-- )
-		{
-			if( i % factor != 0 )
-			{
-				pav.ptList.remove( i );
-				pav.values.remove( i );
-			}
-		}
+		keepEvery( pav.ptList, factor );
+		keepEvery( pav.values, factor );
 		System.out.println(" after " + 
 				pav.ptList.size() + " " + 
 				pav.values.size() );
 	}
 	
+	/**
+	 * Keeps the elements at multiples of factor in one pass, moving kept
+	 * elements forward and truncating the tail once, instead of removing
+	 * every dropped element from the middle of the list.
+	 */
+	public static < T > void keepEvery( final List< T > list, final int factor )
+	{
+		final int n = list.size();
+		int j = 0;
+		for( int i = 0; i < n; i += factor )
+			list.set( j++, list.get( i ) );
+
+		list.subList( j, n ).clear();
+	}
+
+	/**
+	 * @deprecated removes while iterating forward, so it does not keep
+	 * every factor-th point and takes quadratic time,
+	 * use {@link #subsampleInPlace} or a {@link Subsampling} stage
+	 */
+	@Deprecated
 	public static void subsampleInPlaceRm(
 			PtsAndValues pav,
 			int factor )
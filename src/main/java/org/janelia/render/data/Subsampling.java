@@ -0,0 +1,238 @@
+package org.janelia.render.data;
+
+import java.util.Arrays;
+
+/**
+ * Subsampling stages that sit between a reader and the sink it fills, so
+ * points are thinned while they stream by, in one pass and without loading
+ * the whole file first.
+ * <p>
+ * {@link #everyKth} keeps points by file order. The spatially stratified
+ * stages keep an even coverage instead: {@link #grid} keeps the first point
+ * of every grid cell, {@link #poissonDisk} keeps a point only if no kept
+ * point is closer than a radius. Both look up kept points in a hash grid,
+ * so their memory grows with the number of kept points only. Points
+ * without a position (NaN) are dropped by the stratified stages.
+ * <p>
+ * The hash grid stores the full cell coordinates, so cells never collide,
+ * whatever the extent of the points.
+ */
+public class Subsampling
+{
+	/**
+	 * @param k keep every k-th point, starting with the first
+	 * @param sink receives the kept points
+	 * @return the subsampling sink
+	 */
+	public static SynapseSink everyKth( final int k, final SynapseSink sink )
+	{
+		if( k < 1 )
+			throw new IllegalArgumentException( "subsample factor must be positive, but is " + k );
+
+		return new SynapseSink()
+		{
+			private long i = 0;
+
+			@Override
+			public void accept( final String kind, final double x, final double y, final double z, final double conf, final double err )
+			{
+				if( i++ % k == 0 )
+					sink.accept( kind, x, y, z, conf, err );
+			}
+		};
+	}
+
+	/**
+	 * @param cellSize the edge length of a grid cell
+	 * @param sink receives the first point of every cell
+	 * @return the subsampling sink
+	 */
+	public static SynapseSink grid( final double cellSize, final SynapseSink sink )
+	{
+		if( !( cellSize > 0 ) )
+			throw new IllegalArgumentException( "cell size must be positive, but is " + cellSize );
+
+		final CellMap cells = new CellMap();
+		return ( kind, x, y, z, conf, err ) -> {
+			if( Double.isNaN( x ) || Double.isNaN( y ) || Double.isNaN( z ) )
+				return;
+
+			final long cx = cell( x, cellSize );
+			final long cy = cell( y, cellSize );
+			final long cz = cell( z, cellSize );
+			if( cells.get( cx, cy, cz ) < 0 )
+			{
+				cells.put( cx, cy, cz, 0 );
+				sink.accept( kind, x, y, z, conf, err );
+			}
+		};
+	}
+
+	/**
+	 * Poisson-disk thinning in file order: a point is kept if no previously
+	 * kept point is closer than radius.
+	 *
+	 * @param radius the minimum distance of kept points
+	 * @param sink receives the kept points
+	 * @return the subsampling sink
+	 */
+	public static SynapseSink poissonDisk( final double radius, final SynapseSink sink )
+	{
+		if( !( radius > 0 ) )
+			throw new IllegalArgumentException( "radius must be positive, but is " + radius );
+
+		return new PoissonDisk( radius, sink );
+	}
+
+	private static class PoissonDisk implements SynapseSink
+	{
+		private final SynapseSink sink;
+
+		private final double radiusSqr;
+
+		// a cell's diagonal is the radius, so a cell holds at most one kept point
+		private final double cellSize;
+
+		// kept points are at most this many cells away from a close point
+		private final int reach;
+
+		private final CellMap cells = new CellMap();
+
+		private double[] kept = new double[ 3 * 1024 ];
+
+		private int numKept = 0;
+
+		public PoissonDisk( final double radius, final SynapseSink sink )
+		{
+			this.sink = sink;
+			radiusSqr = radius * radius;
+			cellSize = radius / Math.sqrt( 3 );
+			reach = (int)Math.ceil( radius / cellSize );
+		}
+
+		@Override
+		public void accept( final String kind, final double x, final double y, final double z, final double conf, final double err )
+		{
+			if( Double.isNaN( x ) || Double.isNaN( y ) || Double.isNaN( z ) )
+				return;
+
+			final long cx = cell( x, cellSize );
+			final long cy = cell( y, cellSize );
+			final long cz = cell( z, cellSize );
+
+			// any two points of a cell are closer than its diagonal
+			if( cells.get( cx, cy, cz ) >= 0 )
+				return;
+
+			for( long oz = cz - reach; oz <= cz + reach; oz++ )
+				for( long oy = cy - reach; oy <= cy + reach; oy++ )
+					for( long ox = cx - reach; ox <= cx + reach; ox++ )
+					{
+						final int j = cells.get( ox, oy, oz );
+						if( j < 0 )
+							continue;
+
+						final int o = 3 * j;
+						final double dx = kept[ o ] - x;
+						final double dy = kept[ o + 1 ] - y;
+						final double dz = kept[ o + 2 ] - z;
+						if( dx * dx + dy * dy + dz * dz < radiusSqr )
+							return;
+					}
+
+			if( 3 * numKept == kept.length )
+				kept = Arrays.copyOf( kept, 2 * kept.length );
+
+			final int o = 3 * numKept;
+			kept[ o ] = x;
+			kept[ o + 1 ] = y;
+			kept[ o + 2 ] = z;
+			cells.put( cx, cy, cz, numKept++ );
+
+			sink.accept( kind, x, y, z, conf, err );
+		}
+	}
+
+	private static long cell( final double x, final double cellSize )
+	{
+		return (long)Math.floor( x / cellSize );
+	}
+
+	/**
+	 * Open addressing hash map from cell coordinates to non-negative ints.
+	 */
+	private static class CellMap
+	{
+		// three coordinates per slot
+		private long[] cells;
+
+		// -1 marks an empty slot
+		private int[] values;
+
+		private int size;
+
+		public CellMap()
+		{
+			cells = new long[ 3 * 1024 ];
+			values = new int[ 1024 ];
+			Arrays.fill( values, -1 );
+			size = 0;
+		}
+
+		/**
+		 * @return the value of the cell or -1 if it is not in the map
+		 */
+		public int get( final long cx, final long cy, final long cz )
+		{
+			final int mask = values.length - 1;
+			for( int i = hash( cx, cy, cz ) & mask; ; i = ( i + 1 ) & mask )
+			{
+				if( values[ i ] < 0 || isCell( i, cx, cy, cz ) )
+					return values[ i ];
+			}
+		}
+
+		public void put( final long cx, final long cy, final long cz, final int value )
+		{
+			if( 2 * ( size + 1 ) > values.length )
+				grow();
+
+			final int mask = values.length - 1;
+			int i = hash( cx, cy, cz ) & mask;
+			while( values[ i ] >= 0 && !isCell( i, cx, cy, cz ) )
+				i = ( i + 1 ) & mask;
+
+			if( values[ i ] < 0 )
+				size++;
+
+			cells[ 3 * i ] = cx;
+			cells[ 3 * i + 1 ] = cy;
+			cells[ 3 * i + 2 ] = cz;
+			values[ i ] = value;
+		}
+
+		private boolean isCell( final int i, final long cx, final long cy, final long cz )
+		{
+			return cells[ 3 * i ] == cx && cells[ 3 * i + 1 ] == cy && cells[ 3 * i + 2 ] == cz;
+		}
+
+		private void grow()
+		{
+			final long[] oldCells = cells;
+			final int[] oldValues = values;
+			cells = new long[ 2 * oldCells.length ];
+			values = new int[ 2 * oldValues.length ];
+			Arrays.fill( values, -1 );
+			size = 0;
+			for( int i = 0; i < oldValues.length; i++ )
+				if( oldValues[ i ] >= 0 )
+					put( oldCells[ 3 * i ], oldCells[ 3 * i + 1 ], oldCells[ 3 * i + 2 ], oldValues[ i ] );
+		}
+
+		private static int hash( final long cx, final long cy, final long cz )
+		{
+			final long h = ( ( cx * 0x9E3779B97F4A7C15L + cy ) * 0x9E3779B97F4A7C15L + cz ) * 0x9E3779B97F4A7C15L;
+			return (int)( h ^ ( h >>> 32 ) );
+		}
+	}
+}
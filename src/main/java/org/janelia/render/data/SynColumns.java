@@ -0,0 +1,419 @@
+package org.janelia.render.data;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Synapses stored as primitive columns: an interleaved xyz block, a
+ * confidence column and an error column.
+ * <p>
+ * Unlike SynCollection, no object is held per synapse. {@link #positions()}
+ * and {@link #values} are views that read from the columns, so building a
+ * KDTree or transforming every point does not create a RealPoint and a
+ * DoubleType per synapse first.
+ */
+public class SynColumns implements SynapseSink
+{
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private double[] xyz;
+
+	private double[] conf;
+
+	private double[] err;
+
+	private String[] kind;
+
+	private int size;
+
+	private final long[] min;
+
+	private final long[] max;
+
+	public SynColumns()
+	{
+		this( INITIAL_CAPACITY );
+	}
+
+	public SynColumns( final int capacity )
+	{
+		final int n = Math.max( capacity, 1 );
+		xyz = new double[ 3 * n ];
+		conf = new double[ n ];
+		err = new double[ n ];
+		kind = new String[ n ];
+		size = 0;
+
+		min = new long[ 3 ];
+		max = new long[ 3 ];
+		Arrays.fill( min, Long.MAX_VALUE );
+		Arrays.fill( max, Long.MIN_VALUE );
+	}
+
+	/**
+	 * Loads the points of a file in any of the {@link PointFormats}, json
+	 * is parsed in parallel.
+	 *
+	 * @param path the file
+	 * @return the columns
+	 * @throws IOException if the format is unknown or reading fails
+	 */
+	public static SynColumns load( final String path ) throws IOException
+	{
+		return PointFormats.load( path );
+	}
+
+	/**
+	 * Loads the points of a file that pass a filter, the filter is applied
+	 * while parsing.
+	 *
+	 * @param path the file
+	 * @param filter which points to keep
+	 * @return the columns
+	 * @throws IOException if the format is unknown or reading fails
+	 */
+	public static SynColumns load( final String path, final PointFilter filter ) throws IOException
+	{
+		return PointFormats.load( path, filter );
+	}
+
+	public static SynColumns loadSynapses( final String path ) throws IOException
+	{
+		final SynColumns syns = new SynColumns();
+		JsonPointParser.readSynapses( path, syns );
+		return syns;
+	}
+
+	/**
+	 * Loads the T-bar locations and confidences of an old style json, partners are ignored.
+	 */
+	public static SynColumns loadTbars( final String path ) throws IOException
+	{
+		final TbarColumns syns = new TbarColumns();
+		JsonPointParser.readTbars( path, syns );
+		return syns;
+	}
+
+	/**
+	 * Loads the T-bar locations and confidences of an old style json like
+	 * {@link #loadTbars}, parsing chunks of the file in parallel.
+	 */
+	public static SynColumns loadTbarsParallel( final String path ) throws IOException
+	{
+		return concatenate( ParallelJsonReader.readTbars( path, TbarColumns::new ) );
+	}
+
+	/**
+	 * Loads the T-bars of an old style json that pass a filter, parsing
+	 * chunks of the file in parallel.
+	 */
+	public static SynColumns loadTbarsParallel( final String path, final PointFilter filter ) throws IOException
+	{
+		final ArrayList< SynColumns > parts = new ArrayList<>();
+		for( final PointFilter.Tbars< TbarColumns > part : ParallelJsonReader.readTbars( path, () -> filter.tbars( new TbarColumns() ) ) )
+			parts.add( part.sink );
+
+		return concatenate( parts );
+	}
+
+	/**
+	 * @param parts columns in order
+	 * @return new columns holding the synapses of all parts
+	 */
+	public static SynColumns concatenate( final List< ? extends SynColumns > parts )
+	{
+		final SynColumns out = new SynColumns( parts.stream().mapToInt( SynColumns::size ).sum() );
+		for( final SynColumns part : parts )
+			out.addAll( part );
+
+		return out;
+	}
+
+	/**
+	 * Appends all synapses of other columns.
+	 */
+	public void addAll( final SynColumns other )
+	{
+		final int n = size + other.size;
+		if( n > conf.length )
+		{
+			xyz = Arrays.copyOf( xyz, 3 * n );
+			conf = Arrays.copyOf( conf, n );
+			err = Arrays.copyOf( err, n );
+			kind = Arrays.copyOf( kind, n );
+		}
+		System.arraycopy( other.xyz, 0, xyz, 3 * size, 3 * other.size );
+		System.arraycopy( other.conf, 0, conf, size, other.size );
+		System.arraycopy( other.err, 0, err, size, other.size );
+		System.arraycopy( other.kind, 0, kind, size, other.size );
+		size = n;
+
+		for( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = Math.min( min[ d ], other.min[ d ] );
+			max[ d ] = Math.max( max[ d ], other.max[ d ] );
+		}
+	}
+
+	@Override
+	public void accept( final String kind, final double x, final double y, final double z, final double conf, final double err )
+	{
+		add( kind, x, y, z, conf, err );
+	}
+
+	public void add( final String kind, final double x, final double y, final double z, final double conf, final double err )
+	{
+		if( size == this.conf.length )
+			grow();
+
+		final int o = 3 * size;
+		xyz[ o ] = x;
+		xyz[ o + 1 ] = y;
+		xyz[ o + 2 ] = z;
+		this.conf[ size ] = conf;
+		this.err[ size ] = err;
+		this.kind[ size ] = kind;
+		size++;
+
+		updateMinMax( x, y, z );
+	}
+
+	private void grow()
+	{
+		final int n = conf.length + ( conf.length >> 1 ) + 1;
+		xyz = Arrays.copyOf( xyz, 3 * n );
+		conf = Arrays.copyOf( conf, n );
+		err = Arrays.copyOf( err, n );
+		kind = Arrays.copyOf( kind, n );
+	}
+
+	private void updateMinMax( final double x, final double y, final double z )
+	{
+		updateMinMax( 0, x );
+		updateMinMax( 1, y );
+		updateMinMax( 2, z );
+	}
+
+	private void updateMinMax( final int d, final double x )
+	{
+		// failed transformations are NaN and do not count
+		if( Double.isNaN( x ) )
+			return;
+
+		final long lo = (long)Math.floor( x );
+		final long hi = (long)Math.ceil( x );
+		if( lo < min[ d ] )
+			min[ d ] = lo;
+
+		if( hi > max[ d ] )
+			max[ d ] = hi;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public double getDoublePosition( final int i, final int d )
+	{
+		return xyz[ 3 * i + d ];
+	}
+
+	public void localize( final int i, final double[] position )
+	{
+		System.arraycopy( xyz, 3 * i, position, 0, 3 );
+	}
+
+	public double getConfidence( final int i )
+	{
+		return conf[ i ];
+	}
+
+	public double getError( final int i )
+	{
+		return err[ i ];
+	}
+
+	public String getKind( final int i )
+	{
+		return kind[ i ];
+	}
+
+	public long[] getMin()
+	{
+		return min;
+	}
+
+	public long[] getMax()
+	{
+		return max;
+	}
+
+	public Interval getInterval()
+	{
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @return a view of the positions that reads from the xyz column
+	 */
+	public List< RealLocalizable > positions()
+	{
+		return new AbstractList< RealLocalizable >()
+		{
+			@Override
+			public RealLocalizable get( final int i )
+			{
+				return new PointView( i );
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * @param type the value type
+	 * @return a view of the confidences
+	 */
+	public < T extends RealType< T > > List< T > values( final T type )
+	{
+		return new AbstractList< T >()
+		{
+			@Override
+			public T get( final int i )
+			{
+				final T t = type.createVariable();
+				t.setReal( conf[ i ] );
+				return t;
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * A view of the confidences where every confidence above the threshold
+	 * is one and everything else zero, as SynCollection.getValues( thresh ).
+	 *
+	 * @param type the value type
+	 * @param thresh the threshold
+	 * @return the value view
+	 */
+	public < T extends RealType< T > > List< T > values( final T type, final double thresh )
+	{
+		return new AbstractList< T >()
+		{
+			@Override
+			public T get( final int i )
+			{
+				final T t = type.createVariable();
+				if( conf[ i ] > thresh )
+					t.setOne();
+				else
+					t.setZero();
+
+				return t;
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+
+	public double fractionFailed()
+	{
+		double nFailures = 0.0;
+		for( int i = 0; i < size; i++ )
+			if( Double.isNaN( xyz[ 3 * i ] ) )
+				nFailures += 1.0;
+
+		return nFailures;
+	}
+
+	@Override
+	public String toString()
+	{
+		String out = "Synapses ( " + size + ") ";
+		out += Arrays.toString( min ) + " : ";
+		out += Arrays.toString( max );
+		return out;
+	}
+
+	/**
+	 * Columns filled with T-bar locations and confidences, partners are ignored.
+	 */
+	private static class TbarColumns extends SynColumns implements TbarSink
+	{
+		@Override
+		public void tbar( final String status, final double confidence, final long bodyId,
+				final double x, final double y, final double z, final int numPartners )
+		{
+			add( PointFilter.TBAR_KIND, x, y, z, confidence, 0 );
+		}
+
+		@Override
+		public void partner( final double confidence, final long bodyId,
+				final double x, final double y, final double z ) {}
+	}
+
+	private class PointView implements RealLocalizable
+	{
+		private final int o;
+
+		public PointView( final int i )
+		{
+			this.o = 3 * i;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public void localize( final float[] position )
+		{
+			for( int d = 0; d < 3; d++ )
+				position[ d ] = (float)xyz[ o + d ];
+		}
+
+		@Override
+		public void localize( final double[] position )
+		{
+			for( int d = 0; d < 3; d++ )
+				position[ d ] = xyz[ o + d ];
+		}
+
+		@Override
+		public float getFloatPosition( final int d )
+		{
+			return (float)xyz[ o + d ];
+		}
+
+		@Override
+		public double getDoublePosition( final int d )
+		{
+			return xyz[ o + d ];
+		}
+	}
+}
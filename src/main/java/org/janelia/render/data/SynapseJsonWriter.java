@@ -0,0 +1,275 @@
+package org.janelia.render.data;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes synapses as json while they are produced.
+ * <p>
+ * Every record is encoded straight into a fixed size byte buffer that is
+ * flushed to the output stream when full, so writing needs constant memory
+ * no matter how many synapses there are. The records look like the ones
+ * SynPrediction.loadAll reads:
+ * <code>{"Kind": .., "Pos": [x,y,z], "Prop": {"conf": .., "err": ..}}</code>
+ * <p>
+ * By default the records form one json array. In json lines mode (used
+ * for paths ending in {@link #JSON_LINES_EXTENSION}) every record is on a
+ * line of its own and there is no enclosing array, so a file can be split
+ * at any newline and read in parallel.
+ */
+public class SynapseJsonWriter implements SynapseSink, Closeable
+{
+	public static final String JSON_LINES_EXTENSION = ".jsonl";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// longest record part written without checking the remaining buffer
+	private static final int MAX_NUMBER_LENGTH = 32;
+
+	private final OutputStream out;
+
+	private final boolean lines;
+
+	private final byte[] buf;
+
+	private int pos;
+
+	private long size;
+
+	/**
+	 * @param out the stream to write to, closed by {@link #close()}
+	 * @param lines write json lines instead of a json array
+	 */
+	public SynapseJsonWriter( final OutputStream out, final boolean lines )
+	{
+		this.out = out;
+		this.lines = lines;
+		buf = new byte[ BUFFER_SIZE ];
+		pos = 0;
+		size = 0;
+
+		if( !lines )
+			put( '[' );
+	}
+
+	/**
+	 * Opens a writer for a file, json lines are written if the path ends in
+	 * {@link #JSON_LINES_EXTENSION}.
+	 *
+	 * @param path the output file
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public static SynapseJsonWriter open( final String path ) throws IOException
+	{
+		return new SynapseJsonWriter( new FileOutputStream( path ), isJsonLines( path ) );
+	}
+
+	public static boolean isJsonLines( final String path )
+	{
+		return path.endsWith( JSON_LINES_EXTENSION );
+	}
+
+	/**
+	 * Writes all synapses of the columns.
+	 *
+	 * @param syns the synapses
+	 * @param path the output file
+	 * @throws IOException
+	 */
+	public static void write( final SynColumns syns, final String path ) throws IOException
+	{
+		try( final SynapseJsonWriter writer = open( path ) )
+		{
+			for( int i = 0; i < syns.size(); i++ )
+				writer.accept( syns.getKind( i ),
+						syns.getDoublePosition( i, 0 ),
+						syns.getDoublePosition( i, 1 ),
+						syns.getDoublePosition( i, 2 ),
+						syns.getConfidence( i ),
+						syns.getError( i ) );
+		}
+	}
+
+	/**
+	 * Writes one synapse.
+	 *
+	 * @throws UncheckedIOException if writing fails
+	 */
+	@Override
+	public void accept( final String kind, final double x, final double y, final double z, final double conf, final double err )
+	{
+		if( lines )
+		{
+			if( size > 0 )
+				put( '\n' );
+		}
+		else if( size > 0 )
+			put( ',' );
+
+		put( "{\"Kind\":" );
+		putString( kind );
+		put( ",\"Pos\":[" );
+		putNumber( x );
+		put( ',' );
+		putNumber( y );
+		put( ',' );
+		putNumber( z );
+		put( "],\"Prop\":{\"conf\":" );
+		putNumber( conf );
+		put( ",\"err\":" );
+		putNumber( err );
+		put( "}}" );
+		size++;
+	}
+
+	/**
+	 * @return the number of synapses written so far
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	private void put( final int c )
+	{
+		if( pos == buf.length )
+			flush();
+
+		buf[ pos++ ] = (byte)c;
+	}
+
+	private void put( final String ascii )
+	{
+		for( int i = 0; i < ascii.length(); i++ )
+			put( ascii.charAt( i ) );
+	}
+
+	private void putString( final String s )
+	{
+		if( s == null )
+		{
+			put( "null" );
+			return;
+		}
+
+		put( '"' );
+		for( int i = 0; i < s.length(); i++ )
+		{
+			final char c = s.charAt( i );
+			if( c == '"' || c == '\\' )
+			{
+				put( '\\' );
+				put( c );
+			}
+			else if( c < 0x20 )
+			{
+				put( "\\u00" );
+				put( Character.forDigit( c >> 4, 16 ) );
+				put( Character.forDigit( c & 0xf, 16 ) );
+			}
+			else if( c < 0x80 )
+				put( c );
+			else
+			{
+				for( final byte b : String.valueOf( c ).getBytes( StandardCharsets.UTF_8 ) )
+					put( b );
+			}
+		}
+		put( '"' );
+	}
+
+	/**
+	 * Integral values are written without a fraction, like the integer
+	 * positions of the input files; NaN and infinities as strings, like
+	 * org.json does.
+	 */
+	private void putNumber( final double v )
+	{
+		if( Double.isNaN( v ) || Double.isInfinite( v ) )
+		{
+			put( '"' );
+			put( Double.toString( v ) );
+			put( '"' );
+		}
+		else if( v == Math.rint( v ) && Math.abs( v ) < 1e15 )
+			putLong( (long)v );
+		else
+			put( Double.toString( v ) );
+	}
+
+	private void putLong( long v )
+	{
+		if( buf.length - pos < MAX_NUMBER_LENGTH )
+			flush();
+
+		if( v == 0 )
+		{
+			buf[ pos++ ] = '0';
+			return;
+		}
+
+		if( v < 0 )
+		{
+			buf[ pos++ ] = '-';
+			v = -v;
+		}
+
+		final int start = pos;
+		while( v > 0 )
+		{
+			buf[ pos++ ] = (byte)( '0' + v % 10 );
+			v /= 10;
+		}
+
+		// digits were written in reverse
+		for( int i = start, j = pos - 1; i < j; i++, j-- )
+		{
+			final byte t = buf[ i ];
+			buf[ i ] = buf[ j ];
+			buf[ j ] = t;
+		}
+	}
+
+	private void flush()
+	{
+		try
+		{
+			out.write( buf, 0, pos );
+			pos = 0;
+		}
+		catch( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if( lines )
+			{
+				if( size > 0 )
+					put( '\n' );
+			}
+			else
+				put( ']' );
+
+			flush();
+		}
+		catch( final UncheckedIOException e )
+		{
+			throw e.getCause();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
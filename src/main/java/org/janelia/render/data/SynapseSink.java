@@ -0,0 +1,18 @@
+package org.janelia.render.data;
+
+/**
+ * Receives synapse records one at a time as a reader produces them.
+ */
+@FunctionalInterface
+public interface SynapseSink
+{
+	/**
+	 * @param kind the synapse kind, e.g. "PreSyn"
+	 * @param x the x position
+	 * @param y the y position
+	 * @param z the z position
+	 * @param conf the prediction confidence
+	 * @param err the transformation error (zero if not known)
+	 */
+	public void accept( String kind, double x, double y, double z, double conf, double err );
+}
@@ -0,0 +1,480 @@
+package org.janelia.render.data;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * T-bars and their partners in compressed sparse row form.
+ * <p>
+ * T-bar i has the columns xyz[3i..3i+2], confidence, status and body ID,
+ * its partners are the rows offsets[i] to offsets[i+1] (exclusive) of the
+ * partner columns. Compared to a TbarPrediction with a TbarPartner array,
+ * no object is held per T-bar or partner, and partner-aware analyses run
+ * over contiguous arrays.
+ * <p>
+ * A TbarGraph is a {@link TbarSink}, so the json and binary readers fill
+ * it directly.
+ */
+public class TbarGraph implements TbarSink
+{
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private double[] xyz;
+
+	private double[] conf;
+
+	private String[] status;
+
+	private long[] bodyId;
+
+	private int[] offsets;
+
+	private int size;
+
+	private double[] partnerXyz;
+
+	private double[] partnerConf;
+
+	private long[] partnerBodyId;
+
+	private int numPartners;
+
+	private final long[] min;
+
+	private final long[] max;
+
+	public TbarGraph()
+	{
+		this( INITIAL_CAPACITY, INITIAL_CAPACITY );
+	}
+
+	public TbarGraph( final int capacity, final int partnerCapacity )
+	{
+		final int n = Math.max( capacity, 1 );
+		final int m = Math.max( partnerCapacity, 1 );
+		xyz = new double[ 3 * n ];
+		conf = new double[ n ];
+		status = new String[ n ];
+		bodyId = new long[ n ];
+		offsets = new int[ n + 1 ];
+		partnerXyz = new double[ 3 * m ];
+		partnerConf = new double[ m ];
+		partnerBodyId = new long[ m ];
+		size = 0;
+		numPartners = 0;
+
+		min = new long[ 3 ];
+		max = new long[ 3 ];
+		Arrays.fill( min, Long.MAX_VALUE );
+		Arrays.fill( max, Long.MIN_VALUE );
+	}
+
+	/**
+	 * Loads the T-bars and partners of a {@link BinaryPointFormat} file or
+	 * an old style json, chunks of a json are parsed in parallel.
+	 *
+	 * @param path the file
+	 * @return the graph
+	 * @throws IOException if the file is not a T-bar file
+	 */
+	public static TbarGraph load( final String path ) throws IOException
+	{
+		if( PointFormats.detect( path ) == PointFormats.Format.BINARY )
+		{
+			final BinaryPointFormat.Header header = BinaryPointFormat.readHeader( path );
+			final TbarGraph tbars = new TbarGraph( header.numPoints, header.numPartners );
+			BinaryPointFormat.readTbarGraph( path, tbars );
+			return tbars;
+		}
+
+		return concatenate( ParallelJsonReader.readTbars( path, TbarGraph::new ) );
+	}
+
+	/**
+	 * Loads the T-bars that pass a filter and their partners, the filter is
+	 * applied while parsing.
+	 *
+	 * @param path the file
+	 * @param filter which T-bars to keep
+	 * @return the graph
+	 * @throws IOException if the file is not a T-bar file
+	 */
+	public static TbarGraph load( final String path, final PointFilter filter ) throws IOException
+	{
+		if( PointFormats.detect( path ) == PointFormats.Format.BINARY )
+		{
+			final TbarGraph tbars = new TbarGraph();
+			BinaryPointFormat.readTbarGraph( path, filter.tbars( tbars ) );
+			return tbars;
+		}
+
+		final ArrayList< TbarGraph > parts = new ArrayList<>();
+		for( final PointFilter.Tbars< TbarGraph > part : ParallelJsonReader.readTbars( path, () -> filter.tbars( new TbarGraph() ) ) )
+			parts.add( part.sink );
+
+		return concatenate( parts );
+	}
+
+	/**
+	 * @param parts graphs in order
+	 * @return a new graph holding the T-bars of all parts
+	 */
+	public static TbarGraph concatenate( final List< TbarGraph > parts )
+	{
+		int n = 0;
+		int m = 0;
+		for( final TbarGraph part : parts )
+		{
+			n += part.size;
+			m += part.numPartners;
+		}
+
+		final TbarGraph out = new TbarGraph( n, m );
+		for( final TbarGraph part : parts )
+			out.addAll( part );
+
+		return out;
+	}
+
+	/**
+	 * Appends all T-bars and partners of another graph.
+	 */
+	public void addAll( final TbarGraph other )
+	{
+		ensureCapacity( size + other.size );
+		ensurePartnerCapacity( numPartners + other.numPartners );
+
+		System.arraycopy( other.xyz, 0, xyz, 3 * size, 3 * other.size );
+		System.arraycopy( other.conf, 0, conf, size, other.size );
+		System.arraycopy( other.status, 0, status, size, other.size );
+		System.arraycopy( other.bodyId, 0, bodyId, size, other.size );
+		for( int i = 1; i <= other.size; i++ )
+			offsets[ size + i ] = numPartners + other.offsets[ i ];
+
+		System.arraycopy( other.partnerXyz, 0, partnerXyz, 3 * numPartners, 3 * other.numPartners );
+		System.arraycopy( other.partnerConf, 0, partnerConf, numPartners, other.numPartners );
+		System.arraycopy( other.partnerBodyId, 0, partnerBodyId, numPartners, other.numPartners );
+
+		size += other.size;
+		numPartners += other.numPartners;
+
+		for( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = Math.min( min[ d ], other.min[ d ] );
+			max[ d ] = Math.max( max[ d ], other.max[ d ] );
+		}
+	}
+
+	@Override
+	public void tbar( final String status, final double confidence, final long bodyId,
+			final double x, final double y, final double z, final int numPartners )
+	{
+		ensureCapacity( size + 1 );
+		ensurePartnerCapacity( this.numPartners + numPartners );
+
+		final int o = 3 * size;
+		xyz[ o ] = x;
+		xyz[ o + 1 ] = y;
+		xyz[ o + 2 ] = z;
+		conf[ size ] = confidence;
+		this.status[ size ] = status;
+		this.bodyId[ size ] = bodyId;
+		size++;
+		offsets[ size ] = this.numPartners;
+
+		updateMinMax( 0, x );
+		updateMinMax( 1, y );
+		updateMinMax( 2, z );
+	}
+
+	@Override
+	public void partner( final double confidence, final long bodyId,
+			final double x, final double y, final double z )
+	{
+		ensurePartnerCapacity( numPartners + 1 );
+
+		final int o = 3 * numPartners;
+		partnerXyz[ o ] = x;
+		partnerXyz[ o + 1 ] = y;
+		partnerXyz[ o + 2 ] = z;
+		partnerConf[ numPartners ] = confidence;
+		partnerBodyId[ numPartners ] = bodyId;
+		numPartners++;
+		offsets[ size ] = numPartners;
+	}
+
+	private void ensureCapacity( final int n )
+	{
+		if( n <= conf.length )
+			return;
+
+		final int c = Math.max( n, conf.length + ( conf.length >> 1 ) + 1 );
+		xyz = Arrays.copyOf( xyz, 3 * c );
+		conf = Arrays.copyOf( conf, c );
+		status = Arrays.copyOf( status, c );
+		bodyId = Arrays.copyOf( bodyId, c );
+		offsets = Arrays.copyOf( offsets, c + 1 );
+	}
+
+	private void ensurePartnerCapacity( final int m )
+	{
+		if( m <= partnerConf.length )
+			return;
+
+		final int c = Math.max( m, partnerConf.length + ( partnerConf.length >> 1 ) + 1 );
+		partnerXyz = Arrays.copyOf( partnerXyz, 3 * c );
+		partnerConf = Arrays.copyOf( partnerConf, c );
+		partnerBodyId = Arrays.copyOf( partnerBodyId, c );
+	}
+
+	private void updateMinMax( final int d, final double x )
+	{
+		final long lo = (long)Math.floor( x );
+		final long hi = (long)Math.ceil( x );
+		if( lo < min[ d ] )
+			min[ d ] = lo;
+
+		if( hi > max[ d ] )
+			max[ d ] = hi;
+	}
+
+	/**
+	 * @return the number of T-bars
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of partners of all T-bars
+	 */
+	public int numPartners()
+	{
+		return numPartners;
+	}
+
+	public double getDoublePosition( final int i, final int d )
+	{
+		return xyz[ 3 * i + d ];
+	}
+
+	public double getConfidence( final int i )
+	{
+		return conf[ i ];
+	}
+
+	public String getStatus( final int i )
+	{
+		return status[ i ];
+	}
+
+	public long getBodyId( final int i )
+	{
+		return bodyId[ i ];
+	}
+
+	/**
+	 * @return the first partner row of T-bar i
+	 */
+	public int partnerStart( final int i )
+	{
+		return offsets[ i ];
+	}
+
+	/**
+	 * @return one past the last partner row of T-bar i
+	 */
+	public int partnerEnd( final int i )
+	{
+		return offsets[ i + 1 ];
+	}
+
+	public int numPartners( final int i )
+	{
+		return offsets[ i + 1 ] - offsets[ i ];
+	}
+
+	public double getPartnerDoublePosition( final int p, final int d )
+	{
+		return partnerXyz[ 3 * p + d ];
+	}
+
+	public double getPartnerConfidence( final int p )
+	{
+		return partnerConf[ p ];
+	}
+
+	public long getPartnerBodyId( final int p )
+	{
+		return partnerBodyId[ p ];
+	}
+
+	/**
+	 * Hands every T-bar and its partners to a sink, e.g. to write them.
+	 */
+	public void forEach( final TbarSink sink )
+	{
+		for( int i = 0; i < size; i++ )
+		{
+			final int o = 3 * i;
+			sink.tbar( status[ i ], conf[ i ], bodyId[ i ], xyz[ o ], xyz[ o + 1 ], xyz[ o + 2 ], numPartners( i ) );
+			for( int p = offsets[ i ]; p < offsets[ i + 1 ]; p++ )
+			{
+				final int q = 3 * p;
+				sink.partner( partnerConf[ p ], partnerBodyId[ p ], partnerXyz[ q ], partnerXyz[ q + 1 ], partnerXyz[ q + 2 ] );
+			}
+		}
+	}
+
+	public long[] getMin()
+	{
+		return min;
+	}
+
+	public long[] getMax()
+	{
+		return max;
+	}
+
+	public Interval getInterval()
+	{
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @return a view of the T-bar positions
+	 */
+	public List< RealLocalizable > positions()
+	{
+		return new AbstractList< RealLocalizable >()
+		{
+			@Override
+			public RealLocalizable get( final int i )
+			{
+				return new PointView( xyz, i );
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * @return a view of the positions of all partners of all T-bars
+	 */
+	public List< RealLocalizable > partnerPositions()
+	{
+		return new AbstractList< RealLocalizable >()
+		{
+			@Override
+			public RealLocalizable get( final int p )
+			{
+				return new PointView( partnerXyz, p );
+			}
+
+			@Override
+			public int size()
+			{
+				return numPartners;
+			}
+		};
+	}
+
+	/**
+	 * A view of the T-bar confidences where every confidence above the
+	 * threshold is one and everything else zero, as TbarCollection.getValues( thresh ).
+	 *
+	 * @param type the value type
+	 * @param thresh the threshold
+	 * @return the value view
+	 */
+	public < T extends RealType< T > > List< T > values( final T type, final double thresh )
+	{
+		return new AbstractList< T >()
+		{
+			@Override
+			public T get( final int i )
+			{
+				final T t = type.createVariable();
+				if( conf[ i ] > thresh )
+					t.setOne();
+				else
+					t.setZero();
+
+				return t;
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public String toString()
+	{
+		String out = "Tbars ( " + size + ", " + numPartners + " partners ) ";
+		out += Arrays.toString( min ) + " : ";
+		out += Arrays.toString( max );
+		return out;
+	}
+
+	private static class PointView implements RealLocalizable
+	{
+		private final double[] xyz;
+
+		private final int o;
+
+		public PointView( final double[] xyz, final int i )
+		{
+			this.xyz = xyz;
+			this.o = 3 * i;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public void localize( final float[] position )
+		{
+			for( int d = 0; d < 3; d++ )
+				position[ d ] = (float)xyz[ o + d ];
+		}
+
+		@Override
+		public void localize( final double[] position )
+		{
+			for( int d = 0; d < 3; d++ )
+				position[ d ] = xyz[ o + d ];
+		}
+
+		@Override
+		public float getFloatPosition( final int d )
+		{
+			return (float)xyz[ o + d ];
+		}
+
+		@Override
+		public double getDoublePosition( final int d )
+		{
+			return xyz[ o + d ];
+		}
+	}
+}
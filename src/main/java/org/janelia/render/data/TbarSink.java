@@ -0,0 +1,17 @@
+package org.janelia.render.data;
+
+/**
+ * Receives T-bar records one at a time as a reader produces them.
+ * <p>
+ * Every call to {@link #tbar} is followed by exactly numPartners calls to
+ * {@link #partner}, one for each of its partners.
+ */
+public interface TbarSink
+{
+	public void tbar( String status, double confidence, long bodyId,
+			double x, double y, double z,
+			int numPartners );
+
+	public void partner( double confidence, long bodyId,
+			double x, double y, double z );
+}
@@ -0,0 +1,430 @@
+package org.janelia.render.index;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.janelia.render.data.MappedPointStore;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A 3d KD-tree without node objects.
+ * <p>
+ * The points are stored in tree order in one interleaved coordinate array
+ * and one value array. The subtree of the range [lo, hi) has its root at
+ * mid = (lo + hi) / 2, its left subtree is [lo, mid) and its right subtree
+ * [mid + 1, hi), so the tree is implicit and only the split dimension of
+ * every node is stored. Each node splits along the widest extent of its
+ * points, which suits thin slabs better than cycling through dimensions.
+ * <p>
+ * Radius searches walk the tree with an explicit stack and scan small
+ * subtrees linearly, all over contiguous primitive arrays.
+ */
+public class FlatKDTree implements PointIndex
+{
+	// subtrees of at most this many points are scanned instead of traversed,
+	// the same as in a point store so that its order can be copied
+	private static final int LEAF_SIZE = MappedPointStore.LEAF_SIZE;
+
+	// ranges larger than this are built in parallel
+	private static final int PARALLEL_SIZE = 1 << 16;
+
+	private final int size;
+
+	private final double[] xyz;
+
+	private final double[] values;
+
+	private final byte[] splitDims;
+
+	// index of every tree node in the input, null if the input was in tree order
+	private final int[] ids;
+
+	/**
+	 * Builds the tree, the arrays are not modified.
+	 *
+	 * @param xyz interleaved coordinates of the points
+	 * @param values one value per point
+	 */
+	public FlatKDTree( final double[] xyz, final double[] values )
+	{
+		size = values.length;
+		if( xyz.length < 3 * size )
+			throw new IllegalArgumentException( "need three coordinates per value" );
+
+		ids = new int[ size ];
+		for( int i = 0; i < size; i++ )
+			ids[ i ] = i;
+
+		splitDims = new byte[ size ];
+		ForkJoinPool.commonPool().invoke( new Build( xyz, ids, splitDims, 0, size ) );
+
+		this.xyz = new double[ 3 * size ];
+		this.values = new double[ size ];
+		for( int i = 0; i < size; i++ )
+		{
+			final int j = ids[ i ];
+			System.arraycopy( xyz, 3 * j, this.xyz, 3 * i, 3 );
+			this.values[ i ] = values[ j ];
+		}
+	}
+
+	/**
+	 * A tree of points that are already in tree order, e.g. copied from a
+	 * {@link MappedKDTree}. The arrays are not copied.
+	 */
+	FlatKDTree( final double[] xyz, final double[] values, final byte[] splitDims )
+	{
+		size = values.length;
+		this.xyz = xyz;
+		this.values = values;
+		this.splitDims = splitDims;
+		ids = null;
+	}
+
+	/**
+	 * Builds a tree from the lists a {@link net.imglib2.KDTree} would be
+	 * built from, e.g. the views of SynColumns.
+	 *
+	 * @param values the values
+	 * @param points the positions
+	 * @return the tree
+	 */
+	public static FlatKDTree build( final List< ? extends RealType< ? > > values, final List< ? extends RealLocalizable > points )
+	{
+		final int n = values.size();
+		final double[] xyz = new double[ 3 * n ];
+		final double[] v = new double[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			final RealLocalizable p = points.get( i );
+			xyz[ 3 * i ] = p.getDoublePosition( 0 );
+			xyz[ 3 * i + 1 ] = p.getDoublePosition( 1 );
+			xyz[ 3 * i + 2 ] = p.getDoublePosition( 2 );
+			v[ i ] = values.get( i ).getRealDouble();
+		}
+		return new FlatKDTree( xyz, v );
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param i the node in tree order
+	 */
+	public double getDoublePosition( final int i, final int d )
+	{
+		return xyz[ 3 * i + d ];
+	}
+
+	/**
+	 * @param i the node in tree order
+	 */
+	public double getValue( final int i )
+	{
+		return values[ i ];
+	}
+
+	/**
+	 * @return the interleaved coordinates in tree order, not a copy
+	 */
+	public double[] getPositions()
+	{
+		return xyz;
+	}
+
+	/**
+	 * @return the values in tree order, not a copy
+	 */
+	public double[] getValues()
+	{
+		return values;
+	}
+
+	/**
+	 * @param i the node in tree order
+	 * @return the index of the point in the input
+	 */
+	public int getId( final int i )
+	{
+		return ids == null ? i : ids[ i ];
+	}
+
+	@Override
+	public Search radiusSearch()
+	{
+		return new Search();
+	}
+
+	/**
+	 * A radius search on this tree, the neighbors are tree nodes.
+	 */
+	public class Search implements RadiusSearch
+	{
+		// two ints per pending subtree, a balanced tree is at most 32 levels deep
+		private final int[] stack = new int[ 2 * 2 * 33 ];
+
+		private int[] neighbors = new int[ 64 ];
+
+		private double[] sqrDists = new double[ 64 ];
+
+		private int numNeighbors = 0;
+
+		@Override
+		public void search( final RealLocalizable reference, final double radius )
+		{
+			search( reference.getDoublePosition( 0 ), reference.getDoublePosition( 1 ), reference.getDoublePosition( 2 ), radius );
+		}
+
+		public void search( final double x, final double y, final double z, final double radius )
+		{
+			walk( x, y, z, radius, null );
+		}
+
+		@Override
+		public void visit( final RealLocalizable reference, final double radius, final NeighborVisitor visitor )
+		{
+			walk( reference.getDoublePosition( 0 ), reference.getDoublePosition( 1 ), reference.getDoublePosition( 2 ), radius, visitor );
+		}
+
+		/**
+		 * Walks the tree and collects the neighbors, or passes them to the
+		 * visitor if there is one.
+		 */
+		private void walk( final double x, final double y, final double z, final double radius, final NeighborVisitor visitor )
+		{
+			numNeighbors = 0;
+			final double r2 = radius * radius;
+
+			int sp = 0;
+			stack[ sp++ ] = 0;
+			stack[ sp++ ] = size;
+			while( sp > 0 )
+			{
+				final int hi = stack[ --sp ];
+				final int lo = stack[ --sp ];
+
+				if( hi - lo <= LEAF_SIZE )
+				{
+					for( int i = lo; i < hi; i++ )
+						test( i, x, y, z, r2, visitor );
+
+					continue;
+				}
+
+				final int mid = ( lo + hi ) >>> 1;
+				test( mid, x, y, z, r2, visitor );
+
+				final int d = splitDims[ mid ];
+				final double diff = ( d == 0 ? x : d == 1 ? y : z ) - xyz[ 3 * mid + d ];
+
+				// push the far side first, so the near side is visited first
+				if( diff * diff <= r2 )
+				{
+					if( diff < 0 )
+					{
+						stack[ sp++ ] = mid + 1;
+						stack[ sp++ ] = hi;
+					}
+					else
+					{
+						stack[ sp++ ] = lo;
+						stack[ sp++ ] = mid;
+					}
+				}
+
+				if( diff < 0 )
+				{
+					stack[ sp++ ] = lo;
+					stack[ sp++ ] = mid;
+				}
+				else
+				{
+					stack[ sp++ ] = mid + 1;
+					stack[ sp++ ] = hi;
+				}
+			}
+		}
+
+		private void test( final int i, final double x, final double y, final double z, final double r2, final NeighborVisitor visitor )
+		{
+			final int o = 3 * i;
+			final double dx = xyz[ o ] - x;
+			final double dy = xyz[ o + 1 ] - y;
+			final double dz = xyz[ o + 2 ] - z;
+			final double d2 = dx * dx + dy * dy + dz * dz;
+			if( d2 > r2 )
+				return;
+
+			if( visitor != null )
+				visitor.accept( values[ i ], d2 );
+			else
+			{
+				if( numNeighbors == neighbors.length )
+				{
+					neighbors = Arrays.copyOf( neighbors, 2 * numNeighbors );
+					sqrDists = Arrays.copyOf( sqrDists, 2 * numNeighbors );
+				}
+				neighbors[ numNeighbors ] = i;
+				sqrDists[ numNeighbors++ ] = d2;
+			}
+		}
+
+		@Override
+		public int numNeighbors()
+		{
+			return numNeighbors;
+		}
+
+		/**
+		 * @return the tree node of the i-th neighbor
+		 */
+		public int getNeighbor( final int i )
+		{
+			return neighbors[ i ];
+		}
+
+		@Override
+		public double getSquareDistance( final int i )
+		{
+			return sqrDists[ i ];
+		}
+
+		@Override
+		public double getValue( final int i )
+		{
+			return values[ neighbors[ i ] ];
+		}
+	}
+
+	/**
+	 * Puts the median of the widest dimension of a range at its middle and
+	 * builds both halves.
+	 */
+	@SuppressWarnings( "serial" )
+	private static class Build extends RecursiveAction
+	{
+		private final double[] xyz;
+
+		private final int[] ids;
+
+		private final byte[] splitDims;
+
+		private final int lo;
+
+		private final int hi;
+
+		public Build( final double[] xyz, final int[] ids, final byte[] splitDims, final int lo, final int hi )
+		{
+			this.xyz = xyz;
+			this.ids = ids;
+			this.splitDims = splitDims;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( hi - lo <= LEAF_SIZE )
+				return;
+
+			final int mid = ( lo + hi ) >>> 1;
+			final int d = widestDimension( xyz, ids, lo, hi );
+			select( xyz, ids, d, lo, hi, mid );
+			splitDims[ mid ] = (byte)d;
+
+			final Build left = new Build( xyz, ids, splitDims, lo, mid );
+			final Build right = new Build( xyz, ids, splitDims, mid + 1, hi );
+			if( hi - lo > PARALLEL_SIZE )
+				invokeAll( left, right );
+			else
+			{
+				left.compute();
+				right.compute();
+			}
+		}
+	}
+
+	private static int widestDimension( final double[] xyz, final int[] ids, final int lo, final int hi )
+	{
+		final double[] min = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		final double[] max = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for( int i = lo; i < hi; i++ )
+		{
+			final int o = 3 * ids[ i ];
+			for( int d = 0; d < 3; d++ )
+			{
+				final double x = xyz[ o + d ];
+				if( x < min[ d ] )
+					min[ d ] = x;
+				if( x > max[ d ] )
+					max[ d ] = x;
+			}
+		}
+
+		int widest = 0;
+		for( int d = 1; d < 3; d++ )
+			if( max[ d ] - min[ d ] > max[ widest ] - min[ widest ] )
+				widest = d;
+
+		return widest;
+	}
+
+	/**
+	 * Reorders ids[lo, hi) such that ids[k] is the point with the k-th
+	 * smallest coordinate in dimension d, all points before it are not
+	 * larger and all points after it not smaller.
+	 */
+	private static void select( final double[] xyz, final int[] ids, final int d, int lo, int hi, final int k )
+	{
+		hi--;
+		while( hi > lo )
+		{
+			final double pivot = median(
+					xyz[ 3 * ids[ lo ] + d ],
+					xyz[ 3 * ids[ ( lo + hi ) >>> 1 ] + d ],
+					xyz[ 3 * ids[ hi ] + d ] );
+
+			int i = lo;
+			int j = hi;
+			while( i <= j )
+			{
+				while( xyz[ 3 * ids[ i ] + d ] < pivot )
+					i++;
+				while( xyz[ 3 * ids[ j ] + d ] > pivot )
+					j--;
+
+				if( i <= j )
+				{
+					final int t = ids[ i ];
+					ids[ i++ ] = ids[ j ];
+					ids[ j-- ] = t;
+				}
+			}
+
+			if( k <= j )
+				hi = j;
+			else if( k >= i )
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private static double median( final double a, final double b, final double c )
+	{
+		return Math.max( Math.min( a, b ), Math.min( Math.max( a, b ), c ) );
+	}
+}
@@ -0,0 +1,327 @@
+package org.janelia.render.index;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A uniform grid of buckets over a 3d point cloud, for fixed radius
+ * searches with kernels of compact support.
+ * <p>
+ * With the cell size equal to the search radius, a search visits at most
+ * three cells per axis. Points are counting-sorted by cell into packed
+ * coordinate and value arrays, cells are laid out x fastest, so the points
+ * of a row of neighboring cells are one contiguous range of the arrays,
+ * given by offsets[ first cell ] and offsets[ last cell + 1 ].
+ * <p>
+ * Searches with a radius larger than the cell size visit more cells and
+ * stay exact. If the bounding box of the points has more than
+ * max( 8 * size, 2^22 ) cells of the requested size, the cells are enlarged
+ * to keep the offsets small.
+ */
+public class GridIndex implements PointIndex
+{
+	private static final long MIN_MAX_CELLS = 1 << 22;
+
+	private final int size;
+
+	private final double cellSize;
+
+	private final double[] min = new double[ 3 ];
+
+	private final int[] dims = new int[ 3 ];
+
+	// points of cell c are [ offsets[ c ], offsets[ c + 1 ] )
+	private final int[] offsets;
+
+	private final double[] xyz;
+
+	private final double[] values;
+
+	// index of every packed point in the input
+	private final int[] ids;
+
+	/**
+	 * Builds the grid, the arrays are not modified.
+	 *
+	 * @param xyz interleaved coordinates of the points
+	 * @param values one value per point
+	 * @param cellSize the edge length of a cell, usually the search radius
+	 */
+	public GridIndex( final double[] xyz, final double[] values, final double cellSize )
+	{
+		if( !( cellSize > 0 ) )
+			throw new IllegalArgumentException( "cell size must be positive, but is " + cellSize );
+
+		size = values.length;
+		if( xyz.length < 3 * size )
+			throw new IllegalArgumentException( "need three coordinates per value" );
+
+		final double[] max = new double[ 3 ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		for( int i = 0; i < size; i++ )
+			for( int d = 0; d < 3; d++ )
+			{
+				final double x = xyz[ 3 * i + d ];
+				if( x < min[ d ] )
+					min[ d ] = x;
+				if( x > max[ d ] )
+					max[ d ] = x;
+			}
+
+		if( size == 0 )
+		{
+			Arrays.fill( min, 0 );
+			Arrays.fill( max, 0 );
+		}
+
+		final long maxCells = Math.min( Math.max( 8L * size, MIN_MAX_CELLS ), Integer.MAX_VALUE - 1 );
+		double cs = cellSize;
+		while( numCells( min, max, cs ) > maxCells )
+			cs *= 2;
+
+		this.cellSize = cs;
+		for( int d = 0; d < 3; d++ )
+			dims[ d ] = (int)( ( max[ d ] - min[ d ] ) / cs ) + 1;
+
+		final int numCells = dims[ 0 ] * dims[ 1 ] * dims[ 2 ];
+
+		// counting sort by cell
+		final int[] cells = new int[ size ];
+		offsets = new int[ numCells + 1 ];
+		for( int i = 0; i < size; i++ )
+		{
+			cells[ i ] = cell( xyz[ 3 * i ], xyz[ 3 * i + 1 ], xyz[ 3 * i + 2 ] );
+			offsets[ cells[ i ] + 1 ]++;
+		}
+
+		for( int c = 0; c < numCells; c++ )
+			offsets[ c + 1 ] += offsets[ c ];
+
+		this.xyz = new double[ 3 * size ];
+		this.values = new double[ size ];
+		ids = new int[ size ];
+		final int[] next = Arrays.copyOf( offsets, numCells );
+		for( int i = 0; i < size; i++ )
+		{
+			final int j = next[ cells[ i ] ]++;
+			System.arraycopy( xyz, 3 * i, this.xyz, 3 * j, 3 );
+			this.values[ j ] = values[ i ];
+			ids[ j ] = i;
+		}
+	}
+
+	/**
+	 * Builds a grid from the lists a {@link net.imglib2.KDTree} would be
+	 * built from.
+	 *
+	 * @param values the values
+	 * @param points the positions
+	 * @param cellSize the edge length of a cell, usually the search radius
+	 * @return the grid
+	 */
+	public static GridIndex build( final List< ? extends RealType< ? > > values, final List< ? extends RealLocalizable > points, final double cellSize )
+	{
+		final int n = values.size();
+		final double[] xyz = new double[ 3 * n ];
+		final double[] v = new double[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			final RealLocalizable p = points.get( i );
+			xyz[ 3 * i ] = p.getDoublePosition( 0 );
+			xyz[ 3 * i + 1 ] = p.getDoublePosition( 1 );
+			xyz[ 3 * i + 2 ] = p.getDoublePosition( 2 );
+			v[ i ] = values.get( i ).getRealDouble();
+		}
+		return new GridIndex( xyz, v, cellSize );
+	}
+
+	private static long numCells( final double[] min, final double[] max, final double cellSize )
+	{
+		long n = 1;
+		for( int d = 0; d < 3; d++ )
+			n *= (long)( ( max[ d ] - min[ d ] ) / cellSize ) + 1;
+
+		return n;
+	}
+
+	private int cell( final double x, final double y, final double z )
+	{
+		final int cx = (int)( ( x - min[ 0 ] ) / cellSize );
+		final int cy = (int)( ( y - min[ 1 ] ) / cellSize );
+		final int cz = (int)( ( z - min[ 2 ] ) / cellSize );
+		return ( cz * dims[ 1 ] + cy ) * dims[ 0 ] + cx;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the cell size, larger than requested if the grid had too
+	 * many cells
+	 */
+	public double getCellSize()
+	{
+		return cellSize;
+	}
+
+	/**
+	 * @param i the point in packed order
+	 */
+	public double getDoublePosition( final int i, final int d )
+	{
+		return xyz[ 3 * i + d ];
+	}
+
+	/**
+	 * @param i the point in packed order
+	 */
+	public double getValue( final int i )
+	{
+		return values[ i ];
+	}
+
+	/**
+	 * @param i the point in packed order
+	 * @return the index of the point in the input
+	 */
+	public int getId( final int i )
+	{
+		return ids[ i ];
+	}
+
+	@Override
+	public Search radiusSearch()
+	{
+		return new Search();
+	}
+
+	/**
+	 * A radius search on this grid, the neighbors are packed points.
+	 */
+	public class Search implements RadiusSearch
+	{
+		private int[] neighbors = new int[ 64 ];
+
+		private double[] sqrDists = new double[ 64 ];
+
+		private int numNeighbors = 0;
+
+		@Override
+		public void search( final RealLocalizable reference, final double radius )
+		{
+			search( reference.getDoublePosition( 0 ), reference.getDoublePosition( 1 ), reference.getDoublePosition( 2 ), radius );
+		}
+
+		public void search( final double x, final double y, final double z, final double radius )
+		{
+			walk( x, y, z, radius, null );
+		}
+
+		@Override
+		public void visit( final RealLocalizable reference, final double radius, final NeighborVisitor visitor )
+		{
+			walk( reference.getDoublePosition( 0 ), reference.getDoublePosition( 1 ), reference.getDoublePosition( 2 ), radius, visitor );
+		}
+
+		/**
+		 * Scans the cells and collects the neighbors, or passes them to the
+		 * visitor if there is one.
+		 */
+		private void walk( final double x, final double y, final double z, final double radius, final NeighborVisitor visitor )
+		{
+			numNeighbors = 0;
+			if( size == 0 )
+				return;
+
+			final double r2 = radius * radius;
+
+			final int x0 = firstCell( x - radius, 0 );
+			final int x1 = lastCell( x + radius, 0 );
+			final int y0 = firstCell( y - radius, 1 );
+			final int y1 = lastCell( y + radius, 1 );
+			final int z0 = firstCell( z - radius, 2 );
+			final int z1 = lastCell( z + radius, 2 );
+			if( x0 > x1 || y0 > y1 || z0 > z1 )
+				return;
+
+			for( int cz = z0; cz <= z1; cz++ )
+				for( int cy = y0; cy <= y1; cy++ )
+				{
+					// a row of cells is one range of points
+					final int row = ( cz * dims[ 1 ] + cy ) * dims[ 0 ];
+					final int end = offsets[ row + x1 + 1 ];
+					for( int i = offsets[ row + x0 ]; i < end; i++ )
+					{
+						final int o = 3 * i;
+						final double dx = xyz[ o ] - x;
+						final double dy = xyz[ o + 1 ] - y;
+						final double dz = xyz[ o + 2 ] - z;
+						final double d2 = dx * dx + dy * dy + dz * dz;
+						if( d2 > r2 )
+							continue;
+
+						if( visitor != null )
+							visitor.accept( values[ i ], d2 );
+						else
+						{
+							if( numNeighbors == neighbors.length )
+							{
+								neighbors = Arrays.copyOf( neighbors, 2 * numNeighbors );
+								sqrDists = Arrays.copyOf( sqrDists, 2 * numNeighbors );
+							}
+							neighbors[ numNeighbors ] = i;
+							sqrDists[ numNeighbors++ ] = d2;
+						}
+					}
+				}
+		}
+
+		private int firstCell( final double x, final int d )
+		{
+			return (int)Math.max( 0, Math.floor( ( x - min[ d ] ) / cellSize ) );
+		}
+
+		private int lastCell( final double x, final int d )
+		{
+			return (int)Math.min( dims[ d ] - 1, Math.floor( ( x - min[ d ] ) / cellSize ) );
+		}
+
+		@Override
+		public int numNeighbors()
+		{
+			return numNeighbors;
+		}
+
+		/**
+		 * @return the packed index of the i-th neighbor
+		 */
+		public int getNeighbor( final int i )
+		{
+			return neighbors[ i ];
+		}
+
+		@Override
+		public double getSquareDistance( final int i )
+		{
+			return sqrDists[ i ];
+		}
+
+		@Override
+		public double getValue( final int i )
+		{
+			return values[ neighbors[ i ] ];
+		}
+	}
+}
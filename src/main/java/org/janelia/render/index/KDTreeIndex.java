@@ -0,0 +1,62 @@
+package org.janelia.render.index;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealLocalizable;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * An imglib2 {@link KDTree} as a {@link PointIndex}.
+ */
+public class KDTreeIndex< T extends RealType< T > > implements PointIndex
+{
+	private final KDTree< T > tree;
+
+	public KDTreeIndex( final KDTree< T > tree )
+	{
+		this.tree = tree;
+	}
+
+	public KDTree< T > getTree()
+	{
+		return tree;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return tree.numDimensions();
+	}
+
+	@Override
+	public RadiusSearch radiusSearch()
+	{
+		final RadiusNeighborSearchOnKDTree< T > search = new RadiusNeighborSearchOnKDTree<>( tree );
+		return new RadiusSearch()
+		{
+			@Override
+			public void search( final RealLocalizable reference, final double radius )
+			{
+				search.search( reference, radius, false );
+			}
+
+			@Override
+			public int numNeighbors()
+			{
+				return search.numNeighbors();
+			}
+
+			@Override
+			public double getSquareDistance( final int i )
+			{
+				return search.getSquareDistance( i );
+			}
+
+			@Override
+			public double getValue( final int i )
+			{
+				return search.getSampler( i ).get().getRealDouble();
+			}
+		};
+	}
+}
@@ -0,0 +1,277 @@
+package org.janelia.render.index;
+
+import java.util.Arrays;
+
+import org.janelia.render.data.MappedPointStore;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * The {@link FlatKDTree} of a {@link MappedPointStore}, searched in the
+ * mapped file.
+ * <p>
+ * A store keeps its records in tree order together with the split
+ * dimension of every node, so this tree is not built but only wraps the
+ * store. Searches read the mapped buffers directly with long indices, the
+ * tree costs no heap per point and works for clouds of more than 2^31
+ * points.
+ */
+public class MappedKDTree implements PointIndex
+{
+	private final MappedPointStore store;
+
+	private final long size;
+
+	private final boolean binary;
+
+	private final double threshold;
+
+	/**
+	 * A tree with the values of the store.
+	 */
+	public MappedKDTree( final MappedPointStore store )
+	{
+		this( store, false, 0 );
+	}
+
+	/**
+	 * A tree where every value above the threshold is one and everything
+	 * else zero, as SynCollection.getValues( thresh ).
+	 */
+	public MappedKDTree( final MappedPointStore store, final double threshold )
+	{
+		this( store, true, threshold );
+	}
+
+	private MappedKDTree( final MappedPointStore store, final boolean binary, final double threshold )
+	{
+		this.store = store;
+		this.size = store.size();
+		this.binary = binary;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	public long size()
+	{
+		return size;
+	}
+
+	public MappedPointStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * @param i the node in tree order
+	 */
+	public double getDoublePosition( final long i, final int d )
+	{
+		return store.getDoublePosition( i, d );
+	}
+
+	/**
+	 * @param i the node in tree order
+	 */
+	public double getValue( final long i )
+	{
+		final double v = store.getValue( i );
+		if( binary )
+			return v > threshold ? 1 : 0;
+
+		return v;
+	}
+
+	/**
+	 * Copies the tree to the heap for the renderers that work on arrays.
+	 * The points are already in tree order, so the tree is not rebuilt.
+	 *
+	 * @return the tree on the heap
+	 */
+	public FlatKDTree toFlatKDTree()
+	{
+		if( size > Integer.MAX_VALUE / 3 )
+			throw new UnsupportedOperationException( size + " points do not fit in arrays" );
+
+		final int n = (int)size;
+		final double[] xyz = new double[ 3 * n ];
+		final double[] values = new double[ n ];
+		final byte[] splitDims = new byte[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			for( int d = 0; d < 3; d++ )
+				xyz[ 3 * i + d ] = getDoublePosition( i, d );
+
+			values[ i ] = getValue( i );
+		}
+		fillSplitDims( splitDims, 0, n );
+
+		return new FlatKDTree( xyz, values, splitDims );
+	}
+
+	private void fillSplitDims( final byte[] splitDims, final int lo, final int hi )
+	{
+		if( hi - lo <= MappedPointStore.LEAF_SIZE )
+			return;
+
+		final int mid = ( lo + hi ) >>> 1;
+		splitDims[ mid ] = (byte)store.getSplitDimension( mid );
+		fillSplitDims( splitDims, lo, mid );
+		fillSplitDims( splitDims, mid + 1, hi );
+	}
+
+	@Override
+	public Search radiusSearch()
+	{
+		return new Search();
+	}
+
+	/**
+	 * A radius search on this tree, the neighbors are tree nodes.
+	 */
+	public class Search implements RadiusSearch
+	{
+		// two longs per pending subtree, a balanced tree is at most 64 levels deep
+		private final long[] stack = new long[ 2 * 2 * 65 ];
+
+		private long[] neighbors = new long[ 64 ];
+
+		private double[] sqrDists = new double[ 64 ];
+
+		private double[] values = new double[ 64 ];
+
+		private int numNeighbors = 0;
+
+		@Override
+		public void search( final RealLocalizable reference, final double radius )
+		{
+			search( reference.getDoublePosition( 0 ), reference.getDoublePosition( 1 ), reference.getDoublePosition( 2 ), radius );
+		}
+
+		public void search( final double x, final double y, final double z, final double radius )
+		{
+			walk( x, y, z, radius, null );
+		}
+
+		@Override
+		public void visit( final RealLocalizable reference, final double radius, final NeighborVisitor visitor )
+		{
+			walk( reference.getDoublePosition( 0 ), reference.getDoublePosition( 1 ), reference.getDoublePosition( 2 ), radius, visitor );
+		}
+
+		/**
+		 * Walks the tree and collects the neighbors, or passes them to the
+		 * visitor if there is one.
+		 */
+		private void walk( final double x, final double y, final double z, final double radius, final NeighborVisitor visitor )
+		{
+			numNeighbors = 0;
+			final double r2 = radius * radius;
+
+			int sp = 0;
+			stack[ sp++ ] = 0;
+			stack[ sp++ ] = size;
+			while( sp > 0 )
+			{
+				final long hi = stack[ --sp ];
+				final long lo = stack[ --sp ];
+
+				if( hi - lo <= MappedPointStore.LEAF_SIZE )
+				{
+					for( long i = lo; i < hi; i++ )
+						test( i, x, y, z, r2, visitor );
+
+					continue;
+				}
+
+				final long mid = ( lo + hi ) >>> 1;
+				test( mid, x, y, z, r2, visitor );
+
+				final int d = store.getSplitDimension( mid );
+				final double diff = ( d == 0 ? x : d == 1 ? y : z ) - store.getDoublePosition( mid, d );
+
+				// push the far side first, so the near side is visited first
+				if( diff * diff <= r2 )
+				{
+					if( diff < 0 )
+					{
+						stack[ sp++ ] = mid + 1;
+						stack[ sp++ ] = hi;
+					}
+					else
+					{
+						stack[ sp++ ] = lo;
+						stack[ sp++ ] = mid;
+					}
+				}
+
+				if( diff < 0 )
+				{
+					stack[ sp++ ] = lo;
+					stack[ sp++ ] = mid;
+				}
+				else
+				{
+					stack[ sp++ ] = mid + 1;
+					stack[ sp++ ] = hi;
+				}
+			}
+		}
+
+		private void test( final long i, final double x, final double y, final double z, final double r2, final NeighborVisitor visitor )
+		{
+			final double dx = store.getDoublePosition( i, 0 ) - x;
+			final double dy = store.getDoublePosition( i, 1 ) - y;
+			final double dz = store.getDoublePosition( i, 2 ) - z;
+			final double d2 = dx * dx + dy * dy + dz * dz;
+			if( d2 > r2 )
+				return;
+
+			if( visitor != null )
+				visitor.accept( MappedKDTree.this.getValue( i ), d2 );
+			else
+			{
+				if( numNeighbors == neighbors.length )
+				{
+					neighbors = Arrays.copyOf( neighbors, 2 * numNeighbors );
+					sqrDists = Arrays.copyOf( sqrDists, 2 * numNeighbors );
+					values = Arrays.copyOf( values, 2 * numNeighbors );
+				}
+				neighbors[ numNeighbors ] = i;
+				values[ numNeighbors ] = MappedKDTree.this.getValue( i );
+				sqrDists[ numNeighbors++ ] = d2;
+			}
+		}
+
+		@Override
+		public int numNeighbors()
+		{
+			return numNeighbors;
+		}
+
+		/**
+		 * @return the tree node of the i-th neighbor
+		 */
+		public long getNeighbor( final int i )
+		{
+			return neighbors[ i ];
+		}
+
+		@Override
+		public double getSquareDistance( final int i )
+		{
+			return sqrDists[ i ];
+		}
+
+		@Override
+		public double getValue( final int i )
+		{
+			return values[ i ];
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package org.janelia.render.index;
+
+/**
+ * Receives the neighbors of a radius query while the index is walked, see
+ * {@link RadiusSearch#visit}.
+ */
+@FunctionalInterface
+public interface NeighborVisitor
+{
+	public void accept( double value, double squareDistance );
+}
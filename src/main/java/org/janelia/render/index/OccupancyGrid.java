@@ -0,0 +1,238 @@
+package org.janelia.render.index;
+
+import java.util.Arrays;
+
+/**
+ * A coarse bitmap of the cells of a 3d grid that have a point within a
+ * radius, for skipping empty space before any radius search.
+ * <p>
+ * A cell is set if its box is within the radius of some point, so a
+ * position in a cell that is not set has no neighbors within the radius
+ * and a density of zero. Positions outside the grid are empty, the grid
+ * covers the bounding box of the points grown by the radius.
+ * <p>
+ * If the grid had more than 2^27 cells of the requested size, 16 MB of
+ * bits, the cells are enlarged.
+ */
+public class OccupancyGrid
+{
+	private static final long MAX_CELLS = 1L << 27;
+
+	private final double radius;
+
+	private final double cellSize;
+
+	private final double[] min = new double[ 3 ];
+
+	private final int[] dims = new int[ 3 ];
+
+	private final long[] bits;
+
+	// coordinate d of point i
+	@FunctionalInterface
+	private static interface Coordinates
+	{
+		public double get( long i, int d );
+	}
+
+	/**
+	 * @param xyz interleaved coordinates of the points
+	 * @param radius the search radius
+	 * @param cellSize the edge length of a cell
+	 */
+	public OccupancyGrid( final double[] xyz, final double radius, final double cellSize )
+	{
+		this( xyz.length / 3, ( i, d ) -> xyz[ 3 * (int)i + d ], radius, cellSize );
+	}
+
+	/**
+	 * A grid of the points of a mapped tree, read from the mapped file.
+	 *
+	 * @param tree the points
+	 * @param radius the search radius
+	 * @param cellSize the edge length of a cell
+	 */
+	public OccupancyGrid( final MappedKDTree tree, final double radius, final double cellSize )
+	{
+		this( tree.size(), tree::getDoublePosition, radius, cellSize );
+	}
+
+	private OccupancyGrid( final long n, final Coordinates xyz, final double radius, final double cellSize )
+	{
+		if( !( cellSize > 0 ) )
+			throw new IllegalArgumentException( "cell size must be positive, but is " + cellSize );
+
+		this.radius = radius;
+
+		final double[] max = new double[ 3 ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		for( long i = 0; i < n; i++ )
+			for( int d = 0; d < 3; d++ )
+			{
+				final double x = xyz.get( i, d );
+				if( x < min[ d ] )
+					min[ d ] = x;
+				if( x > max[ d ] )
+					max[ d ] = x;
+			}
+
+		if( n == 0 )
+		{
+			Arrays.fill( min, 0 );
+			Arrays.fill( max, 0 );
+		}
+
+		for( int d = 0; d < 3; d++ )
+		{
+			min[ d ] -= radius;
+			max[ d ] += radius;
+		}
+
+		double cs = cellSize;
+		while( numCells( min, max, cs ) > MAX_CELLS )
+			cs *= 2;
+
+		this.cellSize = cs;
+		for( int d = 0; d < 3; d++ )
+			dims[ d ] = (int)( ( max[ d ] - min[ d ] ) / cs ) + 1;
+
+		bits = new long[ ( dims[ 0 ] * dims[ 1 ] * dims[ 2 ] + 63 ) >>> 6 ];
+		if( n == 0 )
+			return;
+
+		final double r2 = radius * radius;
+		for( long i = 0; i < n; i++ )
+		{
+			final double x = xyz.get( i, 0 );
+			final double y = xyz.get( i, 1 );
+			final double z = xyz.get( i, 2 );
+			if( Double.isNaN( x ) || Double.isNaN( y ) || Double.isNaN( z ) )
+				continue;
+
+			// the cells whose box is within the radius of the point
+			final int x0 = cell( x - radius, 0 );
+			final int x1 = cell( x + radius, 0 );
+			final int y0 = cell( y - radius, 1 );
+			final int y1 = cell( y + radius, 1 );
+			final int z0 = cell( z - radius, 2 );
+			final int z1 = cell( z + radius, 2 );
+			for( int cz = z0; cz <= z1; cz++ )
+			{
+				final double dz = distance( z, cz, 2 );
+				for( int cy = y0; cy <= y1; cy++ )
+				{
+					final double dy = distance( y, cy, 1 );
+					for( int cx = x0; cx <= x1; cx++ )
+					{
+						final double dx = distance( x, cx, 0 );
+						if( dx * dx + dy * dy + dz * dz <= r2 )
+						{
+							final int c = ( cz * dims[ 1 ] + cy ) * dims[ 0 ] + cx;
+							bits[ c >>> 6 ] |= 1L << c;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A grid with cells of the search radius.
+	 */
+	public OccupancyGrid( final double[] xyz, final double radius )
+	{
+		this( xyz, radius, radius );
+	}
+
+	/**
+	 * A grid of the points of a mapped tree with cells of the search radius.
+	 */
+	public OccupancyGrid( final MappedKDTree tree, final double radius )
+	{
+		this( tree, radius, radius );
+	}
+
+	private static long numCells( final double[] min, final double[] max, final double cellSize )
+	{
+		long n = 1;
+		for( int d = 0; d < 3; d++ )
+			n *= (long)( ( max[ d ] - min[ d ] ) / cellSize ) + 1;
+
+		return n;
+	}
+
+	// the cell of a coordinate, clamped to the grid
+	private int cell( final double x, final int d )
+	{
+		return (int)Math.max( 0, Math.min( dims[ d ] - 1, Math.floor( ( x - min[ d ] ) / cellSize ) ) );
+	}
+
+	// the distance of a coordinate to a cell along one axis
+	private double distance( final double x, final int c, final int d )
+	{
+		final double lo = min[ d ] + c * cellSize;
+		if( x < lo )
+			return lo - x;
+
+		final double hi = lo + cellSize;
+		return x > hi ? x - hi : 0;
+	}
+
+	/**
+	 * @return the radius the cells were set for, positions in empty cells
+	 * have no neighbors within it
+	 */
+	public double getRadius()
+	{
+		return radius;
+	}
+
+	public double getCellSize()
+	{
+		return cellSize;
+	}
+
+	/**
+	 * @return true if no point is within the radius of the position
+	 */
+	public boolean isEmpty( final double x, final double y, final double z )
+	{
+		return isEmpty( x, y, z, x, y, z );
+	}
+
+	/**
+	 * @return true if no point is within the radius of any position in the
+	 * box
+	 */
+	public boolean isEmpty(
+			final double minX, final double minY, final double minZ,
+			final double maxX, final double maxY, final double maxZ )
+	{
+		if( !( maxX >= min[ 0 ] && maxY >= min[ 1 ] && maxZ >= min[ 2 ] ) )
+			return true;
+
+		final double endX = min[ 0 ] + dims[ 0 ] * cellSize;
+		final double endY = min[ 1 ] + dims[ 1 ] * cellSize;
+		final double endZ = min[ 2 ] + dims[ 2 ] * cellSize;
+		if( !( minX < endX && minY < endY && minZ < endZ ) )
+			return true;
+
+		final int x0 = cell( minX, 0 );
+		final int x1 = cell( maxX, 0 );
+		final int y0 = cell( minY, 1 );
+		final int y1 = cell( maxY, 1 );
+		final int z0 = cell( minZ, 2 );
+		final int z1 = cell( maxZ, 2 );
+		for( int cz = z0; cz <= z1; cz++ )
+			for( int cy = y0; cy <= y1; cy++ )
+			{
+				final int row = ( cz * dims[ 1 ] + cy ) * dims[ 0 ];
+				for( int c = row + x0; c <= row + x1; c++ )
+					if( ( bits[ c >>> 6 ] & ( 1L << c ) ) != 0 )
+						return false;
+			}
+
+		return true;
+	}
+}
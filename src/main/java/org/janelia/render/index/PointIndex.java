@@ -0,0 +1,16 @@
+package org.janelia.render.index;
+
+import net.imglib2.EuclideanSpace;
+
+/**
+ * A spatial index of points with one value each that answers radius
+ * queries, e.g. for {@link net.imglib2.interpolation.neighborsearch.RBFInterpolator}.
+ */
+public interface PointIndex extends EuclideanSpace
+{
+	/**
+	 * @return a new search on this index, a search is not thread safe, so
+	 * every thread needs its own
+	 */
+	public RadiusSearch radiusSearch();
+}
@@ -0,0 +1,38 @@
+package org.janelia.render.index;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * Finds all points of a {@link PointIndex} within a radius of a position.
+ * The results are valid until the next search.
+ */
+public interface RadiusSearch
+{
+	/**
+	 * Finds all points whose distance to the reference is at most radius,
+	 * in no particular order.
+	 */
+	public void search( RealLocalizable reference, double radius );
+
+	/**
+	 * Passes all points whose distance to the reference is at most radius
+	 * to the visitor, in no particular order. Indices override this to call
+	 * the visitor during the walk, without storing the neighbors. The
+	 * neighbors of the last {@link #search} are undefined afterwards.
+	 */
+	public default void visit( final RealLocalizable reference, final double radius, final NeighborVisitor visitor )
+	{
+		search( reference, radius );
+		for( int i = 0; i < numNeighbors(); i++ )
+			visitor.accept( getValue( i ), getSquareDistance( i ) );
+	}
+
+	public int numNeighbors();
+
+	public double getSquareDistance( int i );
+
+	/**
+	 * @return the value of the i-th neighbor
+	 */
+	public double getValue( int i );
+}
@@ -0,0 +1,120 @@
+package org.janelia.render.kernel;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A radial basis function of compact support, from squared distance to
+ * weight, tabulated over [0, radius^2] and zero beyond.
+ * <p>
+ * Weights are interpolated linearly between the table entries, so the
+ * kernel costs a multiplication and two array reads, without a call
+ * through a lambda. The class is final, so the JIT inlines it where
+ * {@link net.imglib2.interpolation.neighborsearch.RBFInterpolator} sees
+ * one. Kernels that are linear in the squared distance, like
+ * {@link #linear}, are tabulated exactly.
+ */
+public final class RadialKernel implements DoubleUnaryOperator
+{
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+
+	private final double radius;
+
+	private final double radiusSqr;
+
+	// table entries per squared distance
+	private final double scale;
+
+	// one entry more than the table size, so i + 1 is always valid
+	private final double[] table;
+
+	/**
+	 * Tabulates a function of the squared distance.
+	 *
+	 * @param rbf from squared distance to weight
+	 * @param radius the support, the weight is zero beyond it
+	 * @param tableSize the number of intervals of the table
+	 */
+	public RadialKernel( final DoubleUnaryOperator rbf, final double radius, final int tableSize )
+	{
+		if( !( radius > 0 ) )
+			throw new IllegalArgumentException( "radius must be positive, but is " + radius );
+
+		this.radius = radius;
+		radiusSqr = radius * radius;
+		scale = tableSize / radiusSqr;
+		table = new double[ tableSize + 2 ];
+		for( int i = 0; i <= tableSize; i++ )
+			table[ i ] = rbf.applyAsDouble( i / scale );
+
+		table[ tableSize + 1 ] = table[ tableSize ];
+	}
+
+	public RadialKernel( final DoubleUnaryOperator rbf, final double radius )
+	{
+		this( rbf, radius, DEFAULT_TABLE_SIZE );
+	}
+
+	/**
+	 * The kernel of the renderers' rbf methods, peak * ( 1 - d^2 / radius^2 ).
+	 */
+	public static RadialKernel linear( final double peak, final double radius )
+	{
+		final double invRadiusSqr = 1.0 / ( radius * radius );
+		return new RadialKernel( rsqr -> peak * ( 1 - rsqr * invRadiusSqr ), radius, 1 );
+	}
+
+	/**
+	 * A Gaussian cut off at radius.
+	 */
+	public static RadialKernel gaussian( final double peak, final double sigma, final double radius )
+	{
+		final double invTwoSigmaSqr = 1.0 / ( 2 * sigma * sigma );
+		return new RadialKernel( rsqr -> peak * Math.exp( -rsqr * invTwoSigmaSqr ), radius );
+	}
+
+	/**
+	 * The Wendland C2 kernel, peak * ( 1 - r )^4 * ( 4r + 1 ) of r = d / radius,
+	 * smooth at the radius.
+	 */
+	public static RadialKernel wendland( final double peak, final double radius )
+	{
+		return new RadialKernel( rsqr -> {
+			final double r = Math.min( Math.sqrt( rsqr ) / radius, 1 );
+			final double s = 1 - r;
+			return peak * s * s * s * s * ( 4 * r + 1 );
+		}, radius );
+	}
+
+	public double getRadius()
+	{
+		return radius;
+	}
+
+	/**
+	 * Stretches the kernel to a larger radius and scales it down by the
+	 * cube of the stretch, so its integral over 3d space stays the same,
+	 * e.g. for points aggregated into coarser voxels.
+	 *
+	 * @param newRadius the radius of the wider kernel
+	 * @return the wider kernel
+	 */
+	public RadialKernel widen( final double newRadius )
+	{
+		final double s = radius / newRadius;
+		final double sSqr = s * s;
+		final double amplitude = s * s * s;
+		return new RadialKernel( rsqr -> amplitude * applyAsDouble( rsqr * sSqr ), newRadius, table.length - 2 );
+	}
+
+	@Override
+	public double applyAsDouble( final double rsqr )
+	{
+		if( !( rsqr <= radiusSqr ) )
+			return 0;
+
+		final double x = rsqr * scale;
+		final int i = (int)x;
+		final double w = table[ i ];
+		return w + ( x - i ) * ( table[ i + 1 ] - w );
+	}
+}
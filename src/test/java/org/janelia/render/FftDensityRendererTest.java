@@ -0,0 +1,156 @@
+package org.janelia.render;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.janelia.render.kernel.RadialKernel;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class FftDensityRendererTest
+{
+	private static final double[] VOXEL_SIZE = { 1, 1.5, 2 };
+
+	private static double bruteForce( final double[] xyz, final double[] values, final RadialKernel kernel, final double threshold,
+			final double x, final double y, final double z )
+	{
+		double sum = 0;
+		for( int i = 0; i < values.length; i++ )
+		{
+			if( values[ i ] < threshold )
+				continue;
+
+			final double dx = xyz[ 3 * i ] - x;
+			final double dy = xyz[ 3 * i + 1 ] - y;
+			final double dz = xyz[ 3 * i + 2 ] - z;
+			sum += values[ i ] * kernel.applyAsDouble( dx * dx + dy * dy + dz * dz );
+		}
+		return sum;
+	}
+
+	/**
+	 * Renders with a small FFT size, so the image is split into several
+	 * tiles, and compares every voxel to the brute force RBF sum.
+	 *
+	 * @return the largest difference to the brute force sums
+	 */
+	private static double maxError( final double[] xyz, final double[] values, final RadialKernel kernel,
+			final double threshold, final double[] voxelSize, final long... dimensions )
+	{
+		final RandomAccessibleInterval< DoubleType > img = ArrayImgs.doubles( dimensions );
+		new FftDensityRenderer( xyz, values, kernel, kernel.getRadius() ).threshold( threshold ).fftSize( 16 ).render( img, voxelSize );
+
+		double maxError = 0;
+		final RandomAccess< DoubleType > ra = img.randomAccess();
+		for( int z = 0; z < img.dimension( 2 ); z++ )
+			for( int y = 0; y < img.dimension( 1 ); y++ )
+				for( int x = 0; x < img.dimension( 0 ); x++ )
+				{
+					ra.setPosition( new long[] { x, y, z } );
+					final double expected = bruteForce( xyz, values, kernel, threshold, x * voxelSize[ 0 ], y * voxelSize[ 1 ], z * voxelSize[ 2 ] );
+					maxError = Math.max( maxError, Math.abs( expected - ra.get().getRealDouble() ) );
+				}
+
+		return maxError;
+	}
+
+	private static void assertRender( final double[] xyz, final double[] values, final RadialKernel kernel, final double threshold )
+	{
+		assertEquals( 0, maxError( xyz, values, kernel, threshold, VOXEL_SIZE, 40, 30, 20 ), 1e-9 );
+	}
+
+	/**
+	 * Points at voxel positions, also outside the image within the kernel
+	 * radius, every fifth point is a duplicate of the one before.
+	 */
+	private static double[] voxelPoints( final int n, final Random rnd )
+	{
+		final double[] xyz = new double[ 3 * n ];
+		for( int i = 0; i < n; i++ )
+		{
+			if( i % 5 == 4 )
+				System.arraycopy( xyz, 3 * ( i - 1 ), xyz, 3 * i, 3 );
+			else
+			{
+				xyz[ 3 * i ] = VOXEL_SIZE[ 0 ] * ( rnd.nextInt( 50 ) - 5 );
+				xyz[ 3 * i + 1 ] = VOXEL_SIZE[ 1 ] * ( rnd.nextInt( 40 ) - 5 );
+				xyz[ 3 * i + 2 ] = VOXEL_SIZE[ 2 ] * ( rnd.nextInt( 30 ) - 5 );
+			}
+		}
+		return xyz;
+	}
+
+	private static double[] randomValues( final int n, final Random rnd )
+	{
+		final double[] values = new double[ n ];
+		for( int i = 0; i < n; i++ )
+			values[ i ] = rnd.nextDouble();
+
+		return values;
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		assertRender( new double[ 0 ], new double[ 0 ], RadialKernel.linear( 1, 4 ), 0 );
+	}
+
+	@Test
+	public void testVoxelPoints()
+	{
+		// splatting is exact at voxel positions, so the result is the RBF sum
+		final Random rnd = new Random( 1 );
+		final RadialKernel kernel = RadialKernel.gaussian( 10, 2, 5 );
+		for( final int n : new int[] { 1, 10, 500 } )
+		{
+			final double[] xyz = voxelPoints( n, rnd );
+			final double[] values = randomValues( n, rnd );
+			assertRender( xyz, values, kernel, 0 );
+			assertRender( xyz, values, kernel, 0.5 );
+		}
+	}
+
+	@Test
+	public void testDuplicates()
+	{
+		final int n = 50;
+		final double[] xyz = new double[ 3 * n ];
+		final double[] values = new double[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			xyz[ 3 * i ] = 20;
+			xyz[ 3 * i + 1 ] = 15;
+			xyz[ 3 * i + 2 ] = 20;
+			values[ i ] = 1;
+		}
+		assertRender( xyz, values, RadialKernel.gaussian( 10, 2, 5 ), 0 );
+	}
+
+	@Test
+	public void testOffVoxelPoints()
+	{
+		// trilinear splatting is exact up to an error quadratic in the voxel size
+		final Random rnd = new Random( 2 );
+		final int n = 100;
+		final double[] xyz = new double[ 3 * n ];
+		for( int i = 0; i < n; i++ )
+		{
+			xyz[ 3 * i ] = 24 * rnd.nextDouble() - 2;
+			xyz[ 3 * i + 1 ] = 24 * rnd.nextDouble() - 2;
+			xyz[ 3 * i + 2 ] = 24 * rnd.nextDouble() - 2;
+		}
+		final double[] values = randomValues( n, rnd );
+		final RadialKernel kernel = RadialKernel.wendland( 10, 6 );
+
+		final double coarse = maxError( xyz, values, kernel, 0, new double[] { 1, 1, 1 }, 20, 20, 20 );
+		final double fine = maxError( xyz, values, kernel, 0, new double[] { 0.5, 0.5, 0.5 }, 40, 40, 40 );
+		assertTrue( coarse < 0.2 * 10 );
+		assertTrue( fine < coarse / 3 );
+	}
+}
@@ -0,0 +1,149 @@
+package org.janelia.render;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.janelia.render.index.FlatKDTree;
+import org.janelia.render.kernel.RadialKernel;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class RBFRowRendererTest
+{
+	private static final double RADIUS = 3;
+
+	private static final RadialKernel KERNEL = RadialKernel.gaussian( 10, 1.5, RADIUS );
+
+	/**
+	 * Points on a lattice of half the voxel spacing, so many of them lie on
+	 * voxel rows and exactly at the search radius of voxels, every fifth
+	 * point is a duplicate of the one before.
+	 */
+	private static double[] latticePoints( final int n, final Random rnd )
+	{
+		final double[] xyz = new double[ 3 * n ];
+		for( int i = 0; i < n; i++ )
+		{
+			if( i % 5 == 4 )
+				System.arraycopy( xyz, 3 * ( i - 1 ), xyz, 3 * i, 3 );
+			else
+			{
+				// also around the image, up to the radius outside
+				xyz[ 3 * i ] = 0.5 * ( rnd.nextInt( 70 ) - 6 );
+				xyz[ 3 * i + 1 ] = 0.5 * ( rnd.nextInt( 50 ) - 6 );
+				xyz[ 3 * i + 2 ] = 0.5 * ( rnd.nextInt( 30 ) - 6 );
+			}
+		}
+		return xyz;
+	}
+
+	private static double[] randomValues( final int n, final Random rnd )
+	{
+		final double[] values = new double[ n ];
+		for( int i = 0; i < n; i++ )
+			values[ i ] = rnd.nextDouble();
+
+		return values;
+	}
+
+	private static double bruteForce( final double[] xyz, final double[] values, final double threshold,
+			final double x, final double y, final double z )
+	{
+		double sum = 0;
+		for( int i = 0; i < values.length; i++ )
+		{
+			if( values[ i ] < threshold )
+				continue;
+
+			final double dx = xyz[ 3 * i ] - x;
+			final double dy = xyz[ 3 * i + 1 ] - y;
+			final double dz = xyz[ 3 * i + 2 ] - z;
+			final double d2 = dx * dx + dy * dy + dz * dz;
+			if( d2 <= RADIUS * RADIUS )
+				sum += values[ i ] * KERNEL.applyAsDouble( d2 );
+		}
+		return sum;
+	}
+
+	private static void assertRender( final double[] xyz, final double[] values, final double threshold )
+	{
+		final double[] voxelSize = { 1, 1.5, 2 };
+		final RandomAccessibleInterval< DoubleType > img = ArrayImgs.doubles( 32, 16, 8 );
+		new RBFRowRenderer( new FlatKDTree( xyz, values ), KERNEL, RADIUS ).threshold( threshold ).render( img, voxelSize );
+
+		final RandomAccess< DoubleType > ra = img.randomAccess();
+		for( int z = 0; z < img.dimension( 2 ); z++ )
+			for( int y = 0; y < img.dimension( 1 ); y++ )
+				for( int x = 0; x < img.dimension( 0 ); x++ )
+				{
+					ra.setPosition( new long[] { x, y, z } );
+					final double expected = bruteForce( xyz, values, threshold, x * voxelSize[ 0 ], y * voxelSize[ 1 ], z * voxelSize[ 2 ] );
+					assertEquals( expected, ra.get().getRealDouble(), 1e-9 );
+				}
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		assertRender( new double[ 0 ], new double[ 0 ], 0 );
+	}
+
+	@Test
+	public void testRender()
+	{
+		final Random rnd = new Random( 1 );
+		for( final int n : new int[] { 1, 10, 1000 } )
+		{
+			final double[] xyz = latticePoints( n, rnd );
+			final double[] values = randomValues( n, rnd );
+			assertRender( xyz, values, 0 );
+			assertRender( xyz, values, 0.5 );
+		}
+	}
+
+	@Test
+	public void testDuplicates()
+	{
+		final int n = 50;
+		final double[] xyz = new double[ 3 * n ];
+		final double[] values = new double[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			xyz[ 3 * i ] = 10;
+			xyz[ 3 * i + 1 ] = 9;
+			xyz[ 3 * i + 2 ] = 6;
+			values[ i ] = 1;
+		}
+		assertRender( xyz, values, 0 );
+	}
+
+	@Test
+	public void testRowEvaluator()
+	{
+		final Random rnd = new Random( 2 );
+		final int n = 1000;
+		final double[] xyz = latticePoints( n, rnd );
+		final double[] values = randomValues( n, rnd );
+		final RBFRowRenderer.RowEvaluator evaluator = new RBFRowRenderer( new FlatKDTree( xyz, values ), KERNEL, RADIUS ).new RowEvaluator();
+
+		final double[] out = new double[ 100 ];
+		for( int q = 0; q < 50; q++ )
+		{
+			// spacings smaller and larger than the radius, rows on and off the lattice
+			final double x0 = rnd.nextInt( 10 ) - 5;
+			final double dx = q % 2 == 0 ? 0.25 * ( 1 + rnd.nextInt( 16 ) ) : 4 * rnd.nextDouble() + 0.01;
+			final double y = q % 3 == 0 ? 0.5 * rnd.nextInt( 40 ) : 20 * rnd.nextDouble();
+			final double z = q % 3 == 0 ? 0.5 * rnd.nextInt( 20 ) : 10 * rnd.nextDouble();
+			final int m = 1 + rnd.nextInt( out.length );
+			evaluator.evaluate( x0, dx, y, z, out, m );
+
+			for( int i = 0; i < m; i++ )
+				assertEquals( bruteForce( xyz, values, 0, x0 + i * dx, y, z ), out[ i ], 1e-9 );
+		}
+	}
+}
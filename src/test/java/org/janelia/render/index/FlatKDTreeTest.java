@@ -0,0 +1,173 @@
+package org.janelia.render.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.RealPoint;
+
+public class FlatKDTreeTest
+{
+	/**
+	 * Points on a small integer lattice, so many of them lie on the split
+	 * planes of the tree and on the search spheres, every fifth point is a
+	 * duplicate of the one before.
+	 */
+	private static double[] latticePoints( final int n, final Random rnd )
+	{
+		final double[] xyz = new double[ 3 * n ];
+		for( int i = 0; i < n; i++ )
+		{
+			if( i % 5 == 4 )
+				System.arraycopy( xyz, 3 * ( i - 1 ), xyz, 3 * i, 3 );
+			else
+			{
+				xyz[ 3 * i ] = rnd.nextInt( 20 );
+				xyz[ 3 * i + 1 ] = rnd.nextInt( 20 );
+				xyz[ 3 * i + 2 ] = rnd.nextInt( 4 );
+			}
+		}
+		return xyz;
+	}
+
+	private static double[] randomValues( final int n, final Random rnd )
+	{
+		final double[] values = new double[ n ];
+		for( int i = 0; i < n; i++ )
+			values[ i ] = rnd.nextDouble();
+
+		return values;
+	}
+
+	private static int[] bruteForce( final double[] xyz, final double x, final double y, final double z, final double radius )
+	{
+		final int n = xyz.length / 3;
+		final int[] ids = new int[ n ];
+		int m = 0;
+		for( int i = 0; i < n; i++ )
+		{
+			final double dx = xyz[ 3 * i ] - x;
+			final double dy = xyz[ 3 * i + 1 ] - y;
+			final double dz = xyz[ 3 * i + 2 ] - z;
+			if( dx * dx + dy * dy + dz * dz <= radius * radius )
+				ids[ m++ ] = i;
+		}
+		return Arrays.copyOf( ids, m );
+	}
+
+	private static void assertSearch( final FlatKDTree tree, final double[] xyz, final double[] values,
+			final double x, final double y, final double z, final double radius )
+	{
+		final FlatKDTree.Search search = tree.radiusSearch();
+		search.search( x, y, z, radius );
+
+		final int[] ids = new int[ search.numNeighbors() ];
+		for( int k = 0; k < ids.length; k++ )
+		{
+			final int node = search.getNeighbor( k );
+			final int id = tree.getId( node );
+			ids[ k ] = id;
+			for( int d = 0; d < 3; d++ )
+				assertEquals( xyz[ 3 * id + d ], tree.getDoublePosition( node, d ), 0 );
+
+			assertEquals( values[ id ], search.getValue( k ), 0 );
+
+			final double dx = xyz[ 3 * id ] - x;
+			final double dy = xyz[ 3 * id + 1 ] - y;
+			final double dz = xyz[ 3 * id + 2 ] - z;
+			assertEquals( dx * dx + dy * dy + dz * dz, search.getSquareDistance( k ), 1e-12 );
+		}
+		Arrays.sort( ids );
+		assertArrayEquals( bruteForce( xyz, x, y, z, radius ), ids );
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		final FlatKDTree tree = new FlatKDTree( new double[ 0 ], new double[ 0 ] );
+		assertEquals( 0, tree.size() );
+
+		final FlatKDTree.Search search = tree.radiusSearch();
+		search.search( 0, 0, 0, 10 );
+		assertEquals( 0, search.numNeighbors() );
+	}
+
+	@Test
+	public void testRadiusSearch()
+	{
+		final Random rnd = new Random( 1 );
+		for( final int n : new int[] { 1, 7, 8, 9, 100, 5000 } )
+		{
+			final double[] xyz = latticePoints( n, rnd );
+			final double[] values = randomValues( n, rnd );
+			final FlatKDTree tree = new FlatKDTree( xyz, values );
+			assertEquals( n, tree.size() );
+
+			for( int q = 0; q < 200; q++ )
+			{
+				// lattice queries and radii put points exactly on the sphere
+				if( q % 2 == 0 )
+					assertSearch( tree, xyz, values, rnd.nextInt( 22 ) - 1, rnd.nextInt( 22 ) - 1, rnd.nextInt( 6 ) - 1, rnd.nextInt( 5 ) );
+				else
+					assertSearch( tree, xyz, values, 22 * rnd.nextDouble() - 1, 22 * rnd.nextDouble() - 1, 6 * rnd.nextDouble() - 1, 5 * rnd.nextDouble() );
+			}
+		}
+	}
+
+	@Test
+	public void testDuplicates()
+	{
+		final int n = 100;
+		final double[] xyz = new double[ 3 * n ];
+		final double[] values = new double[ n ];
+		for( int i = 0; i < n; i++ )
+		{
+			xyz[ 3 * i ] = 3;
+			xyz[ 3 * i + 1 ] = 4;
+			xyz[ 3 * i + 2 ] = 5;
+			values[ i ] = i;
+		}
+		final FlatKDTree tree = new FlatKDTree( xyz, values );
+
+		assertSearch( tree, xyz, values, 3, 4, 5, 0 );
+		assertSearch( tree, xyz, values, 3, 4, 6, 1 );
+		assertSearch( tree, xyz, values, 3, 4, 6, 0.5 );
+	}
+
+	@Test
+	public void testVisit()
+	{
+		final Random rnd = new Random( 2 );
+		final int n = 2000;
+		final double[] xyz = latticePoints( n, rnd );
+		final double[] values = randomValues( n, rnd );
+		final FlatKDTree tree = new FlatKDTree( xyz, values );
+		final FlatKDTree.Search search = tree.radiusSearch();
+
+		for( int q = 0; q < 100; q++ )
+		{
+			final double x = rnd.nextInt( 20 );
+			final double y = rnd.nextInt( 20 );
+			final double z = rnd.nextInt( 4 );
+			final double radius = 1 + rnd.nextInt( 4 );
+
+			final int[] expected = bruteForce( xyz, x, y, z, radius );
+			double expectedSum = 0;
+			for( final int i : expected )
+				expectedSum += values[ i ];
+
+			final double[] sum = new double[ 1 ];
+			final int[] count = new int[ 1 ];
+			search.visit( new RealPoint( x, y, z ), radius, ( v, d2 ) -> {
+				sum[ 0 ] += v;
+				count[ 0 ]++;
+			} );
+			assertEquals( expected.length, count[ 0 ] );
+			assertEquals( expectedSum, sum[ 0 ], 1e-9 );
+		}
+	}
+}